@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Codec for the IEEE 11073-20601 AbsoluteTime, as a raw long.
+ *
+ * <pre>
+ *   AbsoluteTime  8 bytes, two BCD digits each:
+ *                 century, year, month, day, hour, minute, second, sec-fractions (1/100 s)
+ *   e.g. 20 12 01 06 16 52 13 00 is 2012-01-06 16:52:13.00
+ * </pre>
+ *
+ * The time is the agent's wall clock, without a time zone.  It is decoded into "local"
+ * milliseconds: the milliseconds since 1970-01-01 00:00 of that wall clock, as if it ran on
+ * UTC.  Adding the agent's clock offset, see {@link AgentCache#clockOffset(long)}, turns them
+ * into epoch milliseconds.  Decoding is plain arithmetic on the digits; nothing is allocated.
+ */
+final class AbsoluteTime {
+    /** Decoded from a time stamp that is unset or not a valid date and time. */
+    static final long UNKNOWN = 0;
+
+    private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private AbsoluteTime() {}
+
+    /**
+     * Decodes {@code bcd}, the 8 bytes of an AbsoluteTime read big-endian, into local
+     * milliseconds, or {@link #UNKNOWN}.
+     */
+    static long toLocalMillis(long bcd) {
+        int century = digits(bcd, 56);
+        int year = digits(bcd, 48);
+        int month = digits(bcd, 40);
+        int day = digits(bcd, 32);
+        int hour = digits(bcd, 24);
+        int minute = digits(bcd, 16);
+        int second = digits(bcd, 8);
+        int fraction = digits(bcd, 0);
+        // Any nibble above 9, including the all-ones "not set" value, turns a field negative.
+        if ((century | year | month | day | hour | minute | second | fraction) < 0
+                || month < 1 || month > 12 || day < 1 || hour > 23 || minute > 59
+                || second > 59) {
+            return UNKNOWN;
+        }
+        year += century * 100;
+        if (day > daysInMonth(year, month)) {
+            return UNKNOWN;
+        }
+        return daysFromCivil(year, month, day) * MS_PER_DAY
+                + ((hour * 60 + minute) * 60 + second) * 1000L + fraction * 10;
+    }
+
+    // The two BCD digits of the byte at shift, or -1 if either is not a digit.
+    private static int digits(long bcd, int shift) {
+        int high = (int) (bcd >>> (shift + 4)) & 0xf;
+        int low = (int) (bcd >>> shift) & 0xf;
+        return high > 9 || low > 9 ? -1 : high * 10 + low;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // Days from 1970-01-01 in the proleptic Gregorian calendar; years start in March, so the
+    // leap day comes last.
+    private static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
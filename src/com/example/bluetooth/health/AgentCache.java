@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * What the manager has learned about each agent, keyed by system-id and dev-config-id: the
+ * configuration report it accepted (for extended configurations) and the MDS attributes the
+ * agent returned.  With both at hand an agent that associates again is answered "accepted"
+ * and goes straight to operating, without resending its configuration or being asked for its
+ * MDS attributes.
+ *
+ * Entries are kept in memory and, when a directory is given, in one small file per key so
+ * they survive restarts.  Files hold the raw encoded structures; configurations are recompiled
+ * into a {@link DecodePlan} when loaded.  An unreadable file is treated as a cache miss.
+ * Sessions look entries up on the selector thread, so files are only read and written on the
+ * given executor: all of them are loaded once, at construction, and each change is written
+ * after it is made in memory.  An agent that associates before the files are loaded is
+ * treated as unknown.
+ *
+ * The offset of each agent's clock from the manager's is measured anew on every association,
+ * since clocks drift and get reset.  The last one is kept in memory only, for an agent that
+ * fails to answer the clock GET.
+ */
+final class AgentCache {
+    private static final int MAGIC = 0x48445043;  // "HDPC"
+    private static final int NONE = -1;
+
+    private final File mDir;
+    private final Executor mExecutor;
+    private final HashMap<Key, Entry> mEntries = new HashMap<Key, Entry>();
+    private final HashMap<Long, Long> mClockOffsets = new HashMap<Long, Long>();
+    private final Apdu.ConfigReport mConfig = new Apdu.ConfigReport();
+
+    /** What is known about one agent configuration.  Instances are immutable. */
+    static final class Entry {
+        /** How to decode the configuration's scan reports. */
+        final DecodePlan plan;
+        /** Encoded ConfigReport, or null for a standard configuration. */
+        final byte[] config;
+        /** Encoded MDS AttributeList, or null if not known yet. */
+        final byte[] mds;
+
+        Entry(DecodePlan plan, byte[] config, byte[] mds) {
+            this.plan = plan;
+            this.config = config;
+            this.mds = mds;
+        }
+    }
+
+    /**
+     * @param dir where entries are stored, or null to keep them in memory only.
+     * @param executor runs the file reads and writes one at a time; unused without a
+     *        directory.
+     */
+    AgentCache(File dir, Executor executor) {
+        mDir = dir;
+        mExecutor = executor;
+        if (dir != null) {
+            execute(new Runnable() {
+                public void run() {
+                    loadAll();
+                }
+            });
+        }
+    }
+
+    /**
+     * What is known about {@code devConfigId} of agent {@code systemId}, or null if the
+     * configuration is neither standard nor cached.
+     */
+    synchronized Entry get(long systemId, int devConfigId) {
+        Key key = new Key(systemId, devConfigId);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            DecodePlan standard = Specialization.standardPlan(devConfigId);
+            if (standard != null) {
+                entry = new Entry(standard, null, null);
+            }
+        }
+        return entry;
+    }
+
+    /** Remembers an accepted configuration report, given as its encoded bytes. */
+    synchronized Entry putConfig(long systemId, int devConfigId, DecodePlan plan,
+            byte[] config) {
+        return put(new Key(systemId, devConfigId), new Entry(plan, config, null));
+    }
+
+    /**
+     * Remembers the MDS attributes of an agent whose configuration is known.  Returns null if
+     * it is not.
+     */
+    synchronized Entry putMds(long systemId, int devConfigId, byte[] mds) {
+        Entry entry = get(systemId, devConfigId);
+        if (entry == null) {
+            return null;
+        }
+        return put(new Key(systemId, devConfigId), new Entry(entry.plan, entry.config, mds));
+    }
+
+    /**
+     * Milliseconds to add to the time stamps of agent {@code systemId} to make them epoch
+     * milliseconds, or null if they have not been measured since the process started.
+     */
+    synchronized Long clockOffset(long systemId) {
+        return mClockOffsets.get(systemId);
+    }
+
+    synchronized void putClockOffset(long systemId, long offsetMs) {
+        mClockOffsets.put(systemId, offsetMs);
+    }
+
+    private Entry put(Key key, final Entry entry) {
+        mEntries.put(key, entry);
+        if (mDir != null) {
+            final File file = file(key);
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        store(file, entry);
+                    } catch (IOException e) {
+                        // Still cached in memory; the agent is asked again after a restart.
+                    }
+                }
+            });
+        }
+        return entry;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; what is in memory is all there is.
+        }
+    }
+
+    // Entries put while the files were loading are newer, and are kept.
+    private void loadAll() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Key key = parseKey(file.getName());
+            if (key == null) {
+                continue;
+            }
+            Entry entry = load(key, file);
+            if (entry != null) {
+                synchronized (this) {
+                    if (!mEntries.containsKey(key)) {
+                        mEntries.put(key, entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private File file(Key key) {
+        return new File(mDir, String.format("%016x-%04x.cfg", key.systemId, key.devConfigId));
+    }
+
+    // The key of a file named by file(Key), or null for any other file.
+    private static Key parseKey(String name) {
+        if (name.length() != 25 || name.charAt(16) != '-' || !name.endsWith(".cfg")) {
+            return null;
+        }
+        try {
+            long high = Long.parseLong(name.substring(0, 8), 16);
+            long low = Long.parseLong(name.substring(8, 16), 16);
+            int devConfigId = Integer.parseInt(name.substring(17, 21), 16);
+            return new Key(high << 32 | low, devConfigId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Written to a temporary file first, so a crash never leaves a half-written entry.
+    private static void store(File file, Entry entry) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            writeBytes(out, entry.config);
+            writeBytes(out, entry.mds);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp);
+        }
+    }
+
+    // Only called on the executor, which owns mConfig.
+    private Entry load(Key key, File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return null;
+                }
+                byte[] config = readBytes(in);
+                byte[] mds = readBytes(in);
+                DecodePlan plan = config != null ?
+                        DecodePlan.compile(mConfig.wrap(ByteBuffer.wrap(config)))
+                        : Specialization.standardPlan(key.devConfigId);
+                return plan != null ? new Entry(plan, config, mds) : null;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Truncated, corrupt or from an incompatible version.
+            file.delete();
+            return null;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(NONE);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NONE) {
+            return null;
+        }
+        if (length < 0 || length > ApduFramer.MAX_APDU_LENGTH) {
+            throw new IOException("bad length " + length);
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    private static final class Key {
+        final long systemId;
+        final int devConfigId;
+
+        Key(long systemId, int devConfigId) {
+            this.systemId = systemId;
+            this.devConfigId = devConfigId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return systemId == other.systemId && devConfigId == other.devConfigId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (systemId ^ (systemId >>> 32)) * 31 + devConfigId;
+        }
+    }
+}
@@ -0,0 +1,699 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IEEE 11073-20601 APDU constants and flyweight readers.
+ *
+ * The views below never copy the APDU.  Each one is re-pointed at a frame with {@code wrap()}
+ * and decodes fields on demand straight from the underlying {@link ByteBuffer}, checking every
+ * access against the end of the structure it belongs to.  A short or inconsistent frame raises
+ * {@link MalformedApduException} instead of an ArrayIndexOutOfBoundsException.  Views are reused
+ * across frames and are not thread safe; keep one set per reader.
+ *
+ * All offsets are in bytes, relative to the start of the structure being read.
+ */
+final class Apdu {
+    // APDU choices.
+    static final int AARQ = 0xE200;
+    static final int AARE = 0xE300;
+    static final int RLRQ = 0xE400;
+    static final int RLRE = 0xE500;
+    static final int ABRT = 0xE600;
+    static final int PRST = 0xE700;
+
+    // DATA-apdu message choices.
+    static final int ROIV_EVENT_REPORT = 0x0100;
+    static final int ROIV_CONFIRMED_EVENT_REPORT = 0x0101;
+    static final int ROIV_GET = 0x0103;
+    static final int ROIV_SET = 0x0104;
+    static final int ROIV_CONFIRMED_SET = 0x0105;
+    static final int ROIV_ACTION = 0x0106;
+    static final int ROIV_CONFIRMED_ACTION = 0x0107;
+    static final int RORS_CONFIRMED_EVENT_REPORT = 0x0201;
+    static final int RORS_GET = 0x0203;
+    static final int RORS_CONFIRMED_SET = 0x0205;
+    static final int RORS_CONFIRMED_ACTION = 0x0207;
+    static final int ROER = 0x0300;
+    static final int RORJ = 0x0400;
+
+    // Event types carried by event reports.
+    static final int MDC_NOTI_CONFIG = 0x0D1C;
+    static final int MDC_NOTI_SCAN_REPORT_FIXED = 0x0D1D;
+    static final int MDC_NOTI_SCAN_REPORT_VAR = 0x0D1E;
+    static final int MDC_NOTI_SCAN_REPORT_MP_FIXED = 0x0D1F;
+    static final int MDC_NOTI_SCAN_REPORT_MP_VAR = 0x0D20;
+    static final int MDC_NOTI_SEGMENT_DATA = 0x0D21;
+
+    private Apdu() {}
+
+    /** Base flyweight: bounds-checked big-endian reads over [base, end) of a buffer. */
+    static class View {
+        ByteBuffer mBuf;
+        int mBase;
+        int mEnd;
+
+        final void point(ByteBuffer buf, int base, int end) throws MalformedApduException {
+            if (base < 0 || end > buf.limit() || base > end) {
+                throw new MalformedApduException("bad bounds " + base + ".." + end);
+            }
+            mBuf = buf;
+            mBase = base;
+            mEnd = end;
+        }
+
+        final int length() {
+            return mEnd - mBase;
+        }
+
+        /** Absolute index of {@code off} in the underlying buffer. */
+        final int index(int off) {
+            return mBase + off;
+        }
+
+        final void check(int off, int n) throws MalformedApduException {
+            if (off < 0 || mBase + off + n > mEnd) {
+                throw new MalformedApduException("read of " + n + " at " + off
+                        + " past end " + (mEnd - mBase));
+            }
+        }
+
+        /** Copies the bytes from {@code off} to the end of the structure. */
+        final byte[] copy(int off) throws MalformedApduException {
+            check(off, 0);
+            byte[] b = new byte[mEnd - mBase - off];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = mBuf.get(mBase + off + i);
+            }
+            return b;
+        }
+
+        final int u8(int off) throws MalformedApduException {
+            check(off, 1);
+            return mBuf.get(mBase + off) & 0xff;
+        }
+
+        final int u16(int off) throws MalformedApduException {
+            check(off, 2);
+            int i = mBase + off;
+            return (mBuf.get(i) & 0xff) << 8 | mBuf.get(i + 1) & 0xff;
+        }
+
+        final long u32(int off) throws MalformedApduException {
+            check(off, 4);
+            int i = mBase + off;
+            return ((long) (mBuf.get(i) & 0xff) << 24) | (mBuf.get(i + 1) & 0xff) << 16
+                    | (mBuf.get(i + 2) & 0xff) << 8 | mBuf.get(i + 3) & 0xff;
+        }
+
+        final long u64(int off) throws MalformedApduException {
+            check(off, 8);
+            int i = mBase + off;
+            long v = 0;
+            for (int k = 0; k < 8; k++) {
+                v = v << 8 | (mBuf.get(i + k) & 0xff);
+            }
+            return v;
+        }
+    }
+
+    /** Any APDU: choice and length header. */
+    static final class Header extends View {
+        Header wrap(ByteBuffer apdu) throws MalformedApduException {
+            point(apdu, apdu.position(), apdu.limit());
+            if (length() < ApduFramer.HEADER_LENGTH) {
+                throw new MalformedApduException("short APDU " + length());
+            }
+            if (ApduFramer.HEADER_LENGTH + u16(2) != length()) {
+                throw new MalformedApduException("length " + u16(2) + " in " + length());
+            }
+            return this;
+        }
+
+        int choice() throws MalformedApduException {
+            return u16(0);
+        }
+    }
+
+    /**
+     * Association request.  Only the single data-proto entry used by 20601 agents is decoded.
+     */
+    static final class Aarq extends View {
+        Aarq wrap(ByteBuffer apdu) throws MalformedApduException {
+            point(apdu, apdu.position(), apdu.limit());
+            return this;
+        }
+
+        long assocVersion() throws MalformedApduException {
+            return u32(4);
+        }
+
+        int dataProtoCount() throws MalformedApduException {
+            return u16(8);
+        }
+
+        int dataProtoId() throws MalformedApduException {
+            return u16(12);
+        }
+
+        long protocolVersion() throws MalformedApduException {
+            return u32(16);
+        }
+
+        int encodingRules() throws MalformedApduException {
+            return u16(20);
+        }
+
+        long nomenclatureVersion() throws MalformedApduException {
+            return u32(22);
+        }
+
+        long functionalUnits() throws MalformedApduException {
+            return u32(26);
+        }
+
+        long systemType() throws MalformedApduException {
+            return u32(30);
+        }
+
+        /** The agent's 8-byte EUI-64 system-id, packed into a long. */
+        long systemId() throws MalformedApduException {
+            if (u16(34) != 8) {
+                throw new MalformedApduException("system-id length " + u16(34));
+            }
+            return u64(36);
+        }
+
+        int devConfigId() throws MalformedApduException {
+            return u16(44);
+        }
+    }
+
+    /**
+     * Presentation APDU carrying a DATA-apdu.  Event report fields are only meaningful when
+     * {@link #dataChoice()} is an event report invoke.
+     */
+    static final class Prst extends View {
+        Prst wrap(ByteBuffer apdu) throws MalformedApduException {
+            point(apdu, apdu.position(), apdu.limit());
+            if (u16(4) + 6 != length()) {
+                throw new MalformedApduException("PRST octet string " + u16(4));
+            }
+            return this;
+        }
+
+        int invokeId() throws MalformedApduException {
+            return u16(6);
+        }
+
+        int dataChoice() throws MalformedApduException {
+            return u16(8);
+        }
+
+        int dataLength() throws MalformedApduException {
+            return u16(10);
+        }
+
+        boolean isEventReport() throws MalformedApduException {
+            int choice = dataChoice();
+            return choice == ROIV_EVENT_REPORT || choice == ROIV_CONFIRMED_EVENT_REPORT;
+        }
+
+        /** Object handle of an event report, GET, SET or ACTION. */
+        int objHandle() throws MalformedApduException {
+            return u16(12);
+        }
+
+        long eventTime() throws MalformedApduException {
+            return u32(14);
+        }
+
+        int eventType() throws MalformedApduException {
+            return u16(18);
+        }
+
+        int eventInfoLength() throws MalformedApduException {
+            return u16(20);
+        }
+
+        /** Offset of the event-info body relative to the start of the APDU. */
+        int eventInfoOffset() throws MalformedApduException {
+            check(22, eventInfoLength());
+            return 22;
+        }
+
+        /** Action-type of a confirmed ACTION or its response. */
+        int actionType() throws MalformedApduException {
+            return u16(14);
+        }
+
+        int actionInfoLength() throws MalformedApduException {
+            return u16(16);
+        }
+
+        /**
+         * Offset of the action-info-args of an ACTION, or the action-info-args of its response,
+         * relative to the start of the APDU.
+         */
+        int actionInfoOffset() throws MalformedApduException {
+            check(18, actionInfoLength());
+            return 18;
+        }
+
+        /** Offset of the AttributeList in a GET response, relative to the start of the APDU. */
+        static final int GET_ATTRIBUTES_OFFSET = 14;
+
+        /** Config-report-id of an MDC_NOTI_CONFIG event report. */
+        int configReportId() throws MalformedApduException {
+            return u16(eventInfoOffset());
+        }
+    }
+
+    /**
+     * ConfigReport of an MDC_NOTI_CONFIG event report, with a cursor over its ConfigObjects and
+     * a nested cursor over the attributes of the current object:
+     *
+     * <pre>
+     *     Apdu.ConfigReport config;
+     *     config.wrap(prst);
+     *     while (config.nextObject()) {
+     *         while (config.nextAttribute()) { ... config.attributeId() ... }
+     *     }
+     * </pre>
+     */
+    static final class ConfigReport extends View {
+        private int mObjectCount;
+        private int mObjectIndex;
+        private int mObject;
+        private int mNextObject;
+        private int mAttributeCount;
+        private int mAttributeIndex;
+        private int mAttribute;
+        private int mNextAttribute;
+
+        ConfigReport wrap(Prst prst) throws MalformedApduException {
+            int off = prst.eventInfoOffset();
+            return wrap(prst.mBuf, prst.index(off), prst.index(off + prst.eventInfoLength()));
+        }
+
+        /** Wraps an encoded ConfigReport between the position and limit of {@code info}. */
+        ConfigReport wrap(ByteBuffer info) throws MalformedApduException {
+            return wrap(info, info.position(), info.limit());
+        }
+
+        private ConfigReport wrap(ByteBuffer buf, int base, int end)
+                throws MalformedApduException {
+            point(buf, base, end);
+            mObjectCount = u16(2);
+            check(6, u16(4));
+            mObjectIndex = -1;
+            mNextObject = 6;
+            mAttributeCount = 0;
+            mAttributeIndex = -1;
+            return this;
+        }
+
+        int configReportId() throws MalformedApduException {
+            return u16(0);
+        }
+
+        int objectCount() {
+            return mObjectCount;
+        }
+
+        /** Advances to the next ConfigObject; returns false after the last one. */
+        boolean nextObject() throws MalformedApduException {
+            if (mObjectIndex + 1 >= mObjectCount) {
+                return false;
+            }
+            mObjectIndex++;
+            mObject = mNextObject;
+            mAttributeCount = u16(mObject + 4);
+            mNextObject = mObject + 8 + u16(mObject + 6);
+            check(mObject, mNextObject - mObject);
+            mAttributeIndex = -1;
+            mNextAttribute = mObject + 8;
+            return true;
+        }
+
+        int objClass() throws MalformedApduException {
+            return u16(mObject);
+        }
+
+        int objHandle() throws MalformedApduException {
+            return u16(mObject + 2);
+        }
+
+        /** Advances to the next attribute of the current object. */
+        boolean nextAttribute() throws MalformedApduException {
+            if (mAttributeIndex + 1 >= mAttributeCount) {
+                return false;
+            }
+            mAttributeIndex++;
+            mAttribute = mNextAttribute;
+            mNextAttribute = mAttribute + 4 + u16(mAttribute + 2);
+            if (mNextAttribute > mNextObject) {
+                throw new MalformedApduException("attribute " + mAttributeIndex
+                        + " overruns object " + mObjectIndex);
+            }
+            return true;
+        }
+
+        int attributeId() throws MalformedApduException {
+            return u16(mAttribute);
+        }
+
+        int attributeLength() throws MalformedApduException {
+            return u16(mAttribute + 2);
+        }
+
+        int attributeU16(int off) throws MalformedApduException {
+            checkAttribute(off, 2);
+            return u16(mAttribute + 4 + off);
+        }
+
+        private void checkAttribute(int off, int n) throws MalformedApduException {
+            if (off < 0 || off + n > mNextAttribute - mAttribute - 4) {
+                throw new MalformedApduException("attribute read of " + n + " at " + off
+                        + " in object " + mObjectIndex);
+            }
+        }
+    }
+
+    /**
+     * ScanReportInfoFixed with a cursor over its ObservationScanFixed entries:
+     *
+     * <pre>
+     *     Apdu.ScanReportFixed fixed;
+     *     fixed.wrap(prst);
+     *     while (fixed.next()) {
+     *         switch (fixed.handle()) { ... fixed.valueU16(0) ... }
+     *     }
+     * </pre>
+     */
+    static final class ScanReportFixed extends View {
+        private int mCount;
+        private int mIndex;
+        // Offset of the current entry, relative to the report.
+        private int mEntry;
+        private int mNext;
+
+        ScanReportFixed wrap(Prst prst) throws MalformedApduException {
+            int off = prst.eventInfoOffset();
+            point(prst.mBuf, prst.index(off), prst.index(off + prst.eventInfoLength()));
+            mCount = u16(4);
+            check(8, u16(6));
+            mIndex = -1;
+            mNext = 8;
+            return this;
+        }
+
+        int dataReqId() throws MalformedApduException {
+            return u16(0);
+        }
+
+        int scanReportNo() throws MalformedApduException {
+            return u16(2);
+        }
+
+        int entryCount() {
+            return mCount;
+        }
+
+        /** Advances to the next entry; returns false after the last one. */
+        boolean next() throws MalformedApduException {
+            if (mIndex + 1 >= mCount) {
+                return false;
+            }
+            mIndex++;
+            mEntry = mNext;
+            mNext = mEntry + 4 + u16(mEntry + 2);
+            check(mEntry, mNext - mEntry);
+            return true;
+        }
+
+        int handle() throws MalformedApduException {
+            return u16(mEntry);
+        }
+
+        int valueLength() throws MalformedApduException {
+            return u16(mEntry + 2);
+        }
+
+        /** Absolute index in the buffer of the current entry's observation value. */
+        int valueIndex() {
+            return index(mEntry + 4);
+        }
+
+        int valueU8(int off) throws MalformedApduException {
+            checkValue(off, 1);
+            return u8(mEntry + 4 + off);
+        }
+
+        int valueU16(int off) throws MalformedApduException {
+            checkValue(off, 2);
+            return u16(mEntry + 4 + off);
+        }
+
+        long valueU32(int off) throws MalformedApduException {
+            checkValue(off, 4);
+            return u32(mEntry + 4 + off);
+        }
+
+        /** SFLOAT-Type at {@code off} in the value, see {@link MderFloat}. */
+        float valueSfloat(int off) throws MalformedApduException {
+            return MderFloat.sfloatToFloat(valueU16(off));
+        }
+
+        /** FLOAT-Type at {@code off} in the value, see {@link MderFloat}. */
+        float valueFloat(int off) throws MalformedApduException {
+            return MderFloat.floatToFloat((int) valueU32(off));
+        }
+
+        /** AbsoluteTime at {@code off} in the value, in local ms, see {@link AbsoluteTime}. */
+        long valueAbsoluteTime(int off) throws MalformedApduException {
+            checkValue(off, 8);
+            return AbsoluteTime.toLocalMillis(u64(mEntry + 4 + off));
+        }
+
+        private void checkValue(int off, int n) throws MalformedApduException {
+            if (off < 0 || off + n > mNext - mEntry - 4) {
+                throw new MalformedApduException("value read of " + n + " at " + off
+                        + " in entry " + mIndex);
+            }
+        }
+    }
+
+    /**
+     * An AttributeList with a cursor over its AVA-Types, such as the attributes of a GET response
+     * or of a PM-segment.
+     */
+    static final class AttributeList extends View {
+        private int mCount;
+        private int mIndex;
+        private int mAttribute;
+        private int mNext;
+
+        /** Wraps the AttributeList at {@code off} in {@code view}. */
+        AttributeList wrap(View view, int off) throws MalformedApduException {
+            int end = off + 4 + view.u16(off + 2);
+            view.check(off, end - off);
+            point(view.mBuf, view.index(off), view.index(end));
+            mCount = u16(0);
+            mIndex = -1;
+            mNext = 4;
+            return this;
+        }
+
+        /** Advances to the next attribute; returns false after the last one. */
+        boolean next() throws MalformedApduException {
+            if (mIndex + 1 >= mCount) {
+                return false;
+            }
+            mIndex++;
+            mAttribute = mNext;
+            mNext = mAttribute + 4 + u16(mAttribute + 2);
+            check(mAttribute, mNext - mAttribute);
+            return true;
+        }
+
+        int id() throws MalformedApduException {
+            return u16(mAttribute);
+        }
+
+        int valueLength() throws MalformedApduException {
+            return u16(mAttribute + 2);
+        }
+
+        int valueU16(int off) throws MalformedApduException {
+            checkValue(off, 2);
+            return u16(mAttribute + 4 + off);
+        }
+
+        long valueU32(int off) throws MalformedApduException {
+            checkValue(off, 4);
+            return u32(mAttribute + 4 + off);
+        }
+
+        long valueAbsoluteTime(int off) throws MalformedApduException {
+            checkValue(off, 8);
+            return AbsoluteTime.toLocalMillis(u64(mAttribute + 4 + off));
+        }
+
+        private void checkValue(int off, int n) throws MalformedApduException {
+            if (off < 0 || off + n > mNext - mAttribute - 4) {
+                throw new MalformedApduException("attribute read of " + n + " at " + off
+                        + " in attribute " + mIndex);
+            }
+        }
+    }
+
+    /** The SegmentInfoList answering MDC_ACT_SEG_GET_INFO, with a cursor over its segments. */
+    static final class SegmentInfoList extends View {
+        private int mCount;
+        private int mIndex;
+        private int mSegment;
+        private int mNext;
+
+        SegmentInfoList wrap(Prst prst) throws MalformedApduException {
+            int off = prst.actionInfoOffset();
+            point(prst.mBuf, prst.index(off), prst.index(off + prst.actionInfoLength()));
+            mCount = u16(0);
+            check(4, u16(2));
+            mIndex = -1;
+            mNext = 4;
+            return this;
+        }
+
+        /** Advances to the next SegmentInfo; returns false after the last one. */
+        boolean next() throws MalformedApduException {
+            if (mIndex + 1 >= mCount) {
+                return false;
+            }
+            mIndex++;
+            mSegment = mNext;
+            mNext = mSegment + 6 + u16(mSegment + 4);
+            check(mSegment, mNext - mSegment);
+            return true;
+        }
+
+        /** Seg-inst-no of the current segment. */
+        int instance() throws MalformedApduException {
+            return u16(mSegment);
+        }
+
+        /** Points {@code list} at the attributes of the current segment. */
+        AttributeList attributes(AttributeList list) throws MalformedApduException {
+            return list.wrap(this, mSegment + 2);
+        }
+    }
+
+    /**
+     * SegmentDataEvent of an MDC_NOTI_SEGMENT_DATA event report, with a cursor over its
+     * fixed-length PM-segment entries.
+     */
+    static final class SegmentData extends View {
+        private int mEntriesEnd;
+        private long mIndex;
+        private int mEntry;
+        private int mEntryLength;
+
+        SegmentData wrap(Prst prst) throws MalformedApduException {
+            int off = prst.eventInfoOffset();
+            point(prst.mBuf, prst.index(off), prst.index(off + prst.eventInfoLength()));
+            mEntriesEnd = 14 + u16(12);
+            check(14, mEntriesEnd - 14);
+            mIndex = -1;
+            mEntry = 14;
+            mEntryLength = 0;
+            return this;
+        }
+
+        /** Seg-inst-no of the segment the entries belong to. */
+        int instance() throws MalformedApduException {
+            return u16(0);
+        }
+
+        /** Index of the first entry of this event within its segment. */
+        long firstEntry() throws MalformedApduException {
+            return u32(2);
+        }
+
+        long entryCount() throws MalformedApduException {
+            return u32(6);
+        }
+
+        /** SegmEvtStatus bits. */
+        int status() throws MalformedApduException {
+            return u16(10);
+        }
+
+        /** Advances to the next entry of {@code entryLength} bytes; false after the last one. */
+        boolean next(int entryLength) throws MalformedApduException {
+            if (mIndex + 1 >= entryCount()) {
+                return false;
+            }
+            if (mIndex >= 0) {
+                mEntry += mEntryLength;
+            }
+            mIndex++;
+            mEntryLength = entryLength;
+            if (mEntry + entryLength > mEntriesEnd) {
+                throw new MalformedApduException("entry " + mIndex + " overruns "
+                        + (mEntriesEnd - 14) + " bytes of entries");
+            }
+            return true;
+        }
+
+        /** Absolute index in the buffer of the current entry. */
+        int valueIndex() {
+            return index(mEntry);
+        }
+
+        int valueU16(int off) throws MalformedApduException {
+            checkValue(off, 2);
+            return u16(mEntry + off);
+        }
+
+        long valueU32(int off) throws MalformedApduException {
+            checkValue(off, 4);
+            return u32(mEntry + off);
+        }
+
+        float valueSfloat(int off) throws MalformedApduException {
+            return MderFloat.sfloatToFloat(valueU16(off));
+        }
+
+        float valueFloat(int off) throws MalformedApduException {
+            return MderFloat.floatToFloat((int) valueU32(off));
+        }
+
+        long valueAbsoluteTime(int off) throws MalformedApduException {
+            checkValue(off, 8);
+            return AbsoluteTime.toLocalMillis(u64(mEntry + off));
+        }
+
+        private void checkValue(int off, int n) throws MalformedApduException {
+            if (off < 0 || off + n > mEntryLength) {
+                throw new MalformedApduException("value read of " + n + " at " + off
+                        + " in entry " + mIndex);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Cuts complete IEEE 11073-20601 APDUs out of a byte stream.
+ *
+ * Every APDU starts with a 2-byte choice and a 2-byte length that counts the bytes following
+ * the header.  A single read from the health channel may return part of an APDU, exactly one
+ * APDU or several APDUs back to back, so the framer accumulates bytes in a reusable buffer and
+ * hands out each frame as soon as its last byte has arrived.
+ *
+ * The buffer is used as a ring: consumed bytes are reclaimed by resetting the read and write
+ * positions whenever the buffer drains, which is the common case.  Only when the write position
+ * reaches the end with a partial frame still pending is that partial frame moved back to the
+ * start.  The buffer grows (up to the largest possible APDU) only if a frame does not fit.
+ *
+ * Frames are delivered as a view onto the internal buffer: position and limit of the
+ * {@link ByteBuffer} bracket the APDU, header included.  The view is only valid for the duration
+ * of {@link Listener#onApdu(ByteBuffer)}; listeners must not keep it or modify its contents.
+ * A framer is not thread safe and is meant to be owned by a single reader.
+ */
+final class ApduFramer {
+    /** Size of the choice and length fields that prefix every APDU. */
+    static final int HEADER_LENGTH = 4;
+    /** Largest APDU the 16-bit length field can describe. */
+    static final int MAX_APDU_LENGTH = HEADER_LENGTH + 0xFFFF;
+    /** Default buffer size; comfortably holds the APDUs sent by current A&D devices. */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /** Receives each complete APDU in stream order. */
+    interface Listener {
+        void onApdu(ByteBuffer apdu) throws IOException;
+    }
+
+    private final Listener mListener;
+    private byte[] mBuffer;
+    private ByteBuffer mView;
+    // Start of the first unconsumed byte.
+    private int mHead;
+    // One past the last byte received.
+    private int mTail;
+
+    ApduFramer(Listener listener) {
+        this(listener, DEFAULT_CAPACITY);
+    }
+
+    ApduFramer(Listener listener, int capacity) {
+        if (capacity < HEADER_LENGTH || capacity > MAX_APDU_LENGTH) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        mListener = listener;
+        mBuffer = new byte[capacity];
+        mView = ByteBuffer.wrap(mBuffer);
+    }
+
+    /**
+     * Performs one blocking read from {@code in} and delivers every APDU completed by it.
+     *
+     * @return the number of bytes read, or -1 at end of stream.
+     */
+    int readFrom(InputStream in) throws IOException {
+        ensureSpace();
+        int n = in.read(mBuffer, mTail, mBuffer.length - mTail);
+        if (n > 0) {
+            mTail += n;
+            drain();
+        }
+        return n;
+    }
+
+    /**
+     * Performs one read from {@code channel}, which may be non-blocking, straight into the
+     * buffer and delivers every APDU completed by it.
+     *
+     * @return the number of bytes read, 0 if none were available, or -1 at end of stream.
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        mView.clear();
+        mView.position(mTail);
+        int n = channel.read(mView);
+        if (n > 0) {
+            mTail += n;
+            drain();
+        }
+        return n;
+    }
+
+    /**
+     * Appends bytes that were received by other means and delivers every APDU completed by
+     * them.
+     */
+    void feed(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureSpace();
+            int n = Math.min(len, mBuffer.length - mTail);
+            System.arraycopy(b, off, mBuffer, mTail, n);
+            mTail += n;
+            off += n;
+            len -= n;
+            drain();
+        }
+    }
+
+    /** Number of bytes held for an APDU that has not been completely received yet. */
+    int pending() {
+        return mTail - mHead;
+    }
+
+    /** Drops any partially received APDU, e.g. after the channel was reset. */
+    void reset() {
+        mHead = 0;
+        mTail = 0;
+    }
+
+    private void drain() throws IOException {
+        final byte[] buf = mBuffer;
+        while (mTail - mHead >= HEADER_LENGTH) {
+            int total = HEADER_LENGTH + ((buf[mHead + 2] & 0xff) << 8 | buf[mHead + 3] & 0xff);
+            if (mTail - mHead < total) {
+                break;
+            }
+            int start = mHead;
+            // Advance first so a listener that throws does not see the same frame again.
+            mHead += total;
+            mView.clear();
+            mView.position(start);
+            mView.limit(start + total);
+            mListener.onApdu(mView);
+        }
+        if (mHead == mTail) {
+            mHead = 0;
+            mTail = 0;
+        }
+    }
+
+    // Makes room for at least one more byte, and for the whole of the pending APDU once its
+    // header is known.
+    private void ensureSpace() {
+        int needed = HEADER_LENGTH;
+        int pending = mTail - mHead;
+        if (pending >= HEADER_LENGTH) {
+            needed = HEADER_LENGTH
+                    + ((mBuffer[mHead + 2] & 0xff) << 8 | mBuffer[mHead + 3] & 0xff);
+        }
+        if (needed > mBuffer.length) {
+            byte[] grown = new byte[Math.min(MAX_APDU_LENGTH,
+                    Math.max(needed, mBuffer.length * 2))];
+            System.arraycopy(mBuffer, mHead, grown, 0, pending);
+            mBuffer = grown;
+            mView = ByteBuffer.wrap(mBuffer);
+            mHead = 0;
+            mTail = pending;
+        } else if (mTail == mBuffer.length || mHead + needed > mBuffer.length) {
+            // Wrap around: move the partial frame to the front of the buffer.
+            System.arraycopy(mBuffer, mHead, mBuffer, 0, pending);
+            mHead = 0;
+            mTail = pending;
+        }
+    }
+}
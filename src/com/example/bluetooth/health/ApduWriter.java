@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The single writer of one health channel.
+ *
+ * Producers take a pooled buffer with {@link #obtain()}, encode an APDU into it and hand it back
+ * with {@link #send(ByteBuffer)}.  The writer drains the bounded queue, copies every APDU that is
+ * already waiting into one batch and issues a single {@code write()} for all of them, then
+ * returns the buffers to the pool.  After start-up no buffers are created, no matter how many
+ * responses the channel sends.
+ *
+ * The writer owns no thread.  Draining runs as a task on a shared executor and at most one
+ * drain per channel is scheduled at a time, so writes of one channel stay in order while many
+ * channels share a few threads.
+ *
+ * {@link #send(byte[])} is a shortcut for constant APDUs from {@link ManagerApdus}.  A response
+ * sent with {@link #send(ByteBuffer, long)} carries the time its request arrived, and the
+ * delay until it was written is recorded as {@link ProtocolStats#STAGE_REPORT_TO_ACK}.
+ */
+final class ApduWriter implements Runnable {
+    /** Size of each pooled buffer; large enough for any response the manager sends. */
+    static final int BUFFER_SIZE = 128;
+    /** Number of APDUs that may be waiting to be written. */
+    static final int QUEUE_CAPACITY = 16;
+    /** How long a producer that may block waits for a free buffer before giving up. */
+    static final long OBTAIN_TIMEOUT_MS = 1000;
+
+    private final ByteTransport mOut;
+    private final Executor mExecutor;
+    private final int mChannelId;
+    private final ProtocolStats mStats;
+    private final long mObtainTimeoutMs;
+    private final BlockingQueue<ByteBuffer> mQueue;
+    private final BlockingQueue<ByteBuffer> mFree;
+    private final byte[] mBatch = new byte[BUFFER_SIZE * QUEUE_CAPACITY];
+    // Request arrival time of the APDU in each pooled buffer, or 0; indexed by buffer slot.
+    private final long[] mReceivedNs = new long[QUEUE_CAPACITY];
+    // Arrival times of the responses in the current batch.
+    private final long[] mBatchReceivedNs = new long[QUEUE_CAPACITY];
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile boolean mClosed;
+    private volatile IOException mError;
+
+    /**
+     * @param obtainTimeoutMs how long {@link #obtain()} waits for a free buffer; 0 if the
+     *     producers must never block.
+     */
+    ApduWriter(ByteTransport out, Executor executor, int channelId, ProtocolStats stats,
+            long obtainTimeoutMs) {
+        mOut = out;
+        mExecutor = executor;
+        mChannelId = channelId;
+        mStats = stats;
+        mObtainTimeoutMs = obtainTimeoutMs;
+        mQueue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY);
+        mFree = new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY);
+        // Slices of one array, so a buffer's slot is its array offset / BUFFER_SIZE.
+        byte[] pool = new byte[BUFFER_SIZE * QUEUE_CAPACITY];
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            mFree.add(ByteBuffer.wrap(pool, i * BUFFER_SIZE, BUFFER_SIZE).slice());
+        }
+    }
+
+    /**
+     * Returns an empty buffer from the pool, waiting up to the obtain timeout if all of them
+     * are queued.
+     *
+     * @throws IOException if the writer is closed or no buffer became free in time.
+     */
+    ByteBuffer obtain() throws IOException {
+        checkOpen();
+        ByteBuffer buf;
+        try {
+            buf = mFree.poll(mObtainTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+        if (buf == null) {
+            throw new IOException("writer stalled");
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /** Queues a buffer obtained from {@link #obtain()}, holding one encoded APDU. */
+    void send(ByteBuffer apdu) throws IOException {
+        send(apdu, 0);
+    }
+
+    /**
+     * Queues a response to a request that arrived at {@code receivedNs}, in
+     * {@link System#nanoTime()}.
+     */
+    void send(ByteBuffer apdu, long receivedNs) throws IOException {
+        checkOpen();
+        mReceivedNs[apdu.arrayOffset() / BUFFER_SIZE] = receivedNs;
+        apdu.flip();
+        // Never blocks: there are exactly as many buffers as queue slots.
+        mQueue.add(apdu);
+        schedule();
+    }
+
+    /** Queues a copy of a pre-encoded APDU. */
+    void send(byte[] apdu) throws IOException {
+        ByteBuffer buf = obtain();
+        buf.put(apdu);
+        send(buf);
+    }
+
+    /**
+     * Refuses further APDUs.  Those already queued are still written if the stream stays open
+     * long enough.
+     */
+    void close() {
+        mClosed = true;
+    }
+
+    private void checkOpen() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+        if (mClosed) {
+            throw new IOException("writer closed");
+        }
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The service is shutting down.
+                mScheduled.set(false);
+                mError = new IOException("writer executor shut down");
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            ByteBuffer apdu;
+            while ((apdu = mQueue.poll()) != null) {
+                int n = 0;
+                int responses = 0;
+                // Coalesce everything that is already waiting into one write.
+                do {
+                    int len = apdu.remaining();
+                    apdu.get(mBatch, n, len);
+                    n += len;
+                    long receivedNs = mReceivedNs[apdu.arrayOffset() / BUFFER_SIZE];
+                    if (receivedNs != 0) {
+                        mBatchReceivedNs[responses++] = receivedNs;
+                    }
+                    mFree.add(apdu);
+                    apdu = mQueue.peek();
+                    if (apdu == null || n + apdu.remaining() > mBatch.length) {
+                        break;
+                    }
+                    apdu = mQueue.poll();
+                } while (true);
+                if (ProtocolTrace.ENABLED) {
+                    ProtocolTrace.sent(mChannelId, mBatch, 0, n);
+                }
+                mOut.write(mBatch, 0, n);
+                if (responses > 0) {
+                    long now = System.nanoTime();
+                    for (int i = 0; i < responses; i++) {
+                        mStats.record(ProtocolStats.STAGE_REPORT_TO_ACK,
+                                now - mBatchReceivedNs[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+        } finally {
+            mScheduled.set(false);
+        }
+        // A producer may have queued after the last poll but before the flag was cleared.
+        if (mError == null && !mQueue.isEmpty()) {
+            schedule();
+        }
+    }
+}
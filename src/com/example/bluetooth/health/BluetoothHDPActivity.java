@@ -58,7 +58,9 @@ public class BluetoothHDPActivity extends Activity {
 	// 0x1007 - blood pressure meter
 	// 0x1008 - body thermometer
 	// 0x100F - body weight scale
-	private static final int HEALTH_PROFILE_SOURCE_DATA_TYPE = 0x1007;
+	// 0x1011 - glucose meter
+	// ALL_DATA_TYPES registers a sink for every type the service supports.
+	private static final int HEALTH_PROFILE_SOURCE_DATA_TYPE = BluetoothHDPService.ALL_DATA_TYPES;
 
 	private static final int REQUEST_ENABLE_BT = 1;
 
@@ -125,20 +127,25 @@ public class BluetoothHDPActivity extends Activity {
 						msg.arg1));
 				mConnectIndicator.setText(R.string.disconnected);
 				break;
-			case BluetoothHDPService.RECEIVED_SYS:
-				int sys = msg.arg1;
-				Log.i(TAG, "msg.arg1 @ sys is " + sys);
-				mSys.setText("" + sys);
-				break;
-			case BluetoothHDPService.RECEIVED_DIA:
-				int dia = msg.arg1;
-				mDia.setText("" + dia);
-				Log.i(TAG, "msg.arg1 @ dia is " + dia);
-				break;
-			case BluetoothHDPService.RECEIVED_PUL:
-				int pul = msg.arg1;
-				Log.i(TAG, "msg.arg1 @ pulse is " + pul);
-				mPul.setText("" + pul);
+			// A batch of readings. Show the latest value of each metric.
+			case BluetoothHDPService.RECEIVED_MEASUREMENTS:
+				Bundle data = msg.getData();
+				int[] metrics = data.getIntArray(BluetoothHDPService.EXTRA_METRICS);
+				float[] values = data.getFloatArray(BluetoothHDPService.EXTRA_VALUES);
+				Log.i(TAG, "received " + metrics.length + " readings");
+				for (int i = 0; i < metrics.length; i++) {
+					switch (metrics[i]) {
+					case Mdc.MDC_PRESS_BLD_NONINV_SYS:
+						mSys.setText(formatReading(values[i]));
+						break;
+					case Mdc.MDC_PRESS_BLD_NONINV_DIA:
+						mDia.setText(formatReading(values[i]));
+						break;
+					case Mdc.MDC_PULS_RATE_NON_INV:
+						mPul.setText(formatReading(values[i]));
+						break;
+					}
+				}
 				break;
 			default:
 				super.handleMessage(msg);
@@ -146,6 +153,14 @@ public class BluetoothHDPActivity extends Activity {
 		}
 	};
 
+	// NaN, NRes and the infinities are not readings; show a placeholder rather than a number.
+	private static String formatReading(float value) {
+		if (Float.isNaN(value) || Float.isInfinite(value)) {
+			return "--";
+		}
+		return Integer.toString(Math.round(value));
+	}
+
 	private final Messenger mMessenger = new Messenger(mIncomingHandler);
 
 	@Override
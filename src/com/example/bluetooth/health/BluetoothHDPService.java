@@ -16,9 +16,22 @@
 
 package com.example.bluetooth.health;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -28,6 +41,7 @@ import android.bluetooth.BluetoothHealthAppConfiguration;
 import android.bluetooth.BluetoothHealthCallback;
 import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -62,6 +76,9 @@ public class BluetoothHDPService extends Service {
     public static final int RESULT_OK = 0;
     public static final int RESULT_FAIL = -1;
 
+    // Every data type a Specialization is registered for.
+    public static final int ALL_DATA_TYPES = 0;
+
     // Status codes sent back to the UI client.
     // Application registration complete.
     public static final int STATUS_HEALTH_APP_REG = 100;
@@ -77,33 +94,136 @@ public class BluetoothHDPService extends Service {
     public static final int STATUS_READ_DATA_DONE = 105;
 
     // Message codes received from the UI client.
-    // Register client with this service.
+    // Register msg.replyTo as a client of this service, or change what it receives.  The
+    // optional data Bundle holds EXTRA_KINDS, EXTRA_DEVICE, EXTRA_METRIC, EXTRA_POLICY and
+    // EXTRA_QUEUE_CAPACITY; by default a client gets every status and measurement.
     public static final int MSG_REG_CLIENT = 200;
-    // Unregister client from this service.
+    // Unregister msg.replyTo from this service.
     public static final int MSG_UNREG_CLIENT = 201;
-    // Register health application.
+    // What a client receives: a mask of these.
+    public static final String EXTRA_KINDS = "kinds";
+    public static final int KIND_STATUS = SubscriberRegistry.KIND_STATUS;
+    public static final int KIND_DATA = SubscriberRegistry.KIND_DATA;
+    // What happens when a client falls behind by EXTRA_QUEUE_CAPACITY messages.
+    public static final String EXTRA_POLICY = "policy";
+    public static final int POLICY_DROP_NEWEST = SubscriberRegistry.POLICY_DROP_NEWEST;
+    public static final int POLICY_DROP_OLDEST = SubscriberRegistry.POLICY_DROP_OLDEST;
+    public static final int POLICY_COALESCE = SubscriberRegistry.POLICY_COALESCE;
+    public static final String EXTRA_QUEUE_CAPACITY = "queue_capacity";
+    // Register health application.  arg1 is the data type of the sink, or ALL_DATA_TYPES to
+    // register one sink per supported device specialization.
     public static final int MSG_REG_HEALTH_APP = 300;
-    // Unregister health application.
+    // Unregister health application.  arg1 is the data type, or ALL_DATA_TYPES.
     public static final int MSG_UNREG_HEALTH_APP = 301;
-    // Connect channel.
+    // Connect channel.  arg1 is the data type to connect with, or ALL_DATA_TYPES for the
+    // blood pressure sink.
     public static final int MSG_CONNECT_CHANNEL = 400;
     // Disconnect channel.
     public static final int MSG_DISCONNECT_CHANNEL = 401;
-
-    // Got Reading
-    public static final int RECEIVED_SYS = 500;
-    public static final int RECEIVED_DIA = 501;
-    public static final int RECEIVED_PUL = 502;
-    
-    private BluetoothHealthAppConfiguration mHealthAppConfig;
+    // Query stored readings.  The data Bundle may hold EXTRA_DEVICE (an address), EXTRA_METRIC
+    // (a nomenclature code), EXTRA_FROM and EXTRA_TO (measurement-time range, ms since the
+    // epoch, end exclusive) to narrow the query.  A reading's measurement time is its device
+    // time if the device stamped it, else its receive time.  A reply holds at most
+    // QUERY_MAX_READINGS readings; if more match, it carries EXTRA_CURSOR, to be sent back with
+    // the same query for the next ones.  If EXTRA_FROM is absent, the last arg1 (at most
+    // QUERY_MAX_READINGS) matching readings are returned instead.  The reply goes to replyTo.
+    public static final int MSG_QUERY_READINGS = 600;
+    public static final int QUERY_MAX_READINGS = JournalIndex.MAX_RESULTS;
+    // Request for the protocol stats; answered with RECEIVED_STATS to msg.replyTo.
+    public static final int MSG_QUERY_STATS = 601;
+    // Export stored readings to a file.  arg1 is the format: EXPORT_CSV, EXPORT_NDJSON or
+    // EXPORT_BUNDLE (FHIR Observations).  The data Bundle narrows the export like that of
+    // MSG_QUERY_READINGS, except that every matching reading is exported.  Answered with
+    // RECEIVED_EXPORT to replyTo.
+    public static final int MSG_EXPORT_READINGS = 602;
+    public static final int EXPORT_CSV = ReadingExporter.FORMAT_CSV;
+    public static final int EXPORT_NDJSON = ReadingExporter.FORMAT_NDJSON;
+    public static final int EXPORT_BUNDLE = ReadingExporter.FORMAT_BUNDLE;
+    // Upload stored readings to a backend.  The data Bundle holds EXTRA_URL, where batches of
+    // readings are posted, or no URL to pause uploading.  Uploading resumes where it stopped,
+    // also across restarts, once a client sets the URL again.
+    public static final int MSG_CONFIGURE_UPLOAD = 603;
+    public static final String EXTRA_URL = "url";
+
+    // Got readings.  Observations received within DELIVERY_WINDOW_MS of each other, from any
+    // device, are delivered together as one message whose data Bundle holds parallel arrays:
+    // record i has nomenclature code EXTRA_METRICS[i], value EXTRA_VALUES[i], unit code
+    // EXTRA_UNITS[i], receive time EXTRA_TIMES[i] and was reported by device
+    // EXTRA_DEVICES[EXTRA_DEVICE_INDEXES[i]].  EXTRA_DEVICE_TIMES[i] is when the device says it
+    // was measured, corrected by the offset of the device's clock, or 0 if the device did not
+    // time-stamp it; stored readings downloaded later carry their original time there.  Times
+    // are ms since the epoch.
+    public static final int RECEIVED_MEASUREMENTS = 503;
+    public static final String EXTRA_DEVICES = "devices";
+    public static final String EXTRA_DEVICE_INDEXES = "device_indexes";
+    public static final String EXTRA_METRICS = "metrics";
+    public static final String EXTRA_VALUES = "values";
+    public static final String EXTRA_UNITS = "units";
+    public static final String EXTRA_TIMES = "times";
+    public static final String EXTRA_DEVICE_TIMES = "device_times";
+
+    // Reply to MSG_QUERY_READINGS, oldest first, in the same format as RECEIVED_MEASUREMENTS.
+    public static final int RECEIVED_QUERY_RESULT = 504;
+    public static final String EXTRA_DEVICE = "device";
+    public static final String EXTRA_METRIC = "metric";
+    public static final String EXTRA_FROM = "from";
+    public static final String EXTRA_TO = "to";
+    public static final String EXTRA_CURSOR = "cursor";
+
+    // Reply to MSG_QUERY_STATS: per ProtocolStats stage, the number of samples and latency
+    // percentiles in microseconds; per ProtocolStats counter, its value.  The last stage times
+    // the whole handling of a received APDU, delivery to clients and the journal included.
+    public static final int RECEIVED_STATS = 505;
+    public static final String EXTRA_STAGE_COUNTS = "stage_counts";
+    public static final String EXTRA_STAGE_P50 = "stage_p50";
+    public static final String EXTRA_STAGE_P90 = "stage_p90";
+    public static final String EXTRA_STAGE_P99 = "stage_p99";
+    public static final String EXTRA_STAGE_MAX = "stage_max";
+    public static final String EXTRA_COUNTERS = "counters";
+
+    // Reply to MSG_EXPORT_READINGS: EXTRA_PATH of the file written, or absent if the export
+    // failed, and EXTRA_COUNT readings in it.
+    public static final int RECEIVED_EXPORT = 506;
+    public static final String EXTRA_PATH = "path";
+    public static final String EXTRA_COUNT = "count";
+
+    private static final long DELIVERY_WINDOW_MS = 200;
+    // How long onDestroy waits for queries and exports before closing the journal under them.
+    private static final long QUERY_SHUTDOWN_MS = 2000;
+    // Threads that deliver messages to clients; a slow client only holds up one of them.
+    private static final int DELIVERY_THREADS = 2;
+
+    // Devices of the channels to disconnect once their release has ended, by channel id.
+    private final ConcurrentHashMap<Integer, BluetoothDevice> mDisconnecting =
+            new ConcurrentHashMap<Integer, BluetoothDevice>();
+    // Registered sink configurations by data type.
+    private final ConcurrentHashMap<Integer, BluetoothHealthAppConfiguration> mHealthAppConfigs =
+            new ConcurrentHashMap<Integer, BluetoothHealthAppConfiguration>();
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothHealth mBluetoothHealth;
-    private BluetoothDevice mDevice;
-    private int mChannelId;
-
-    private Messenger mClient;
-    int count = 0;
-    byte invoke[] = new byte[] { (byte) 0x00, (byte) 0x00 };
+    private SessionRegistry mSessions;
+    // Every decoded observation, or null if the journal could not be opened.
+    private MeasurementJournal mJournal;
+    // Query path over mJournal; appends go through it.
+    private JournalIndex mReadings;
+    // Sends mJournal to the backend, or null if there is no journal.
+    private ReadingUploader mUploader;
+
+    private final ExecutorService mDeliveryExecutor =
+            Executors.newFixedThreadPool(DELIVERY_THREADS);
+    private final SubscriberRegistry mClients = new SubscriberRegistry(mDeliveryExecutor);
+    // Queries and exports of stored readings run one at a time, off the main thread, so disk
+    // reads never hold up the handler; exports share one exporter.
+    private final ExecutorService mQueryExecutor = Executors.newSingleThreadExecutor();
+    // Reads and writes the agent cache's files, which sessions must not wait for.
+    private final ExecutorService mAgentExecutor = Executors.newSingleThreadExecutor();
+    private final ReadingExporter mExporter =
+            new ReadingExporter(ReadingExporter.DEFAULT_CHUNK_SIZE);
+    // Observations waiting for the end of the current delivery window.
+    private final MeasurementBatch mPending = new MeasurementBatch();
+    private final Handler mDeliveryHandler = new Handler();
+    // Whether STATUS_READ_DATA has been sent since the last STATUS_READ_DATA_DONE.
+    private final AtomicBoolean mReadingNotified = new AtomicBoolean();
     
     // Handles events sent by {@link HealthHDPActivity}.
     private class IncomingHandler extends Handler {
@@ -112,12 +232,14 @@ public class BluetoothHDPService extends Service {
             switch (msg.what) {
                 // Register UI client to this service so the client can receive messages.
                 case MSG_REG_CLIENT:
-                    Log.d(TAG, "Activity client registered");
-                    mClient = msg.replyTo;
+                    Log.d(TAG, "Client registered");
+                    registerClient(msg.replyTo, msg.peekData());
                     break;
                 // Unregister UI client from this service.
                 case MSG_UNREG_CLIENT:
-                    mClient = null;
+                    if (msg.replyTo != null) {
+                        mClients.unsubscribe(msg.replyTo);
+                    }
                     break;
                 // Register health application.
                 case MSG_REG_HEALTH_APP:
@@ -125,17 +247,31 @@ public class BluetoothHDPService extends Service {
                     break;
                 // Unregister health application.
                 case MSG_UNREG_HEALTH_APP:
-                    unregisterApp();
+                    unregisterApp(msg.arg1);
                     break;
                 // Connect channel.
                 case MSG_CONNECT_CHANNEL:
-                    mDevice = (BluetoothDevice) msg.obj;
-                    connectChannel();
+                    connectChannel((BluetoothDevice) msg.obj, msg.arg1);
                     break;
                 // Disconnect channel.
                 case MSG_DISCONNECT_CHANNEL:
-                    mDevice = (BluetoothDevice) msg.obj;
-                    disconnectChannel();
+                    disconnectChannel((BluetoothDevice) msg.obj);
+                    break;
+                // Query stored readings.
+                case MSG_QUERY_READINGS:
+                    queryReadings(msg.replyTo, msg.arg1, msg.getData());
+                    break;
+                // Query protocol stats.
+                case MSG_QUERY_STATS:
+                    queryStats(msg.replyTo);
+                    break;
+                // Export stored readings.
+                case MSG_EXPORT_READINGS:
+                    exportReadings(msg.replyTo, msg.arg1, msg.getData());
+                    break;
+                // Configure uploading.
+                case MSG_CONFIGURE_UPLOAD:
+                    configureUpload(msg.getData().getString(EXTRA_URL));
                     break;
                 default:
                     super.handleMessage(msg);
@@ -152,6 +288,24 @@ public class BluetoothHDPService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        AgentCache agents = new AgentCache(getDir("agents", MODE_PRIVATE), mAgentExecutor);
+        mSessions = new SessionRegistry(agents,
+                new DuplicateFilter(DuplicateFilter.DEFAULT_RECENT, DuplicateFilter.DEFAULT_OLDER));
+        // APDU bytes are only traced when verbose logging is enabled for this tag:
+        // adb shell setprop log.tag.BluetoothHDPService VERBOSE
+        ProtocolTrace.setLevel(Log.isLoggable(TAG, Log.VERBOSE) ?
+                ProtocolTrace.LEVEL_APDUS : ProtocolTrace.LEVEL_EVENTS);
+        try {
+            File dir = getDir("journal", MODE_PRIVATE);
+            mJournal = new MeasurementJournal(dir);
+            mReadings = new JournalIndex(mJournal, dir);
+            mUploader = new ReadingUploader(mJournal,
+                    new File(getDir("upload", MODE_PRIVATE), "state"),
+                    ReadingUploader.DEFAULT_MAX_READINGS, ReadingUploader.DEFAULT_MAX_DELAY_MS,
+                    ReadingUploader.DEFAULT_MIN_BACKOFF_MS);
+        } catch (IOException e) {
+            Log.w(TAG, "Readings will not be stored: " + e.getMessage());
+        }
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
             // Bluetooth adapter isn't available.  The client of the service is supposed to
@@ -159,6 +313,11 @@ public class BluetoothHDPService extends Service {
             stopSelf();
             return;
         }
+        // Agents are told the manager's EUI-64, derived from the adapter's address.
+        String address = mBluetoothAdapter.getAddress();
+        if (address != null) {
+            mSessions.setSystemId(ManagerApdus.systemId(address));
+        }
         if (!mBluetoothAdapter.getProfileProxy(this, mBluetoothServiceListener,
                 BluetoothProfile.HEALTH)) {
             Toast.makeText(this, R.string.bluetooth_health_profile_not_available,
@@ -168,6 +327,43 @@ public class BluetoothHDPService extends Service {
         }
     }
 
+    // Dumps the protocol stats, overall and per open channel, and the protocol trace:
+    // adb shell dumpsys activity service BluetoothHDPService
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Protocol stats, all channels:");
+        mSessions.snapshot().dump(writer);
+        for (ManagerSession session : mSessions.sessions()) {
+            writer.println("Channel " + session.getChannelId() + " ("
+                    + session.getDeviceAddress() + ", " + session.getState() + "):");
+            session.getStats().snapshot().dump(writer);
+        }
+        ProtocolTrace.dump(writer);
+    }
+
+    @Override
+    public void onDestroy() {
+        mSessions.shutdown();
+        mAgentExecutor.shutdown();
+        mDeliveryExecutor.shutdown();
+        mQueryExecutor.shutdown();
+        if (mUploader != null) {
+            mUploader.stop();
+        }
+        // Anything still reading the journal after this fails with an IOException.
+        try {
+            if (!mQueryExecutor.awaitTermination(QUERY_SHUTDOWN_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Closing the journal under a running query");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "BluetoothHDPService is running.");
@@ -179,26 +375,216 @@ public class BluetoothHDPService extends Service {
         return mMessenger.getBinder();
     };
 
-    // Register health application through the Bluetooth Health API.
+    // Register health application through the Bluetooth Health API.  Each data type gets its
+    // own sink configuration; data types that are already registered are left alone.
     private void registerApp(int dataType) {
-        mBluetoothHealth.registerSinkAppConfiguration(TAG, dataType, mHealthCallback);
+        if (dataType == ALL_DATA_TYPES) {
+            for (Specialization specialization : Specialization.all()) {
+                registerApp(specialization.dataType);
+            }
+            return;
+        }
+        if (mHealthAppConfigs.containsKey(dataType)) {
+            return;
+        }
+        Specialization specialization = Specialization.forDataType(dataType);
+        mBluetoothHealth.registerSinkAppConfiguration(specialization != null ?
+                TAG + " " + specialization.name : TAG, dataType, mHealthCallback);
     }
 
     // Unregister health application through the Bluetooth Health API.
-    private void unregisterApp() {
-        mBluetoothHealth.unregisterAppConfiguration(mHealthAppConfig);
+    private void unregisterApp(int dataType) {
+        for (BluetoothHealthAppConfiguration config : mHealthAppConfigs.values()) {
+            if (dataType == ALL_DATA_TYPES || config.getDataType() == dataType) {
+                mBluetoothHealth.unregisterAppConfiguration(config);
+            }
+        }
     }
 
     // Connect channel through the Bluetooth Health API.
-    private void connectChannel() {
+    private void connectChannel(BluetoothDevice device, int dataType) {
         Log.i(TAG, "connectChannel()");
-        mBluetoothHealth.connectChannelToSource(mDevice, mHealthAppConfig);
+        BluetoothHealthAppConfiguration config = mHealthAppConfigs.get(
+                dataType != ALL_DATA_TYPES ? dataType : Specialization.DATA_TYPE_BLOOD_PRESSURE);
+        if (config != null) {
+            mBluetoothHealth.connectChannelToSource(device, config);
+        }
     }
 
-    // Disconnect channel through the Bluetooth Health API.
-    private void disconnectChannel() {
+    private boolean isRegistered(BluetoothHealthAppConfiguration config) {
+        return config.equals(mHealthAppConfigs.get(config.getDataType()));
+    }
+
+    // Disconnect the device's channels through the Bluetooth Health API.  An associated agent
+    // is asked to release first, and its channel is disconnected once the session is back in
+    // UNASSOCIATED: the RLRE arrived or the release timed out.  Sessions of other devices are
+    // not affected.
+    private void disconnectChannel(BluetoothDevice device) {
         Log.i(TAG, "disconnectChannel()");
-        mBluetoothHealth.disconnectChannel(mDevice, mHealthAppConfig, mChannelId);
+        for (ManagerSession session : mSessions.forDevice(device.getAddress())) {
+            int channelId = session.getChannelId();
+            mDisconnecting.put(channelId, device);
+            boolean releasing;
+            try {
+                releasing = session.release();
+            } catch (IOException e) {
+                Log.w(TAG, "Release failed: " + e.getMessage());
+                releasing = false;
+            }
+            if (!releasing && mDisconnecting.remove(channelId) != null) {
+                disconnectNow(device, session);
+            }
+        }
+    }
+
+    private void disconnectNow(BluetoothDevice device, ManagerSession session) {
+        BluetoothHealthAppConfiguration config =
+                mHealthAppConfigs.get(session.getSpecialization().dataType);
+        if (config != null) {
+            mBluetoothHealth.disconnectChannel(device, config, session.getChannelId());
+        }
+    }
+
+    // Answers a MSG_QUERY_READINGS from the stored readings, on the query thread.
+    private void queryReadings(final Messenger replyTo, final int limit, Bundle query) {
+        if (replyTo == null || mReadings == null) {
+            return;
+        }
+        String address = query.getString(EXTRA_DEVICE);
+        final long device = address != null ?
+                MeasurementJournal.parseAddress(address) : JournalIndex.ANY_DEVICE;
+        final int metric = query.getInt(EXTRA_METRIC, JournalIndex.ANY_METRIC);
+        final boolean byRange = query.containsKey(EXTRA_FROM);
+        final long from = query.getLong(EXTRA_FROM);
+        final long to = query.getLong(EXTRA_TO, Long.MAX_VALUE);
+        final long start = query.getLong(EXTRA_CURSOR, 0);
+        mQueryExecutor.execute(new Runnable() {
+            public void run() {
+                MeasurementBatch result = new MeasurementBatch();
+                long cursor = JournalIndex.DONE;
+                try {
+                    if (byRange) {
+                        cursor = mReadings.range(from, to, device, metric, start, result);
+                    } else {
+                        mReadings.latest(device, metric, limit, result);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Query failed: " + e.getMessage());
+                }
+                Message msg = Message.obtain(null, RECEIVED_QUERY_RESULT);
+                Bundle data = toBundle(result);
+                if (cursor != JournalIndex.DONE) {
+                    data.putLong(EXTRA_CURSOR, cursor);
+                }
+                msg.setData(data);
+                try {
+                    replyTo.send(msg);
+                } catch (RemoteException e) {
+                    // Unable to reach client.
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    // Answers a MSG_EXPORT_READINGS once the file has been written on the query thread.
+    private void exportReadings(final Messenger replyTo, final int format, Bundle query) {
+        if (replyTo == null || mReadings == null) {
+            return;
+        }
+        String address = query.getString(EXTRA_DEVICE);
+        final long device = address != null ?
+                MeasurementJournal.parseAddress(address) : JournalIndex.ANY_DEVICE;
+        final int metric = query.getInt(EXTRA_METRIC, JournalIndex.ANY_METRIC);
+        final long from = query.getLong(EXTRA_FROM, 0);
+        final long to = query.getLong(EXTRA_TO, Long.MAX_VALUE);
+        final File file = new File(getDir("exports", MODE_PRIVATE), "readings-"
+                + System.currentTimeMillis() + "." + ReadingExporter.extension(format));
+        mQueryExecutor.execute(new Runnable() {
+            public void run() {
+                Bundle data = new Bundle();
+                OutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    long count = mExporter.export(mReadings, format, from, to, device, metric,
+                            out);
+                    out.close();
+                    out = null;
+                    data.putString(EXTRA_PATH, file.getPath());
+                    data.putLong(EXTRA_COUNT, count);
+                } catch (IOException e) {
+                    Log.w(TAG, "Export failed: " + e.getMessage());
+                    file.delete();
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            // Already failed.
+                        }
+                    }
+                }
+                Message msg = Message.obtain(null, RECEIVED_EXPORT);
+                msg.setData(data);
+                try {
+                    replyTo.send(msg);
+                } catch (RemoteException e) {
+                    // Unable to reach client.
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    // Points the uploader at a new backend, or pauses it.
+    private void configureUpload(String url) {
+        if (mUploader == null) {
+            return;
+        }
+        try {
+            mUploader.setTransport(url != null ? new HttpTransport(new URL(url)) : null);
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Bad upload URL: " + url);
+        }
+    }
+
+    // Answers a MSG_QUERY_STATS with the stats of every channel since the service started.
+    private void queryStats(Messenger replyTo) {
+        if (replyTo == null) {
+            return;
+        }
+        ProtocolStats.Snapshot stats = mSessions.snapshot();
+        long[] counts = new long[ProtocolStats.STAGES];
+        long[] p50 = new long[ProtocolStats.STAGES];
+        long[] p90 = new long[ProtocolStats.STAGES];
+        long[] p99 = new long[ProtocolStats.STAGES];
+        long[] max = new long[ProtocolStats.STAGES];
+        for (int stage = 0; stage < ProtocolStats.STAGES; stage++) {
+            counts[stage] = stats.count(stage);
+            p50[stage] = stats.percentileMicros(stage, 50);
+            p90[stage] = stats.percentileMicros(stage, 90);
+            p99[stage] = stats.percentileMicros(stage, 99);
+            max[stage] = stats.maxMicros(stage);
+        }
+        long[] counters = new long[ProtocolStats.COUNTERS];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = stats.counter(i);
+        }
+        Bundle data = new Bundle();
+        data.putLongArray(EXTRA_STAGE_COUNTS, counts);
+        data.putLongArray(EXTRA_STAGE_P50, p50);
+        data.putLongArray(EXTRA_STAGE_P90, p90);
+        data.putLongArray(EXTRA_STAGE_P99, p99);
+        data.putLongArray(EXTRA_STAGE_MAX, max);
+        data.putLongArray(EXTRA_COUNTERS, counters);
+        Message msg = Message.obtain(null, RECEIVED_STATS);
+        msg.setData(data);
+        try {
+            replyTo.send(msg);
+        } catch (RemoteException e) {
+            // Unable to reach client.
+            e.printStackTrace();
+        }
     }
 
     // Callbacks to handle connection set up and disconnection clean up.
@@ -225,13 +611,15 @@ public class BluetoothHDPService extends Service {
         public void onHealthAppConfigurationStatusChange(BluetoothHealthAppConfiguration config,
                 int status) {
             if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_FAILURE) {
-                mHealthAppConfig = null;
                 sendMessage(STATUS_HEALTH_APP_REG, RESULT_FAIL);
             } else if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_SUCCESS) {
-                mHealthAppConfig = config;
+                mHealthAppConfigs.put(config.getDataType(), config);
                 sendMessage(STATUS_HEALTH_APP_REG, RESULT_OK);
             } else if (status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_FAILURE ||
                     status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS) {
+                if (status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS) {
+                    mHealthAppConfigs.remove(config.getDataType());
+                }
                 sendMessage(STATUS_HEALTH_APP_UNREG,
                         status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS ?
                         RESULT_OK : RESULT_FAIL);
@@ -250,10 +638,8 @@ public class BluetoothHDPService extends Service {
                         prevState, newState));
             if (prevState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED &&
                     newState == BluetoothHealth.STATE_CHANNEL_CONNECTED) {
-                if (config.equals(mHealthAppConfig)) {
-                    mChannelId = channelId;
-                    sendMessage(STATUS_CREATE_CHANNEL, RESULT_OK);
-                    (new ReadThread(fd)).start();
+                if (isRegistered(config)) {
+                    startSession(config, device, fd, channelId);
                 } else {
                     sendMessage(STATUS_CREATE_CHANNEL, RESULT_FAIL);
                 }
@@ -262,7 +648,9 @@ public class BluetoothHDPService extends Service {
                 sendMessage(STATUS_CREATE_CHANNEL, RESULT_FAIL);
             } else if (newState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
             	Log.d(TAG, "I'm in State Channel Disconnected.");
-                if (config.equals(mHealthAppConfig)) {
+                mSessions.close(channelId);
+                mDisconnecting.remove(channelId);
+                if (isRegistered(config)) {
                     sendMessage(STATUS_DESTROY_CHANNEL, RESULT_OK);
                 } else {
                     sendMessage(STATUS_DESTROY_CHANNEL, RESULT_FAIL);
@@ -271,263 +659,149 @@ public class BluetoothHDPService extends Service {
         }
     };
 
-    // Sends an update message to registered UI client.
-    private void sendMessage(int what, int value) {
-        if (mClient == null) {
-            Log.d(TAG, "No clients registered.");
+    // Runs the IEEE 11073-20601 manager for a newly connected channel.  The registry owns the
+    // file descriptor from here on and closes it when the session ends.
+    private void startSession(BluetoothHealthAppConfiguration config, BluetoothDevice device,
+            ParcelFileDescriptor fd, int channelId) {
+        try {
+            mSessions.open(device.getAddress(), channelId,
+                    Specialization.forDataType(config.getDataType()),
+                    new FileInputStream(fd.getFileDescriptor()),
+                    new FileOutputStream(fd.getFileDescriptor()), fd, mSessionListener);
+            sendMessage(STATUS_CREATE_CHANNEL, RESULT_OK);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many channels, refusing " + device.getAddress());
+            mBluetoothHealth.disconnectChannel(device, config, channelId);
+            sendMessage(STATUS_CREATE_CHANNEL, RESULT_FAIL);
+        }
+    }
+
+    private void registerClient(final Messenger client, Bundle options) {
+        if (client == null) {
             return;
         }
+        SubscriberRegistry.Filter filter = SubscriberRegistry.Filter.ALL;
+        int policy = POLICY_DROP_OLDEST;
+        int capacity = SubscriberRegistry.DEFAULT_CAPACITY;
+        if (options != null) {
+            filter = new SubscriberRegistry.Filter(
+                    options.getInt(EXTRA_KINDS, SubscriberRegistry.KIND_ALL),
+                    options.getString(EXTRA_DEVICE),
+                    options.getInt(EXTRA_METRIC, SubscriberRegistry.ANY_METRIC));
+            policy = options.getInt(EXTRA_POLICY, policy);
+            capacity = Math.max(1, options.getInt(EXTRA_QUEUE_CAPACITY, capacity));
+        }
+        mClients.subscribe(client, new SubscriberRegistry.Client() {
+            public boolean onStatus(int what, int arg) {
+                return send(client, Message.obtain(null, what, arg, 0));
+            }
 
+            public boolean onMeasurements(MeasurementBatch batch) {
+                Message msg = Message.obtain(null, RECEIVED_MEASUREMENTS);
+                msg.setData(toBundle(batch));
+                return send(client, msg);
+            }
+        }, filter, policy, capacity);
+    }
+
+    // Returns false if the client is unreachable.
+    private static boolean send(Messenger client, Message msg) {
         try {
-            mClient.send(Message.obtain(null, what, value, 0));
+            client.send(msg);
+            return true;
         } catch (RemoteException e) {
-            // Unable to reach client.
-            e.printStackTrace();
+            Log.w(TAG, "Dropping unreachable client: " + e.getMessage());
+            return false;
         }
     }
 
-    
-    public String byte2hex(byte[] b)
-    {
-     // String Buffer can be used instead
-       String hs = "";
-       String stmp = "";
-
-       for (int n = 0; n < b.length; n++)
-       {
-          stmp = (java.lang.Integer.toHexString(b[n] & 0XFF));
-
-          if (stmp.length() == 1)
-          {
-             hs = hs + "0" + stmp;
-          }
-          else
-          {
-             hs = hs + stmp;
-          }
-
-          if (n < b.length - 1)
-          {
-             hs = hs + "";
-          }
-       }
-
-       return hs;
+    // Queues a status update for every client that wants them.  Never blocks.
+    private void sendMessage(int what, int value) {
+        mClients.publishStatus(what, value);
     }
-    
-    public static int byteToUnsignedInt(byte b) {
-        return 0x00 << 24 | b & 0xff;
-      }
-    
-    // Thread to read incoming data received from the HDP device.  This sample application merely
-    // reads the raw byte from the incoming file descriptor.  The data should be interpreted using
-    // a health manager which implements the IEEE 11073-xxxxx specifications.
-    private class ReadThread extends Thread {
-        private ParcelFileDescriptor mFd;
 
-        public ReadThread(ParcelFileDescriptor fd) {
-            super();
-            mFd = fd;
+    // Receives events from the manager sessions of all connected channels.  Each session runs
+    // the IEEE 11073-20601 protocol on a reader thread of the session registry, so these
+    // callbacks may arrive concurrently from several channels.
+    private final ManagerSession.Listener mSessionListener = new ManagerSession.Listener() {
+        public void onStateChange(ManagerSession session, ManagerSession.State prev,
+                ManagerSession.State next) {
+            if (Log.isLoggable(TAG, Log.DEBUG))
+                Log.d(TAG, "channel " + session.getChannelId() + ": " + prev + " -> " + next);
+            if (next == ManagerSession.State.UNASSOCIATED) {
+                final BluetoothDevice device = mDisconnecting.remove(session.getChannelId());
+                if (device != null) {
+                    // Called under the session lock; disconnect from the main thread.
+                    final ManagerSession released = session;
+                    mDeliveryHandler.post(new Runnable() {
+                        public void run() {
+                            disconnectNow(device, released);
+                        }
+                    });
+                }
+            }
         }
-        
 
-        @Override
-        public void run() {
-            FileInputStream fis = new FileInputStream(mFd.getFileDescriptor());
-            byte data[] = new byte[300];
-            try {
-                while(fis.read(data) > -1) {
-                    // At this point, the application can pass the raw data to a parser that
-                    // has implemented the IEEE 11073-xxxxx specifications.  Instead, this sample
-                    // simply indicates that some data has been received.                	
-                	if (data[0] != (byte) 0x00)
-                	{
-                		String test = byte2hex(data);
-                		Log.i(TAG, test);
-	                	if(data[0] == (byte) 0xE2){
-	                		Log.i(TAG, "E2");
-	                		//data_AR
-	                		count = 1;
-	                		(new WriteThread(mFd)).start();
-	                		try {
-								sleep(100);
-							} catch (InterruptedException e) {
-								e.printStackTrace();
-							}
-	                		count = 2;
-	                		(new WriteThread(mFd)).start();
-	                	}
-	                	else if (data[0] == (byte)0xE7){
-	                		Log.i(TAG, "E7");
-	                		
-	                		//work for legacy device...
-	                		if (data[18] == (byte) 0x0d && data[19] == (byte) 0x1d)  //fixed report
-	                		{
-	                			count = 3; 
-	                			//set invoke id so get correct response
-	                			invoke = new byte[] { data[6], data[7] };
-	                			//write back response
-	                			(new WriteThread(mFd)).start();		
-	                			//parse data!!
-	                			int length = data[21];
-	                			Log.i(TAG, "length is " + length);
-	                			// check data-req-id 
-//                				int report_no = data[22+3];
-                				int number_of_data_packets = data[22+5];
-                				//packet_start starts from handle 0 byte
-	                			int packet_start = 30;
-	                			final int SYS_DIA_MAP_DATA = 1;
-	                			final int PULSE_DATA = 2;
-	                			final int ERROR_CODE_DATA = 3;
-                				for (int i = 0; i < number_of_data_packets; i++)
-	                			{
-                					int obj_handle = data[packet_start+1];
-                					switch (obj_handle)
-                					{
-                					case SYS_DIA_MAP_DATA:
-                						int sys = byteToUnsignedInt(data[packet_start+9]);
-                						int dia = byteToUnsignedInt(data[packet_start+11]);
-                						int map = byteToUnsignedInt(data[packet_start+13]);
-	                					//create team string... 9+13~9+20	
-	                					Log.i(TAG, "sys is "+ sys);
-	                					sendMessage(RECEIVED_SYS, sys);
-	                					Log.i(TAG, "dia is "+ dia);
-	                					sendMessage(RECEIVED_DIA, dia);
-	                					Log.i(TAG, "map is "+ map);
-	                					//test
-//	                					sendMessage(RECEIVED_MAP, map);
-                						break;
-                					case PULSE_DATA:
-                						//parse
-                						int pulse = byteToUnsignedInt(data[packet_start+5]);
-                						Log.i(TAG, "pulse is " + pulse);
-                						sendMessage(RECEIVED_PUL, pulse);
-                						break;
-                					case ERROR_CODE_DATA:
-                						//need more signal
-                						break;
-                					}
-                					packet_start += 4 + data[packet_start+3];	//4 = ignore beginning four bytes
-	                			}	                			
-	                		}
-	                		else
-	                		{
-	                			count = 2;
-	                		}
-	                	}
-	                	else if (data[0] == (byte) 0xE4)
-	                	{
-	                		count = 4;
-	                		(new WriteThread(mFd)).start();
-//	                		sendMessage();
-	                	}
-	                	//zero out the data
-	                    for (int i = 0; i < data.length; i++){
-	                    	data[i] = (byte) 0x00;
-	                    }
-                	}
-                    sendMessage(STATUS_READ_DATA, 0);
-                }
-            } catch(IOException ioe) {}
-            if (mFd != null) {
+        public void onApduReceived(ManagerSession session, ByteBuffer apdu) {
+            if (mReadingNotified.compareAndSet(false, true)) {
+                sendMessage(STATUS_READ_DATA, 0);
+            }
+        }
+
+        public void onMalformedApdu(ManagerSession session, MalformedApduException e) {
+            Log.w(TAG, "Dropping malformed APDU: " + e.getMessage());
+        }
+
+        // A batch that cannot be journalled is refused, so the agent keeps it and sends it again.
+        public boolean onMeasurements(ManagerSession session, MeasurementBatch batch) {
+            if (mReadings != null) {
                 try {
-                    mFd.close();
-                } catch (IOException e) { /* Do nothing. */ }
-            }	
-            sendMessage(STATUS_READ_DATA_DONE, 0);
+                    mReadings.append(batch);
+                    mUploader.wake();
+                } catch (IOException e) {
+                    Log.w(TAG, "Journal append failed: " + e.getMessage());
+                    return false;
+                }
+            }
+            synchronized (mPending) {
+                if (mPending.size() == 0) {
+                    mDeliveryHandler.postDelayed(mDeliverPending, DELIVERY_WINDOW_MS);
+                }
+                mPending.addAll(batch);
+            }
+            return true;
         }
-    }
-    
-    
-    private class WriteThread extends Thread {
-        private ParcelFileDescriptor mFd;
 
-        public WriteThread(ParcelFileDescriptor fd) {
-            super();
-            mFd = fd;
+        public void onClosed(ManagerSession session) {
+            mDeliveryHandler.removeCallbacks(mDeliverPending);
+            mDeliveryHandler.post(mDeliverPending);
+            mReadingNotified.set(false);
+            sendMessage(STATUS_READ_DATA_DONE, 0);
         }
+    };
 
-        @Override
+    // Hands everything collected during the delivery window to the clients in one batch.
+    private final Runnable mDeliverPending = new Runnable() {
         public void run() {
-        	FileOutputStream fos = new FileOutputStream(mFd.getFileDescriptor());
-//            FileInputStream fis = new FileInputStream(mFd.getFileDescriptor());
-//        	Association Response [0xE300]
-            final byte data_AR[] = new byte[] {			(byte) 0xE3, (byte) 0x00,
-            											(byte) 0x00, (byte) 0x2C, 
-			            								(byte) 0x00, (byte) 0x00,
-			            								(byte) 0x50, (byte) 0x79,
-			            								(byte) 0x00, (byte) 0x26,
-			            								(byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-			            								(byte) 0x80, (byte) 0x00,
-			            								(byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-			            								(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-			            								(byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-			            								(byte) 0x00, (byte) 0x08,  //bt add for phone, can be automate in the future
-			            								(byte) 0x3C, (byte) 0x5A, (byte) 0x37, (byte) 0xFF, 
-			            								(byte) 0xFE, (byte) 0x95, (byte) 0xEE, (byte) 0xE3,
-			            								(byte) 0x00, (byte) 0x00,
-			            								(byte) 0x00, (byte) 0x00,
-			            								(byte) 0x00, (byte) 0x00, 
-			            								(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
-//          Presentation APDU [0xE700]
-            final byte data_DR[] = new byte[] { 		(byte) 0xE7, (byte) 0x00,
-            											(byte) 0x00, (byte) 0x12,
-            											(byte) 0x00, (byte) 0x10,
-            											(byte) invoke[0], (byte) invoke[1],
-            											(byte) 0x02, (byte) 0x01,
-            											(byte) 0x00, (byte) 0x0A,
-            											(byte) 0x00, (byte) 0x00,
-            											(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-            											(byte) 0x0D, (byte) 0x1D,
-            											(byte) 0x00, (byte) 0x00 };
-            
-            final byte get_MDS[] = new byte[] { 	    (byte) 0xE7, (byte) 0x00,
-														(byte) 0x00, (byte) 0x0E,
-														(byte) 0x00, (byte) 0x0C,
-														(byte) 0x00, (byte) 0x24,
-														(byte) 0x01, (byte) 0x03,
-														(byte) 0x00, (byte) 0x06,
-														(byte) 0x00, (byte) 0x00,
-														(byte) 0x00, (byte) 0x00,
-														(byte) 0x00, (byte) 0x00 };
-									            
-            final byte data_RR[] = new byte[] {			(byte) 0xE5, (byte) 0x00,
-            											(byte) 0x00, (byte) 0x02,
-            											(byte) 0x00, (byte) 0x00 };
-            
-            final byte data_RRQ[] = new byte[] {		(byte) 0xE4, (byte) 0x00,
-            											(byte) 0x00, (byte) 0x02,
-            											(byte) 0x00, (byte) 0x00 };
-            
-            final byte data_ABORT[] = new byte[] {		(byte) 0xE6, (byte) 0x00,
-														(byte) 0x00, (byte) 0x02,
-														(byte) 0x00, (byte) 0x00 };
-            try {
-            	Log.i(TAG, String.valueOf(count));
-            	if (count == 1)
-            	{
-            		fos.write(data_AR);
-                    Log.i(TAG, "Association Responsed!");
-            	}  
-            	else if (count == 2)
-            	{
-            		fos.write(get_MDS);
-            		Log.i(TAG, "Get MDS object attributes!");
-//            		fos.write(data_ABORT);
-            	}
-            	else if (count == 3) 
-            	{
-            		fos.write(data_DR);
-                    Log.i(TAG, "Data Responsed!");
-            	}
-            	else if (count == 4)
-            	{
-            		fos.write(data_RR);
-            		Log.i(TAG, "Data Released!");
-            	}
-            } catch(IOException ioe) {}
+            synchronized (mPending) {
+                if (mPending.size() == 0) {
+                    return;
+                }
+                mClients.publishMeasurements(mPending);
+                mPending.clear();
+            }
         }
+    };
+
+    private static Bundle toBundle(MeasurementBatch batch) {
+        Bundle data = new Bundle();
+        data.putStringArray(EXTRA_DEVICES, batch.copyDevices());
+        data.putIntArray(EXTRA_DEVICE_INDEXES, batch.copyDeviceIndexes());
+        data.putIntArray(EXTRA_METRICS, batch.copyMetrics());
+        data.putFloatArray(EXTRA_VALUES, batch.copyValues());
+        data.putIntArray(EXTRA_UNITS, batch.copyUnits());
+        data.putLongArray(EXTRA_TIMES, batch.copyTimes());
+        data.putLongArray(EXTRA_DEVICE_TIMES, batch.copyDeviceTimes());
+        return data;
     }
-    
-    
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-capacity lock-free queue for any number of producers and consumers.
+ *
+ * This is the array queue of Dmitry Vyukov: each slot carries a sequence number that tells
+ * producers whether the slot is free for position {@code p} and consumers whether it holds the
+ * element of position {@code p}.  Producers and consumers each claim a position with one CAS,
+ * so neither side ever blocks the other, and {@link #offer(Object)} simply fails when the
+ * queue is full.  Nothing is allocated after construction.
+ */
+final class BoundedQueue<E> {
+    private final AtomicReferenceArray<E> mItems;
+    private final AtomicLongArray mSequence;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+
+    /** @param capacity rounded up to a power of two. */
+    BoundedQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mItems = new AtomicReferenceArray<E>(size);
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /** Adds {@code e} at the tail.  Returns false, leaving the queue unchanged, if it is full. */
+    boolean offer(E e) {
+        while (true) {
+            long pos = mTail.get();
+            int slot = (int) pos & mMask;
+            long diff = mSequence.get(slot) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mItems.set(slot, e);
+                    mSequence.set(slot, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            // Another producer claimed the position; try the next one.
+        }
+    }
+
+    /** Removes the head, or returns null if the queue is empty. */
+    E poll() {
+        while (true) {
+            long pos = mHead.get();
+            int slot = (int) pos & mMask;
+            long diff = mSequence.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    E e = mItems.get(slot);
+                    mItems.set(slot, null);
+                    mSequence.set(slot, pos + mMask + 1);
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    /** Approximate number of elements; exact when no offer or poll is in progress. */
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mMask + 1));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
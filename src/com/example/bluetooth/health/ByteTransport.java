@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The outgoing half of the byte stream between the manager and one agent: a Bluetooth health
+ * channel, a pipe, or a TCP connection tunnelling the agent.
+ *
+ * Nothing here is Android or transport specific.  Incoming bytes are pushed into the
+ * {@link ManagerSession} by whoever owns the transport, either a blocking reader
+ * ({@link ManagerSession#run(java.io.InputStream)}) or a selector
+ * ({@link ManagerSession#receive}); the session itself only writes and closes.
+ */
+interface ByteTransport extends Closeable {
+    /**
+     * Writes {@code len} bytes, blocking or buffering as the transport needs.  Called by one
+     * thread at a time.
+     */
+    void write(byte[] b, int off, int len) throws IOException;
+}
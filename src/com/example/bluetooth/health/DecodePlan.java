@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * How to decode the fixed scan reports of one device configuration.
+ *
+ * A configuration report is compiled once into a list of reads per object handle: for each
+ * value in the object's attribute-value-map, its kind (SFLOAT, FLOAT or an enumeration), its
+ * offset in the observation and the metric and unit it reports.  Decoding an entry is then a
+ * lookup of its handle and a straight run over those reads; layout is never re-derived per
+ * report.  An object whose map includes an absolute time stamp has its offset recorded too;
+ * the time stamp is decoded once per entry and, corrected by the agent's clock offset, given
+ * to every value read from the entry.
+ *
+ * The stored entries of a PM-segment are decoded the same way: the segment's entry map is
+ * compiled into one run of reads at fixed offsets in each entry, see
+ * {@link #compileSegment(Apdu.AttributeList, DecodePlan)}.
+ *
+ * Plans are immutable and shared between sessions.  Plans of the standard configurations come
+ * with their {@link Specialization}; compiled plans are cached per agent by
+ * {@link AgentCache}.
+ */
+final class DecodePlan {
+    static final int KIND_SFLOAT = 1;
+    static final int KIND_FLOAT = 2;
+    /** A 16-bit enumeration: an OID or a basic bit string. */
+    static final int KIND_U16 = 3;
+    /** A 32-bit simple bit string. */
+    static final int KIND_U32 = 4;
+
+    // SegmEntryHeader bits.
+    private static final int SEG_ELEM_HDR_ABSOLUTE_TIME = 0x8000;
+    private static final int SEG_ELEM_HDR_RELATIVE_TIME = 0x4000;
+    private static final int SEG_ELEM_HDR_HIRES_RELATIVE_TIME = 0x2000;
+
+    // Sorted object handles; reads of mHandles[i] are mStart[i] until mStart[i + 1].
+    private final int[] mHandles;
+    private final int[] mStart;
+    // Offset of the AbsoluteTime of each object, or -1 if it has none.
+    private final int[] mTime;
+    // One column per read field.
+    private final int[] mKind;
+    private final int[] mOffset;
+    private final int[] mMetric;
+    private final int[] mUnit;
+    // Handles of the configuration's PM-stores.
+    private final int[] mPmStores;
+    // Length of a PM-segment entry, for the plan of a segment; 0 otherwise.
+    private final int mEntryLength;
+
+    private DecodePlan(int[] handles, int[] start, int[] time, int[] kind, int[] offset,
+            int[] metric, int[] unit, int[] pmStores, int entryLength) {
+        mHandles = handles;
+        mStart = start;
+        mTime = time;
+        mKind = kind;
+        mOffset = offset;
+        mMetric = metric;
+        mUnit = unit;
+        mPmStores = pmStores;
+        mEntryLength = entryLength;
+    }
+
+    int pmStoreCount() {
+        return mPmStores.length;
+    }
+
+    /** Handle of the configuration's {@code i}th PM-store. */
+    int pmStore(int i) {
+        return mPmStores[i];
+    }
+
+    /**
+     * Decodes every entry of {@code fixed} into {@code out}.  Entries of objects without
+     * numeric values are skipped.
+     *
+     * @param clockOffset added to the agent's time stamps to make them epoch milliseconds.
+     * @return the number of observations added.
+     */
+    int decode(Apdu.ScanReportFixed fixed, String device, long time, long clockOffset,
+            MeasurementBatch out) throws MalformedApduException {
+        int added = 0;
+        while (fixed.next()) {
+            int i = Arrays.binarySearch(mHandles, fixed.handle());
+            if (i < 0) {
+                continue;
+            }
+            long deviceTime = mTime[i] < 0 ? AbsoluteTime.UNKNOWN
+                    : fixed.valueAbsoluteTime(mTime[i]);
+            if (deviceTime != AbsoluteTime.UNKNOWN) {
+                deviceTime += clockOffset;
+            }
+            for (int read = mStart[i]; read < mStart[i + 1]; read++) {
+                float value;
+                switch (mKind[read]) {
+                    case KIND_SFLOAT:
+                        value = fixed.valueSfloat(mOffset[read]);
+                        break;
+                    case KIND_FLOAT:
+                        value = fixed.valueFloat(mOffset[read]);
+                        break;
+                    case KIND_U16:
+                        value = fixed.valueU16(mOffset[read]);
+                        break;
+                    default:
+                        value = fixed.valueU32(mOffset[read]);
+                        break;
+                }
+                out.add(device, mMetric[read], value, mUnit[read], deviceTime, time);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Decodes every entry of a segment's {@code data} into {@code out}, for the plan of that
+     * segment.
+     *
+     * @param clockOffset added to the agent's time stamps to make them epoch milliseconds.
+     * @return the number of observations added.
+     */
+    int decode(Apdu.SegmentData data, String device, long time, long clockOffset,
+            MeasurementBatch out) throws MalformedApduException {
+        if (mHandles.length == 0) {
+            return 0;
+        }
+        int added = 0;
+        while (data.next(mEntryLength)) {
+            long deviceTime = mTime[0] < 0 ? AbsoluteTime.UNKNOWN
+                    : data.valueAbsoluteTime(mTime[0]);
+            if (deviceTime != AbsoluteTime.UNKNOWN) {
+                deviceTime += clockOffset;
+            }
+            for (int read = mStart[0]; read < mStart[1]; read++) {
+                float value;
+                switch (mKind[read]) {
+                    case KIND_SFLOAT:
+                        value = data.valueSfloat(mOffset[read]);
+                        break;
+                    case KIND_FLOAT:
+                        value = data.valueFloat(mOffset[read]);
+                        break;
+                    case KIND_U16:
+                        value = data.valueU16(mOffset[read]);
+                        break;
+                    default:
+                        value = data.valueU32(mOffset[read]);
+                        break;
+                }
+                out.add(device, mMetric[read], value, mUnit[read], deviceTime, time);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Compiles the numeric and enumeration objects of a configuration report.  Objects of other
+     * classes are skipped, and attribute-value-map entries that are not values of the object's
+     * class only contribute their length.  The handles of PM-stores are kept for
+     * {@link #pmStore(int)}.
+     */
+    static DecodePlan compile(Apdu.ConfigReport config) throws MalformedApduException {
+        Builder builder = new Builder();
+        while (config.nextObject()) {
+            int objClass = config.objClass();
+            if (objClass == Mdc.MDC_MOC_VMO_PMSTORE) {
+                builder.pmStore(config.objHandle());
+                continue;
+            }
+            if (objClass != Mdc.MDC_MOC_VMO_METRIC_NU
+                    && objClass != Mdc.MDC_MOC_VMO_METRIC_ENUM) {
+                continue;
+            }
+            int type = 0;
+            int unit = Mdc.MDC_DIM_DIMLESS;
+            int[] physio = null;
+            int[] mapIds = null;
+            int[] mapLengths = null;
+            while (config.nextAttribute()) {
+                switch (config.attributeId()) {
+                    case Mdc.MDC_ATTR_ID_TYPE:
+                        // TYPE: partition, code.
+                        type = config.attributeU16(2);
+                        break;
+                    case Mdc.MDC_ATTR_UNIT_CODE:
+                        unit = config.attributeU16(0);
+                        break;
+                    case Mdc.MDC_ATTR_ID_PHYSIO_LIST:
+                        physio = new int[config.attributeU16(0)];
+                        for (int i = 0; i < physio.length; i++) {
+                            physio[i] = config.attributeU16(4 + 2 * i);
+                        }
+                        break;
+                    case Mdc.MDC_ATTR_ATTRIBUTE_VAL_MAP:
+                        int n = config.attributeU16(0);
+                        mapIds = new int[n];
+                        mapLengths = new int[n];
+                        for (int i = 0; i < n; i++) {
+                            mapIds[i] = config.attributeU16(4 + 4 * i);
+                            mapLengths[i] = config.attributeU16(6 + 4 * i);
+                        }
+                        break;
+                }
+            }
+            if (mapIds == null) {
+                // Values of objects without a map never appear in fixed scan reports.
+                continue;
+            }
+            builder.object(config.objHandle());
+            int off = 0;
+            for (int i = 0; i < mapIds.length; i++) {
+                if (mapIds[i] == Mdc.MDC_ATTR_TIME_STAMP_ABS) {
+                    builder.time(off);
+                } else if (objClass == Mdc.MDC_MOC_VMO_METRIC_NU) {
+                    numeric(builder, mapIds[i], mapLengths[i], off, type, unit, physio);
+                } else {
+                    enumeration(builder, mapIds[i], off, type);
+                }
+                off += mapLengths[i];
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Compiles the PmSegmentEntryMap of a segment, the current attribute of {@code map}, into
+     * the plan of its entries.  Units and the components of compound values come from
+     * {@code config}, the plan of the configuration that defines the mapped objects.
+     */
+    static DecodePlan compileSegment(Apdu.AttributeList map, DecodePlan config)
+            throws MalformedApduException {
+        Builder builder = new Builder().object(0);
+        // SegmEntryHeader: which time stamps precede the elements of each entry.
+        int header = map.valueU16(0);
+        int off = 0;
+        if ((header & SEG_ELEM_HDR_ABSOLUTE_TIME) != 0) {
+            builder.time(0);
+            off += 8;
+        }
+        if ((header & SEG_ELEM_HDR_RELATIVE_TIME) != 0) {
+            off += 4;
+        }
+        if ((header & SEG_ELEM_HDR_HIRES_RELATIVE_TIME) != 0) {
+            off += 8;
+        }
+        // SegmEntryElemList: class-id, TYPE, handle and AttrValMap of each element.
+        int elements = map.valueU16(2);
+        int elem = 6;
+        for (int e = 0; e < elements; e++) {
+            int objClass = map.valueU16(elem);
+            int type = map.valueU16(elem + 4);
+            int handle = map.valueU16(elem + 6);
+            int n = map.valueU16(elem + 8);
+            int unit = config.unit(handle);
+            int[] physio = config.metrics(handle);
+            for (int i = 0; i < n; i++) {
+                int id = map.valueU16(elem + 12 + 4 * i);
+                int length = map.valueU16(elem + 14 + 4 * i);
+                if (id == Mdc.MDC_ATTR_TIME_STAMP_ABS) {
+                    // An element's own time stamp, for entries without a common one.
+                    builder.time(off);
+                } else if (objClass == Mdc.MDC_MOC_VMO_METRIC_NU) {
+                    numeric(builder, id, length, off, type, unit, physio);
+                } else if (objClass == Mdc.MDC_MOC_VMO_METRIC_ENUM) {
+                    enumeration(builder, id, off, type);
+                }
+                off += length;
+            }
+            elem += 12 + map.valueU16(elem + 10);
+        }
+        return builder.entryLength(off).build();
+    }
+
+    // Unit of the values of object handle, or dimensionless if it has none.
+    private int unit(int handle) {
+        int i = Arrays.binarySearch(mHandles, handle);
+        return i >= 0 && mStart[i] < mStart[i + 1] ? mUnit[mStart[i]] : Mdc.MDC_DIM_DIMLESS;
+    }
+
+    // Metric of each value of object handle, i.e. the components of a compound value.
+    private int[] metrics(int handle) {
+        int i = Arrays.binarySearch(mHandles, handle);
+        return i >= 0 ? Arrays.copyOfRange(mMetric, mStart[i], mStart[i + 1]) : null;
+    }
+
+    private static void numeric(Builder builder, int id, int length, int off, int type, int unit,
+            int[] physio) {
+        switch (id) {
+            case Mdc.MDC_ATTR_NU_VAL_OBS_BASIC:
+                builder.read(KIND_SFLOAT, off, type, unit);
+                break;
+            case Mdc.MDC_ATTR_NU_VAL_OBS_SIMP:
+                builder.read(KIND_FLOAT, off, type, unit);
+                break;
+            case Mdc.MDC_ATTR_NU_VAL_OBS:
+                // NuObsValue: metric-id, state, unit-code, value.
+                builder.read(KIND_FLOAT, off + 6, type, unit);
+                break;
+            case Mdc.MDC_ATTR_NU_CMPD_VAL_OBS_BASIC:
+                // Count and length, then one SFLOAT per component.
+                for (int c = 0; c < (length - 4) / 2; c++) {
+                    builder.read(KIND_SFLOAT, off + 4 + 2 * c, component(physio, c, type), unit);
+                }
+                break;
+            case Mdc.MDC_ATTR_NU_CMPD_VAL_OBS_SIMP:
+                for (int c = 0; c < (length - 4) / 4; c++) {
+                    builder.read(KIND_FLOAT, off + 4 + 4 * c, component(physio, c, type), unit);
+                }
+                break;
+            case Mdc.MDC_ATTR_NU_CMPD_VAL_OBS:
+                for (int c = 0; c < (length - 4) / 10; c++) {
+                    builder.read(KIND_FLOAT, off + 4 + 10 * c + 6, component(physio, c, type),
+                            unit);
+                }
+                break;
+        }
+    }
+
+    // Enumerations are reported as the OID or bit string value, without a unit.
+    private static void enumeration(Builder builder, int id, int off, int type) {
+        switch (id) {
+            case Mdc.MDC_ATTR_ENUM_OBS_VAL_SIMP_OID:
+            case Mdc.MDC_ATTR_ENUM_OBS_VAL_BASIC_BIT_STR:
+                builder.read(KIND_U16, off, type, Mdc.MDC_DIM_DIMLESS);
+                break;
+            case Mdc.MDC_ATTR_ENUM_OBS_VAL_SIMP_BIT_STR:
+                builder.read(KIND_U32, off, type, Mdc.MDC_DIM_DIMLESS);
+                break;
+        }
+    }
+
+    private static int component(int[] physio, int c, int type) {
+        return physio != null && c < physio.length ? physio[c] : type;
+    }
+
+    /** Collects reads object by object and flattens them into a plan. */
+    static final class Builder {
+        // Handle, time stamp offset, then kind, offset, metric and unit of each read.
+        private final ArrayList<int[]> mObjects = new ArrayList<int[]>();
+        private int[] mCurrent;
+        private int[] mPmStores = new int[0];
+        private int mEntryLength;
+
+        /** Starts the reads of object {@code handle}. */
+        Builder object(int handle) {
+            mCurrent = new int[] { handle, -1 };
+            mObjects.add(mCurrent);
+            return this;
+        }
+
+        /** Sets the offset of the current object's AbsoluteTime; the first one set is kept. */
+        Builder time(int offset) {
+            if (mCurrent[1] < 0) {
+                mCurrent[1] = offset;
+            }
+            return this;
+        }
+
+        Builder read(int kind, int offset, int metric, int unit) {
+            int n = mCurrent.length;
+            int[] grown = new int[n + 4];
+            System.arraycopy(mCurrent, 0, grown, 0, n);
+            grown[n] = kind;
+            grown[n + 1] = offset;
+            grown[n + 2] = metric;
+            grown[n + 3] = unit;
+            mObjects.set(mObjects.size() - 1, grown);
+            mCurrent = grown;
+            return this;
+        }
+
+        Builder pmStore(int handle) {
+            mPmStores = Arrays.copyOf(mPmStores, mPmStores.length + 1);
+            mPmStores[mPmStores.length - 1] = handle;
+            return this;
+        }
+
+        Builder entryLength(int length) {
+            mEntryLength = length;
+            return this;
+        }
+
+        DecodePlan build() {
+            int[][] objects = mObjects.toArray(new int[mObjects.size()][]);
+            Arrays.sort(objects, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+                }
+            });
+            int reads = 0;
+            for (int[] object : objects) {
+                reads += (object.length - 2) / 4;
+            }
+            int[] handles = new int[objects.length];
+            int[] start = new int[objects.length + 1];
+            int[] time = new int[objects.length];
+            int[] kind = new int[reads];
+            int[] offset = new int[reads];
+            int[] metric = new int[reads];
+            int[] unit = new int[reads];
+            int r = 0;
+            for (int i = 0; i < objects.length; i++) {
+                handles[i] = objects[i][0];
+                start[i] = r;
+                time[i] = objects[i][1];
+                for (int k = 2; k < objects[i].length; k += 4, r++) {
+                    kind[r] = objects[i][k];
+                    offset[r] = objects[i][k + 1];
+                    metric[r] = objects[i][k + 2];
+                    unit[r] = objects[i][k + 3];
+                }
+            }
+            start[objects.length] = r;
+            return new DecodePlan(handles, start, time, kind, offset, metric, unit, mPmStores,
+                    mEntryLength);
+        }
+    }
+}
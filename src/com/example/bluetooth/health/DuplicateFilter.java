@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.Arrays;
+
+/**
+ * Drops observations an agent has sent before, e.g. stored measurements sent again after a lost
+ * confirmation or a reconnect, so they are not delivered, stored or uploaded twice.
+ *
+ * An observation is identified by the agent's system-id, its metric code (which names one
+ * object, or one component of a compound object, of the agent's configuration), its time stamp
+ * and its value, hashed into 64 bits.  The time stamp is the agent's own, before its clock
+ * offset is added, so a reading sent again after the offset was measured anew still matches.
+ * Only observations the device time-stamped are filtered: without a time stamp, a value
+ * repeated by the agent cannot be told from a new one.
+ *
+ * Checking and remembering are separate steps, so an observation is only remembered once it has
+ * been delivered; one that could not be delivered gets through when the agent sends it again.
+ *
+ * The last {@code recent} keys are kept exactly, in an open-addressing hash set of longs with a
+ * ring of the keys in arrival order for eviction.  Evicted keys move to a Bloom filter of two
+ * generations of {@code older} keys each; when the newer generation is full, the older one is
+ * cleared and takes its place.  Memory is fixed at construction, every check is a few array
+ * accesses without allocation, and a new observation is taken for a duplicate with a
+ * probability of about 1e-5 (at 32 bits and 8 hashes per key) once it has left the exact set.
+ */
+final class DuplicateFilter {
+    /** Keys kept exactly; 384 KB. */
+    static final int DEFAULT_RECENT = 1 << 14;
+    /** Keys per Bloom generation; 256 KB each. */
+    static final int DEFAULT_OLDER = 1 << 16;
+
+    private static final int BITS_PER_KEY = 32;
+    private static final int HASHES = 8;
+    // Marks a free slot; no key hashes to it.
+    private static final long EMPTY = 0;
+
+    // Exact set, at most half full.
+    private final long[] mSlots;
+    private final int mMask;
+    // The keys of mSlots, oldest at mHead.
+    private final long[] mRing;
+    private int mHead;
+    private int mCount;
+    // Bloom generations, the current one taking evicted keys.
+    private final long[][] mBloom = new long[2][];
+    private final int mBloomMask;
+    private final int mBloomCapacity;
+    private int mCurrent;
+    private int mBloomCount;
+
+    /**
+     * @param recent keys kept exactly.
+     * @param older keys per Bloom generation; rounded up to a power of two.
+     */
+    DuplicateFilter(int recent, int older) {
+        mSlots = new long[Integer.highestOneBit(Math.max(2, recent) * 2 - 1) * 2];
+        mMask = mSlots.length - 1;
+        mRing = new long[recent];
+        int bits = Integer.highestOneBit(Math.max(64, older * BITS_PER_KEY) - 1) * 2;
+        mBloom[0] = new long[bits >>> 6];
+        mBloom[1] = new long[bits >>> 6];
+        mBloomMask = bits - 1;
+        mBloomCapacity = bits / BITS_PER_KEY;
+    }
+
+    /**
+     * Removes from {@code batch} the observations remembered before, keeping the order of the
+     * rest.
+     *
+     * @param clockOffset the offset the batch's device times were decoded with.
+     * @return the number of observations removed.
+     */
+    synchronized int filter(long systemId, long clockOffset, MeasurementBatch batch) {
+        int size = batch.size();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            long deviceTime = batch.deviceTime(i);
+            if (deviceTime == AbsoluteTime.UNKNOWN || !contains(key(systemId, batch.metric(i),
+                    deviceTime - clockOffset, batch.value(i)))) {
+                if (kept != i) {
+                    batch.move(i, kept);
+                }
+                kept++;
+            }
+        }
+        batch.truncate(kept);
+        return size - kept;
+    }
+
+    /** Remembers the time-stamped observations of {@code batch}, once it has been delivered. */
+    synchronized void remember(long systemId, long clockOffset, MeasurementBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            long deviceTime = batch.deviceTime(i);
+            if (deviceTime != AbsoluteTime.UNKNOWN) {
+                add(key(systemId, batch.metric(i), deviceTime - clockOffset, batch.value(i)));
+            }
+        }
+    }
+
+    /** Keys currently known exactly. */
+    synchronized int recent() {
+        return mCount;
+    }
+
+    private boolean contains(long key) {
+        return mSlots[find(key)] == key || bloomContains(key);
+    }
+
+    // Remembers key; returns false if it was known already.
+    private boolean add(long key) {
+        int slot = find(key);
+        if (mSlots[slot] == key || bloomContains(key)) {
+            return false;
+        }
+        if (mCount == mRing.length) {
+            long oldest = mRing[mHead];
+            remove(oldest);
+            bloomAdd(oldest);
+            // The oldest key's ring entry is reused for the new one.
+            mRing[mHead] = key;
+            mHead = (mHead + 1) % mRing.length;
+            // The removal may have shifted the free slot found above.
+            slot = find(key);
+        } else {
+            mRing[(mHead + mCount) % mRing.length] = key;
+            mCount++;
+        }
+        mSlots[slot] = key;
+        return true;
+    }
+
+    // The slot holding key, or the free slot ending its probe sequence.
+    private int find(long key) {
+        int slot = (int) key & mMask;
+        long k;
+        while ((k = mSlots[slot]) != EMPTY && k != key) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    // Linear probing deletion: moves later keys of the cluster back into the hole, so no probe
+    // sequence is broken.
+    private void remove(long key) {
+        int hole = find(key);
+        int slot = hole;
+        long k;
+        while ((k = mSlots[slot = (slot + 1) & mMask]) != EMPTY) {
+            int home = (int) k & mMask;
+            // k may fill the hole unless its home lies cyclically in (hole, slot].
+            boolean reachable = hole <= slot ? (home > hole && home <= slot)
+                    : (home > hole || home <= slot);
+            if (!reachable) {
+                mSlots[hole] = k;
+                hole = slot;
+            }
+        }
+        mSlots[hole] = EMPTY;
+    }
+
+    private boolean bloomContains(long key) {
+        return bloomContains(mBloom[0], key) || bloomContains(mBloom[1], key);
+    }
+
+    private boolean bloomContains(long[] bits, long key) {
+        int h = (int) key;
+        int step = (int) (key >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++, h += step) {
+            int bit = h & mBloomMask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void bloomAdd(long key) {
+        if (mBloomCount == mBloomCapacity) {
+            mCurrent ^= 1;
+            Arrays.fill(mBloom[mCurrent], 0);
+            mBloomCount = 0;
+        }
+        long[] bits = mBloom[mCurrent];
+        int h = (int) key;
+        int step = (int) (key >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++, h += step) {
+            int bit = h & mBloomMask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        mBloomCount++;
+    }
+
+    // localTime is the agent's time stamp in AbsoluteTime local milliseconds.
+    static long key(long systemId, int metric, long localTime, float value) {
+        long h = mix(systemId);
+        h = mix(h ^ ((long) metric << 32 | (Float.floatToIntBits(value) & 0xffffffffL)));
+        h = mix(h ^ localTime);
+        return h != EMPTY ? h : 1;
+    }
+
+    // The MurmurHash3 finalizer.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts upload batches to an HTTP(S) endpoint: the body as is, with the headers
+ *
+ * <pre>
+ *   Content-Type: application/x-ndjson
+ *   Content-Encoding: gzip
+ *   Idempotency-Key: the batch's key
+ * </pre>
+ *
+ * Responses are read to the end, so the connection can be kept alive for the next batch.
+ */
+final class HttpTransport implements ReadingUploader.Transport {
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private final URL mUrl;
+    private final byte[] mDrain = new byte[1024];
+
+    HttpTransport(URL url) {
+        mUrl = url;
+    }
+
+    public int upload(String key, byte[] body, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        connection.setRequestProperty("Idempotency-Key", key);
+        try {
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body, 0, length);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ?
+                    connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try {
+                    while (in.read(mDrain) >= 0) {
+                        // Discard.
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Query path over a {@link MeasurementJournal}.
+ *
+ * The journal is split into blocks of {@link #BLOCK_RECORDS} consecutive records.  For every
+ * segment the index keeps a small summary: the devices and metrics that occur in it, and for
+ * each block its measurement-time range plus a bitmask of the devices and metrics it contains.
+ * A query checks the summaries and reads only the blocks that may hold a match.  Summaries of
+ * sealed segments are written next to the segment when it fills up ({@code .idx}, about 2 KB per
+ * segment) and loaded on first use; a missing one is rebuilt from its segment.  The summary of
+ * the segment being appended to is kept up to date in memory.
+ *
+ * Complete blocks never change, so decoded blocks are kept in a small LRU cache; repeated
+ * dashboard queries over recent data are served without touching the journal.
+ *
+ * Bulk reads such as exports go through {@link #scan}, which visits matches one at a time from
+ * a caller-owned block and takes the lock one block at a time, so a scan of years of history
+ * neither evicts the cache nor holds up appends.
+ *
+ * Time ranges select by measurement time: the device time where the agent stamped a reading,
+ * else the time it was received.  A stored backlog downloaded today thus lands on the days it
+ * was measured.
+ *
+ * All appends should go through the index so the summaries stay in step with the journal.
+ */
+final class JournalIndex {
+    static final int BLOCK_RECORDS = 256;
+    static final int BLOCKS = MeasurementJournal.SEGMENT_RECORDS / BLOCK_RECORDS;
+    /** Decoded blocks kept in memory. */
+    static final int CACHED_BLOCKS = 64;
+    /** Most readings one query returns, about 128 KB in a reply Bundle. */
+    static final int MAX_RESULTS = 4096;
+    /** Returned by {@link #range} when no matching readings remain. */
+    static final long DONE = -1;
+
+    // Wildcards for queries.
+    static final long ANY_DEVICE = 0;
+    static final int ANY_METRIC = 0;
+
+    private static final int MAGIC = 0x48444932;  // "HDI2", by measurement time
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".idx";
+
+    /** Receives the readings of a {@link #scan}, one at a time. */
+    interface Visitor {
+        void visit(long device, int metric, float value, int unit, long deviceTime, long time)
+                throws IOException;
+    }
+
+    private final MeasurementJournal mJournal;
+    private final File mDir;
+    // Summaries by segment number; null until loaded.
+    private final ArrayList<Summary> mSummaries = new ArrayList<Summary>();
+    private final MeasurementJournal.Record mRecord = new MeasurementJournal.Record();
+    private final Map<Long, Block> mBlocks = new LinkedHashMap<Long, Block>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    JournalIndex(MeasurementJournal journal, File dir) throws IOException {
+        mJournal = journal;
+        mDir = dir;
+        int active = journal.segmentCount() - 1;
+        for (int i = 0; i < active; i++) {
+            mSummaries.add(null);
+        }
+        mSummaries.add(build(active));
+    }
+
+    /** Appends every observation of {@code batch} to the journal and indexes it. */
+    synchronized void append(MeasurementBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            long device = MeasurementJournal.parseAddress(batch.device(i));
+            long seq = mJournal.append(device, batch.metric(i), batch.value(i), batch.unit(i),
+                    batch.deviceTime(i), batch.time(i));
+            int segment = (int) (seq / MeasurementJournal.SEGMENT_RECORDS);
+            int offset = (int) (seq % MeasurementJournal.SEGMENT_RECORDS);
+            if (segment == mSummaries.size()) {
+                mSummaries.add(new Summary());
+            }
+            mSummaries.get(segment).add(offset, device, batch.metric(i),
+                    measured(batch.deviceTime(i), batch.time(i)));
+            if (offset == MeasurementJournal.SEGMENT_RECORDS - 1) {
+                mSummaries.get(segment).write(file(segment));
+            }
+        }
+    }
+
+    /**
+     * Adds the last {@code limit} readings of {@code device} (or of any device) for
+     * {@code metric} (or for any metric) to {@code out}, oldest first.  {@code limit} is
+     * clamped to {@link #MAX_RESULTS}.
+     *
+     * @return the number of readings added.
+     */
+    synchronized int latest(long device, int metric, int limit, MeasurementBatch out)
+            throws IOException {
+        long[] found = new long[Math.max(0, Math.min(limit, MAX_RESULTS))];
+        int n = 0;
+        search:
+        for (int segment = mSummaries.size() - 1; segment >= 0; segment--) {
+            Summary summary = summary(segment);
+            for (int b = BLOCKS - 1; b >= 0; b--) {
+                if (!summary.mayContain(b, device, metric, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    continue;
+                }
+                Block block = block(segment, b);
+                for (int i = block.count - 1; i >= 0; i--) {
+                    if (n == found.length) {
+                        break search;
+                    }
+                    if (block.matches(i, device, metric, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                        found[n++] = block.first + i;
+                    }
+                }
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            emit(found[i], out);
+        }
+        return n;
+    }
+
+    /**
+     * Adds the readings measured in [{@code from}, {@code to}) that match {@code device} and
+     * {@code metric} to {@code out}, in journal order, starting at journal record
+     * {@code cursor} and stopping after {@link #MAX_RESULTS} of them.
+     *
+     * @return the cursor to continue from, or {@link #DONE} if all matches were added.
+     */
+    synchronized long range(long from, long to, long device, int metric, long cursor,
+            MeasurementBatch out) throws IOException {
+        cursor = Math.max(0, cursor);
+        int n = 0;
+        for (int segment = (int) (cursor / MeasurementJournal.SEGMENT_RECORDS);
+                segment < mSummaries.size(); segment++) {
+            Summary summary = summary(segment);
+            for (int b = 0; b < BLOCKS; b++) {
+                long first = (long) segment * MeasurementJournal.SEGMENT_RECORDS
+                        + b * BLOCK_RECORDS;
+                if (first + BLOCK_RECORDS <= cursor
+                        || !summary.mayContain(b, device, metric, from, to)) {
+                    continue;
+                }
+                Block block = block(segment, b);
+                for (int i = (int) Math.max(0, cursor - first); i < block.count; i++) {
+                    if (block.matches(i, device, metric, from, to)) {
+                        if (n == MAX_RESULTS) {
+                            return first + i;
+                        }
+                        block.emit(i, out);
+                        n++;
+                    }
+                }
+            }
+        }
+        return DONE;
+    }
+
+    /**
+     * Visits every reading measured in [{@code from}, {@code to}) that matches {@code device}
+     * and {@code metric}, in journal order.  Readings appended during the scan may or may not
+     * be visited.
+     *
+     * @return the number of readings visited.
+     */
+    long scan(long from, long to, long device, int metric, Visitor visitor) throws IOException {
+        Block block = new Block(0);
+        long n = 0;
+        for (int segment = 0; ; segment++) {
+            for (int b = 0; b < BLOCKS; b++) {
+                synchronized (this) {
+                    if (segment >= mSummaries.size()) {
+                        return n;
+                    }
+                    if (!summary(segment).mayContain(b, device, metric, from, to)) {
+                        continue;
+                    }
+                    copyBlock(segment, b, block);
+                }
+                for (int i = 0; i < block.count; i++) {
+                    if (block.matches(i, device, metric, from, to)) {
+                        visitor.visit(block.device[i], block.metric[i], block.value[i],
+                                block.unit[i], block.deviceTime[i], block.time[i]);
+                        n++;
+                    }
+                }
+            }
+        }
+    }
+
+    // Fills a scratch block from the cache or the journal, leaving the cache as it is.
+    private void copyBlock(int segment, int b, Block into) throws IOException {
+        long first = (long) segment * MeasurementJournal.SEGMENT_RECORDS + b * BLOCK_RECORDS;
+        Block cached = mBlocks.get(first);
+        if (cached != null) {
+            into.copy(cached);
+        } else {
+            read(first, into);
+        }
+    }
+
+    private void emit(long seq, MeasurementBatch out) throws IOException {
+        int segment = (int) (seq / MeasurementJournal.SEGMENT_RECORDS);
+        int offset = (int) (seq % MeasurementJournal.SEGMENT_RECORDS);
+        block(segment, offset / BLOCK_RECORDS).emit(offset % BLOCK_RECORDS, out);
+    }
+
+    private Summary summary(int segment) throws IOException {
+        Summary summary = mSummaries.get(segment);
+        if (summary == null) {
+            File file = file(segment);
+            summary = file.exists() ? Summary.read(file) : null;
+            if (summary == null) {
+                summary = build(segment);
+                summary.write(file);
+            }
+            mSummaries.set(segment, summary);
+        }
+        return summary;
+    }
+
+    // Scans one segment of the journal; used for the active segment on open and to repair a
+    // missing summary file.
+    private Summary build(int segment) throws IOException {
+        Summary summary = new Summary();
+        long first = (long) segment * MeasurementJournal.SEGMENT_RECORDS;
+        long end = Math.min(mJournal.size(), first + MeasurementJournal.SEGMENT_RECORDS);
+        for (long seq = first; seq < end; seq++) {
+            mJournal.read(seq, mRecord);
+            summary.add((int) (seq - first), mRecord.device(), mRecord.metric(),
+                    measured(mRecord.deviceTime(), mRecord.time()));
+        }
+        return summary;
+    }
+
+    private Block block(int segment, int b) throws IOException {
+        long first = (long) segment * MeasurementJournal.SEGMENT_RECORDS + b * BLOCK_RECORDS;
+        Block block = mBlocks.get(first);
+        if (block != null) {
+            return block;
+        }
+        block = new Block(first);
+        read(first, block);
+        // Only complete blocks are immutable.
+        if (block.count == BLOCK_RECORDS) {
+            mBlocks.put(first, block);
+        }
+        return block;
+    }
+
+    private void read(long first, Block block) throws IOException {
+        int count = (int) Math.max(0, Math.min(BLOCK_RECORDS, mJournal.size() - first));
+        for (int i = 0; i < count; i++) {
+            mJournal.read(first + i, mRecord);
+            block.device[i] = mRecord.device();
+            block.deviceTime[i] = mRecord.deviceTime();
+            block.time[i] = mRecord.time();
+            block.metric[i] = mRecord.metric();
+            block.unit[i] = mRecord.unit();
+            block.value[i] = mRecord.value();
+        }
+        block.first = first;
+        block.count = count;
+    }
+
+    // The time a reading is indexed and queried by.
+    private static long measured(long deviceTime, long time) {
+        return deviceTime != AbsoluteTime.UNKNOWN ? deviceTime : time;
+    }
+
+    private File file(int segment) {
+        return new File(mDir, String.format("%s%08d%s", PREFIX, segment, SUFFIX));
+    }
+
+    /** Decoded columns of one block of records. */
+    private static final class Block {
+        long first;
+        final long[] device = new long[BLOCK_RECORDS];
+        final long[] deviceTime = new long[BLOCK_RECORDS];
+        final long[] time = new long[BLOCK_RECORDS];
+        final int[] metric = new int[BLOCK_RECORDS];
+        final int[] unit = new int[BLOCK_RECORDS];
+        final float[] value = new float[BLOCK_RECORDS];
+        int count;
+
+        Block(long first) {
+            this.first = first;
+        }
+
+        void copy(Block other) {
+            first = other.first;
+            count = other.count;
+            System.arraycopy(other.device, 0, device, 0, count);
+            System.arraycopy(other.deviceTime, 0, deviceTime, 0, count);
+            System.arraycopy(other.time, 0, time, 0, count);
+            System.arraycopy(other.metric, 0, metric, 0, count);
+            System.arraycopy(other.unit, 0, unit, 0, count);
+            System.arraycopy(other.value, 0, value, 0, count);
+        }
+
+        boolean matches(int i, long dev, int met, long from, long to) {
+            if ((dev != ANY_DEVICE && device[i] != dev)
+                    || (met != ANY_METRIC && metric[i] != met)) {
+                return false;
+            }
+            long t = measured(deviceTime[i], time[i]);
+            return t >= from && t < to;
+        }
+
+        void emit(int i, MeasurementBatch out) {
+            out.add(MeasurementJournal.formatAddress(device[i]), metric[i], value[i], unit[i],
+                    deviceTime[i], time[i]);
+        }
+    }
+
+    /**
+     * Per-segment summary.  Devices and metrics are numbered in order of appearance; the first
+     * 63 of each get a bit in the per-block masks, and bit 63 stands for "any of the others".
+     */
+    private static final class Summary {
+        private static final int MASK_BITS = 63;
+        private static final long OVERFLOW = 1L << MASK_BITS;
+
+        final long[] minTime = new long[BLOCKS];
+        final long[] maxTime = new long[BLOCKS];
+        final long[] deviceMask = new long[BLOCKS];
+        final long[] metricMask = new long[BLOCKS];
+        long[] devices = new long[4];
+        int deviceCount;
+        int[] metrics = new int[8];
+        int metricCount;
+
+        Summary() {
+            for (int b = 0; b < BLOCKS; b++) {
+                minTime[b] = Long.MAX_VALUE;
+                maxTime[b] = Long.MIN_VALUE;
+            }
+        }
+
+        void add(int offset, long device, int metric, long time) {
+            int b = offset / BLOCK_RECORDS;
+            minTime[b] = Math.min(minTime[b], time);
+            maxTime[b] = Math.max(maxTime[b], time);
+            deviceMask[b] |= bit(deviceIndex(device, true));
+            metricMask[b] |= bit(metricIndex(metric, true));
+        }
+
+        boolean mayContain(int b, long device, int metric, long from, long to) {
+            if (maxTime[b] < from || minTime[b] >= to) {
+                return false;
+            }
+            if (device != ANY_DEVICE && (deviceMask[b] & bit(deviceIndex(device, false))) == 0) {
+                return false;
+            }
+            return metric == ANY_METRIC
+                    || (metricMask[b] & bit(metricIndex(metric, false))) != 0;
+        }
+
+        // A value that does not occur in the segment maps to no bit at all.
+        private static long bit(int index) {
+            return index < 0 ? 0 : index < MASK_BITS ? 1L << index : OVERFLOW;
+        }
+
+        private int deviceIndex(long device, boolean insert) {
+            for (int i = 0; i < deviceCount; i++) {
+                if (devices[i] == device) {
+                    return i;
+                }
+            }
+            if (!insert) {
+                return -1;
+            }
+            if (deviceCount == devices.length) {
+                long[] grown = new long[deviceCount * 2];
+                System.arraycopy(devices, 0, grown, 0, deviceCount);
+                devices = grown;
+            }
+            devices[deviceCount] = device;
+            return deviceCount++;
+        }
+
+        private int metricIndex(int metric, boolean insert) {
+            for (int i = 0; i < metricCount; i++) {
+                if (metrics[i] == metric) {
+                    return i;
+                }
+            }
+            if (!insert) {
+                return -1;
+            }
+            if (metricCount == metrics.length) {
+                int[] grown = new int[metricCount * 2];
+                System.arraycopy(metrics, 0, grown, 0, metricCount);
+                metrics = grown;
+            }
+            metrics[metricCount] = metric;
+            return metricCount++;
+        }
+
+        void write(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(deviceCount);
+                for (int i = 0; i < deviceCount; i++) {
+                    out.writeLong(devices[i]);
+                }
+                out.writeInt(metricCount);
+                for (int i = 0; i < metricCount; i++) {
+                    out.writeInt(metrics[i]);
+                }
+                for (int b = 0; b < BLOCKS; b++) {
+                    out.writeLong(minTime[b]);
+                    out.writeLong(maxTime[b]);
+                    out.writeLong(deviceMask[b]);
+                    out.writeLong(metricMask[b]);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /** Returns null if the file is not a valid summary; nothing in it is trusted. */
+        static Summary read(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return null;
+                }
+                Summary summary = new Summary();
+                summary.deviceCount = in.readInt();
+                if (summary.deviceCount < 0
+                        || summary.deviceCount > MeasurementJournal.SEGMENT_RECORDS) {
+                    return null;
+                }
+                summary.devices = new long[Math.max(4, summary.deviceCount)];
+                for (int i = 0; i < summary.deviceCount; i++) {
+                    summary.devices[i] = in.readLong();
+                }
+                summary.metricCount = in.readInt();
+                if (summary.metricCount < 0
+                        || summary.metricCount > MeasurementJournal.SEGMENT_RECORDS) {
+                    return null;
+                }
+                summary.metrics = new int[Math.max(8, summary.metricCount)];
+                for (int i = 0; i < summary.metricCount; i++) {
+                    summary.metrics[i] = in.readInt();
+                }
+                for (int b = 0; b < BLOCKS; b++) {
+                    summary.minTime[b] = in.readLong();
+                    summary.maxTime[b] = in.readLong();
+                    summary.deviceMask[b] = in.readLong();
+                    summary.metricMask[b] = in.readLong();
+                }
+                return in.read() == -1 ? summary : null;
+            } catch (IOException e) {
+                // Truncated or corrupt; the caller rebuilds it.
+                return null;
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
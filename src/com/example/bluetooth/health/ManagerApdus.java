@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.nio.ByteBuffer;
+
+/**
+ * APDUs sent by the manager.  Constant APDUs are encoded once.  The rest are templates, also
+ * encoded once, that are copied into a caller-supplied buffer, typically one from
+ * {@link ApduWriter#obtain()}, with their per-message fields (invoke-id, object handle, event
+ * type and the like) patched in place; nothing is allocated per message.
+ *
+ * The association responses carry the manager's own system-id, so they are encoded once per
+ * manager, see {@link Aare}.
+ */
+final class ManagerApdus {
+    // Association result codes.
+    static final int ACCEPTED = 0x0000;
+    static final int ACCEPTED_UNKNOWN_CONFIG = 0x0003;
+
+    // Invoke-ids used for the manager's own GETs of the MDS attributes and of its clock.
+    static final int GET_MDS_INVOKE_ID = 0x0024;
+    static final int GET_CLOCK_INVOKE_ID = 0x0025;
+
+    // Config-result codes.
+    static final int ACCEPTED_CONFIG = 0x0000;
+    static final int UNSUPPORTED_CONFIG = 0x0001;
+
+    /**
+     * System-id of a manager without a Bluetooth address, e.g. in gateway mode; the one every
+     * manager used to send.
+     */
+    static final long DEFAULT_SYSTEM_ID = 0x3C5A37FFFE95EEE3L;
+
+    // Field offsets in the templates.  Every PRST template has the invoke-id and object handle
+    // at the same place.
+    private static final int AARE_RESULT = 4;
+    private static final int AARE_SYSTEM_ID = 30;
+    private static final int INVOKE_ID = 6;
+    private static final int OBJ_HANDLE = 12;
+    private static final int EVENT_TYPE = 18;
+    private static final int CONFIG_REPORT_ID = 22;
+    private static final int CONFIG_RESULT = 24;
+    private static final int SEGMENT_INSTANCE = 22;
+    private static final int SEGMENT_FIRST_ENTRY = 24;
+    private static final int SEGMENT_ENTRY_COUNT = 28;
+    private static final int SEGMENT_STATUS = 32;
+    private static final int ACTION_ARGS = 18;
+    private static final int CLEAR_INSTANCE = 26;
+
+    // Association Response [0xE300], accepted, system-id zero
+    private static final byte[] AARE = new byte[] {
+            (byte) 0xE3, (byte) 0x00,
+            (byte) 0x00, (byte) 0x2C,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x50, (byte) 0x79,
+            (byte) 0x00, (byte) 0x26,
+            (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x80, (byte) 0x00,
+            (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x80, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x08,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
+
+    // Association Response [0xE300], rejected-no-common-protocol, with an empty data-proto.
+    static final byte[] AARE_REJECTED_NO_COMMON_PROTOCOL = new byte[] {
+            (byte) 0xE3, (byte) 0x00,
+            (byte) 0x00, (byte) 0x06,
+            (byte) 0x00, (byte) 0x04,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Get all MDS attributes [0xE700, roiv-cmip-get]
+    static final byte[] GET_MDS = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x0E,
+            (byte) 0x00, (byte) 0x0C,
+            (byte) 0x00, (byte) 0x24,
+            (byte) 0x01, (byte) 0x03,
+            (byte) 0x00, (byte) 0x06,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Get the MDS Date-and-Time [0xE700, roiv-cmip-get, attribute-id-list {MDC_ATTR_TIME_ABS}]
+    static final byte[] GET_CLOCK = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x10,
+            (byte) 0x00, (byte) 0x0E,
+            (byte) 0x00, (byte) 0x25,
+            (byte) 0x01, (byte) 0x03,
+            (byte) 0x00, (byte) 0x08,
+            (byte) 0x00, (byte) 0x00,
+            (byte) 0x00, (byte) 0x01,
+            (byte) 0x00, (byte) 0x02,
+            (byte) 0x09, (byte) 0x87 };
+
+    // Release Response [0xE500], reason normal
+    static final byte[] RLRE = new byte[] {
+            (byte) 0xE5, (byte) 0x00,
+            (byte) 0x00, (byte) 0x02,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Release Request [0xE400], reason normal
+    static final byte[] RLRQ = new byte[] {
+            (byte) 0xE4, (byte) 0x00,
+            (byte) 0x00, (byte) 0x02,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Abort [0xE600], reason undefined
+    static final byte[] ABRT = new byte[] {
+            (byte) 0xE6, (byte) 0x00,
+            (byte) 0x00, (byte) 0x02,
+            (byte) 0x00, (byte) 0x00 };
+
+    // Confirmed event report response [0xE700, rors-cmip-confirmed-event-report], empty
+    // event-reply-info
+    private static final byte[] EVENT_REPORT_RESPONSE = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x12,
+            (byte) 0x00, (byte) 0x10,
+            (byte) 0x00, (byte) 0x00,  // invoke-id
+            (byte) 0x02, (byte) 0x01,
+            (byte) 0x00, (byte) 0x0A,
+            (byte) 0x00, (byte) 0x00,  // obj-handle
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,  // current-time
+            (byte) 0x00, (byte) 0x00,  // event-type
+            (byte) 0x00, (byte) 0x00 };
+
+    // Response to MDC_NOTI_CONFIG [0xE700, rors-cmip-confirmed-event-report]
+    private static final byte[] CONFIG_REPORT_RESPONSE = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x16,
+            (byte) 0x00, (byte) 0x14,
+            (byte) 0x00, (byte) 0x00,  // invoke-id
+            (byte) 0x02, (byte) 0x01,
+            (byte) 0x00, (byte) 0x0E,
+            (byte) 0x00, (byte) 0x00,  // MDS handle
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,  // current-time
+            (byte) 0x0D, (byte) 0x1C,  // MDC_NOTI_CONFIG
+            (byte) 0x00, (byte) 0x04,
+            (byte) 0x00, (byte) 0x00,  // config-report-id
+            (byte) 0x00, (byte) 0x00 };  // config-result
+
+    // Response to MDC_NOTI_SEGMENT_DATA [0xE700, rors-cmip-confirmed-event-report]
+    private static final byte[] SEGMENT_DATA_RESPONSE = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x1E,
+            (byte) 0x00, (byte) 0x1C,
+            (byte) 0x00, (byte) 0x00,  // invoke-id
+            (byte) 0x02, (byte) 0x01,
+            (byte) 0x00, (byte) 0x16,
+            (byte) 0x00, (byte) 0x00,  // PM-store handle
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,  // current-time
+            (byte) 0x0D, (byte) 0x21,  // MDC_NOTI_SEGMENT_DATA
+            (byte) 0x00, (byte) 0x0C,
+            (byte) 0x00, (byte) 0x00,  // seg-inst-no
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,  // seg-evt-entry-index
+            (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,  // seg-evt-entry-count
+            (byte) 0x00, (byte) 0x00 };  // seg-evt-status
+
+    // GET of all attributes [0xE700, roiv-cmip-get]
+    private static final byte[] GET = new byte[] {
+            (byte) 0xE7, (byte) 0x00,
+            (byte) 0x00, (byte) 0x0E,
+            (byte) 0x00, (byte) 0x0C,
+            (byte) 0x00, (byte) 0x00,  // invoke-id
+            (byte) 0x01, (byte) 0x03,
+            (byte) 0x00, (byte) 0x06,
+            (byte) 0x00, (byte) 0x00,  // obj-handle
+            (byte) 0x00, (byte) 0x00,  // empty attribute-id-list
+            (byte) 0x00, (byte) 0x00 };
+
+    // MDC_ACT_SEG_GET_INFO for all segments [0xE700, roiv-cmip-confirmed-action]
+    private static final byte[] SEGMENT_INFO_REQUEST = action(Mdc.MDC_ACT_SEG_GET_INFO,
+            0x0001, 0x0002, 0x0000);  // all-segments
+
+    // MDC_ACT_SEG_TRIG_XFER [0xE700, roiv-cmip-confirmed-action]
+    private static final byte[] TRIGGER_SEGMENT_TRANSFER = action(Mdc.MDC_ACT_SEG_TRIG_XFER,
+            0x0000);  // seg-inst-no
+
+    // MDC_ACT_SEG_CLR of one segment [0xE700, roiv-cmip-confirmed-action]
+    private static final byte[] CLEAR_SEGMENT = action(Mdc.MDC_ACT_SEG_CLR,
+            0x0002, 0x0006, 0x0001, 0x0002, 0x0000);  // segm-id-list of one seg-inst-no
+
+    private ManagerApdus() {}
+
+    /** The association responses of one manager, encoded once with its system-id. */
+    static final class Aare {
+        final long systemId;
+        final byte[] accepted;
+        /** Accepted-unknown-config: the agent sends its configuration before measurements. */
+        final byte[] acceptedUnknownConfig;
+
+        Aare(long systemId) {
+            this.systemId = systemId;
+            accepted = aare(ACCEPTED, systemId);
+            acceptedUnknownConfig = aare(ACCEPTED_UNKNOWN_CONFIG, systemId);
+        }
+    }
+
+    /**
+     * The EUI-64 system-id of a manager with Bluetooth address {@code address}: the 48-bit
+     * address with FFFE inserted after its OUI.
+     */
+    static long systemId(String address) {
+        long eui48 = MeasurementJournal.parseAddress(address);
+        return (eui48 >>> 24) << 40 | 0xFFFEL << 24 | (eui48 & 0xFFFFFF);
+    }
+
+    private static byte[] aare(int result, long systemId) {
+        ByteBuffer b = ByteBuffer.wrap(AARE.clone());
+        b.putShort(AARE_RESULT, (short) result);
+        b.putLong(AARE_SYSTEM_ID, systemId);
+        return b.array();
+    }
+
+    // A confirmed ACTION with invoke-id and handle zero and the given 16-bit arguments.
+    private static byte[] action(int actionType, int... args) {
+        ByteBuffer b = ByteBuffer.allocate(ACTION_ARGS + 2 * args.length);
+        b.putShort((short) Apdu.PRST);
+        b.putShort((short) (14 + 2 * args.length));
+        b.putShort((short) (12 + 2 * args.length));
+        b.putShort((short) 0);  // invoke-id
+        b.putShort((short) Apdu.ROIV_CONFIRMED_ACTION);
+        b.putShort((short) (6 + 2 * args.length));
+        b.putShort((short) 0);  // obj-handle
+        b.putShort((short) actionType);
+        b.putShort((short) (2 * args.length));
+        for (int arg : args) {
+            b.putShort((short) arg);
+        }
+        return b.array();
+    }
+
+    // Copies a PRST template into buf with its invoke-id and handle, and returns where it
+    // starts, for patching the rest.
+    private static int put(ByteBuffer buf, byte[] template, int invokeId, int handle) {
+        int start = buf.position();
+        buf.put(template);
+        buf.putShort(start + INVOKE_ID, (short) invokeId);
+        buf.putShort(start + OBJ_HANDLE, (short) handle);
+        return start;
+    }
+
+    /**
+     * Writes the response to a confirmed event report [0xE700, rors-cmip-confirmed-event-report]
+     * with an empty event-reply-info.
+     */
+    static void putEventReportResponse(ByteBuffer buf, int invokeId, int objHandle,
+            int eventType) {
+        int start = put(buf, EVENT_REPORT_RESPONSE, invokeId, objHandle);
+        buf.putShort(start + EVENT_TYPE, (short) eventType);
+    }
+
+    /**
+     * Writes the response to the agent's configuration report (MDC_NOTI_CONFIG), accepting or
+     * rejecting the configuration.
+     */
+    static void putConfigReportResponse(ByteBuffer buf, int invokeId, int configReportId,
+            int configResult) {
+        int start = put(buf, CONFIG_REPORT_RESPONSE, invokeId, 0);
+        buf.putShort(start + CONFIG_REPORT_ID, (short) configReportId);
+        buf.putShort(start + CONFIG_RESULT, (short) configResult);
+    }
+
+    /** Writes a GET of all attributes of object {@code handle} [0xE700, roiv-cmip-get]. */
+    static void putGet(ByteBuffer buf, int invokeId, int handle) {
+        put(buf, GET, invokeId, handle);
+    }
+
+    /** Writes MDC_ACT_SEG_GET_INFO for all segments of PM-store {@code handle}. */
+    static void putSegmentInfoRequest(ByteBuffer buf, int invokeId, int handle) {
+        put(buf, SEGMENT_INFO_REQUEST, invokeId, handle);
+    }
+
+    /** Writes MDC_ACT_SEG_TRIG_XFER for segment {@code instance} of PM-store {@code handle}. */
+    static void putTriggerSegmentTransfer(ByteBuffer buf, int invokeId, int handle,
+            int instance) {
+        int start = put(buf, TRIGGER_SEGMENT_TRANSFER, invokeId, handle);
+        buf.putShort(start + ACTION_ARGS, (short) instance);
+    }
+
+    /** Writes MDC_ACT_SEG_CLR for segment {@code instance} of PM-store {@code handle}. */
+    static void putClearSegment(ByteBuffer buf, int invokeId, int handle, int instance) {
+        int start = put(buf, CLEAR_SEGMENT, invokeId, handle);
+        buf.putShort(start + CLEAR_INSTANCE, (short) instance);
+    }
+
+    /**
+     * Writes the response to an MDC_NOTI_SEGMENT_DATA event report: the SegmentDataResult that
+     * echoes the event's descriptor with the manager-confirm status bit set.
+     */
+    static void putSegmentDataResponse(ByteBuffer buf, int invokeId, int handle, int instance,
+            long firstEntry, long entryCount, int status) {
+        int start = put(buf, SEGMENT_DATA_RESPONSE, invokeId, handle);
+        buf.putShort(start + SEGMENT_INSTANCE, (short) instance);
+        buf.putInt(start + SEGMENT_FIRST_ENTRY, (int) firstEntry);
+        buf.putInt(start + SEGMENT_ENTRY_COUNT, (int) entryCount);
+        buf.putShort(start + SEGMENT_STATUS, (short) status);
+    }
+}
@@ -0,0 +1,673 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+
+/**
+ * IEEE 11073-20601 manager state machine for one health channel.
+ *
+ * <pre>
+ *   UNASSOCIATED --AARQ, known config--> ASSOCIATING --MDS or clock GET response--> OPERATING
+ *           |                                 ^
+ *           +--AARQ, unknown config--> CONFIGURING --config report accepted
+ *   OPERATING --release()--> DISASSOCIATING --RLRE--> UNASSOCIATED
+ *   any state --RLRQ, ABRT or channel closed--> UNASSOCIATED
+ * </pre>
+ *
+ * The session is plain Java and talks to its agent through a {@link ByteTransport}.  Incoming
+ * bytes are either read by {@link #run(InputStream)}, a blocking event loop for a channel with
+ * a thread of its own, or pushed by a selector through {@link #receive}; either way they are
+ * framed and fed to the state machine on the same thread, so every response is queued the
+ * moment the APDU that triggers it has arrived.  Once the association is accepted the MDS GET
+ * follows the AARE immediately, with no fixed delay; for an agent whose configuration and MDS
+ * attributes are in the {@link AgentCache} it shrinks to a GET of the agent's clock.  The few
+ * events that originate elsewhere (such as {@link #release()}) take the session lock, so
+ * transitions never interleave.
+ *
+ * Fixed scan reports are decoded with the {@link DecodePlan} of the agent's configuration,
+ * either a standard one or the one compiled from its configuration report.  Their time stamps
+ * are corrected by the offset of the agent's clock, measured from the Date-and-Time of its
+ * MDS.  Measurements are collected into one {@link MeasurementBatch} per scan report and
+ * reported through {@link Listener#onMeasurements}.
+ *
+ * If the configuration has PM-stores, their stored measurements are retrieved as soon as the
+ * association is operating, by a {@link PmStoreTransfer} that streams each segment data event
+ * through the same batch and listener before confirming it.  Observations the agent has sent
+ * before, as it does after a lost confirmation or a reconnect, are dropped by the shared
+ * {@link DuplicateFilter} before the listener sees them.
+ *
+ * Each session keeps {@link ProtocolStats} for its channel: the latency of each protocol stage
+ * and counts of the APDUs it received, malformed ones and aborts.
+ *
+ * Every state but OPERATING waits for the agent and is bounded by a timeout on the shared
+ * {@link TimerWheel}: the AARQ after connecting or releasing, the configuration report, the
+ * response to the MDS GET and the RLRE.  An expired association is aborted and the transport
+ * closed, which ends the session.  So is a PM-store transfer whose request goes unanswered
+ * or whose segment data stops arriving.  An OPERATING channel on which nothing arrives for
+ * {@link #IDLE_TIMEOUT_MS} is released.  Each session owns two reusable timers, re-armed on
+ * every state change, so timeouts cost neither a thread nor an allocation.
+ */
+final class ManagerSession implements ApduFramer.Listener {
+    enum State {
+        UNASSOCIATED,
+        /** AARE sent; waiting for the MDS attributes. */
+        ASSOCIATING,
+        /** AARE said accepted-unknown-config; waiting for the configuration report. */
+        CONFIGURING,
+        OPERATING,
+        /** RLRQ sent; waiting for RLRE. */
+        DISASSOCIATING
+    }
+
+    /** Receives session events on the thread that feeds the session its input. */
+    interface Listener {
+        void onStateChange(ManagerSession session, State prev, State next);
+
+        void onApduReceived(ManagerSession session, ByteBuffer apdu);
+
+        void onMalformedApdu(ManagerSession session, MalformedApduException e);
+
+        /**
+         * Called once per scan report that carried observations.  The batch is reused by the
+         * session and is only valid during the call.
+         *
+         * @return false if the observations could not be taken, e.g. stored; the report is
+         *     then not confirmed, so the agent keeps it and sends it again.
+         */
+        boolean onMeasurements(ManagerSession session, MeasurementBatch batch);
+
+        void onClosed(ManagerSession session);
+    }
+
+    // Timeouts, in ms.  Those of the agent's requests and responses are the manager's side of
+    // the IEEE 11073-20601 timers.
+    /** Connected or released, waiting for an AARQ. */
+    static final long ASSOCIATION_TIMEOUT_MS = 10000;
+    /** TO_config: waiting for the configuration report. */
+    static final long CONFIGURATION_TIMEOUT_MS = 10000;
+    /** Waiting for the response to a confirmed request, i.e. the MDS GET. */
+    static final long CONFIRM_TIMEOUT_MS = 3000;
+    /** TO_release: waiting for the RLRE. */
+    static final long RELEASE_TIMEOUT_MS = 3000;
+    /** Waiting for the next segment data event of a PM-store transfer. */
+    static final long SEGMENT_DATA_TIMEOUT_MS = 10000;
+    /** Silence after which an OPERATING association is released. */
+    static final long IDLE_TIMEOUT_MS = 120000;
+
+    // IEEE 11073-20601 data-proto-id.
+    private static final int DATA_PROTO_ID_20601 = 0x5079;
+
+    private final String mDeviceAddress;
+    private final int mChannelId;
+    private final Specialization mSpecialization;
+    private final ByteTransport mTransport;
+    private final ApduWriter mWriter;
+    private final Listener mListener;
+    private final AgentCache mAgents;
+    private final DuplicateFilter mDuplicates;
+    private final ManagerApdus.Aare mAare;
+    private final ProtocolStats mStats = new ProtocolStats();
+    private final PmStoreTransfer mPmStore;
+    private final ApduFramer mFramer = new ApduFramer(this);
+    private final Apdu.Header mHeader = new Apdu.Header();
+    private final Apdu.Aarq mAarq = new Apdu.Aarq();
+    private final Apdu.Prst mPrst = new Apdu.Prst();
+    private final Apdu.ConfigReport mConfig = new Apdu.ConfigReport();
+    private final Apdu.ScanReportFixed mFixed = new Apdu.ScanReportFixed();
+    private final Apdu.AttributeList mAttributes = new Apdu.AttributeList();
+    private final MeasurementBatch mBatch = new MeasurementBatch();
+    private State mState = State.UNASSOCIATED;
+    private long mSystemId;
+    private int mDevConfigId;
+    // How to decode the agent's scan reports; null until its configuration is known.
+    private DecodePlan mPlan;
+    // The agent's MDS AttributeList, from its GET response or the agent cache.
+    private byte[] mMds;
+    // Added to the agent's time stamps to make them epoch ms.
+    private long mClockOffset;
+    // System.nanoTime() of the channel connecting, the association being accepted and the
+    // current APDU arriving.  The first two are 0 once recorded.
+    private long mConnectedNs = System.nanoTime();
+    private long mAssociatedNs;
+    private long mReceivedNs;
+    // The protocol timeout of the current state and the inactivity timeout.
+    private final TimerWheel.Timer mTimeout;
+    private final TimerWheel.Timer mIdle;
+    // System.nanoTime() of the last APDU, or of connecting.
+    private long mLastReceivedNs = mConnectedNs;
+    // The transport has closed; no more timers are armed.
+    private boolean mClosed;
+
+    /**
+     * @param transport written by the session on {@code writeExecutor}, and closed when a
+     *     timeout gives up on the agent.
+     * @param obtainTimeoutMs how long a response waits for a free write buffer; 0 if the
+     *     thread feeding the session must never block, so input fails instead.
+     * @param timers drives the session's timeouts.
+     * @param duplicates drops observations the agent sent before, or null to deliver all.
+     * @param aare association responses with the manager's system-id.
+     */
+    ManagerSession(String deviceAddress, int channelId, Specialization specialization,
+            ByteTransport transport, Executor writeExecutor, long obtainTimeoutMs,
+            TimerWheel timers, AgentCache agents, DuplicateFilter duplicates,
+            ManagerApdus.Aare aare, Listener listener) {
+        mDeviceAddress = deviceAddress;
+        mChannelId = channelId;
+        mSpecialization = specialization;
+        mTransport = transport;
+        mWriter = new ApduWriter(transport, writeExecutor, channelId, mStats,
+                obtainTimeoutMs);
+        mPmStore = new PmStoreTransfer(mWriter, channelId);
+        mAgents = agents;
+        mDuplicates = duplicates;
+        mAare = aare;
+        mListener = listener;
+        mTimeout = timers.newTimer(new Runnable() {
+            public void run() {
+                onTimeout();
+            }
+        });
+        mIdle = timers.newTimer(new Runnable() {
+            public void run() {
+                onIdle();
+            }
+        });
+        mTimeout.arm(ASSOCIATION_TIMEOUT_MS);
+        mIdle.arm(IDLE_TIMEOUT_MS);
+    }
+
+    String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    int getChannelId() {
+        return mChannelId;
+    }
+
+    /** The specialization of the sink configuration the channel was opened on. */
+    Specialization getSpecialization() {
+        return mSpecialization;
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    /** The agent's system-id from its association request, or 0 before association. */
+    synchronized long getSystemId() {
+        return mSystemId;
+    }
+
+    synchronized int getDevConfigId() {
+        return mDevConfigId;
+    }
+
+    /** The agent's encoded MDS AttributeList, or null before it is known or if its GET failed. */
+    synchronized byte[] getMdsAttributes() {
+        return mMds;
+    }
+
+    /** Latencies and counters of this channel; updated live. */
+    ProtocolStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * The event loop of a blocking transport: reads {@code in} until it ends or fails, then
+     * ends the session.
+     */
+    void run(InputStream in) {
+        try {
+            while (mFramer.readFrom(in) > -1) {
+                // Each complete APDU has been handled by onApdu().
+            }
+        } catch (IOException e) {
+            // Channel closed or write failed.
+        } finally {
+            onTransportClosed();
+        }
+    }
+
+    /**
+     * Reads what has arrived on a non-blocking channel, e.g. when a selector finds it readable,
+     * and handles it.  Calls must not overlap.
+     *
+     * @return the number of bytes read, or -1 at end of stream.
+     * @throws IOException if reading failed or the session can no longer write; the transport
+     *     should be closed.
+     */
+    int receive(ReadableByteChannel channel) throws IOException {
+        return mFramer.readFrom(channel);
+    }
+
+    /**
+     * Ends the session once its transport has closed or failed.  Called, with no lock held, by
+     * the thread that feeds the session; later calls do nothing.
+     */
+    void onTransportClosed() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mWriter.close();
+            mClosed = true;
+            setState(State.UNASSOCIATED);
+            mTimeout.cancel();
+            mIdle.cancel();
+        }
+        mListener.onClosed(this);
+    }
+
+    /**
+     * Starts an orderly release if the association is up.  Safe to call from any thread.
+     *
+     * @return true if a release is under way: the session moves to UNASSOCIATED once the agent
+     *     answers or {@link #RELEASE_TIMEOUT_MS} expires.
+     */
+    synchronized boolean release() throws IOException {
+        if (mState == State.OPERATING || mState == State.ASSOCIATING
+                || mState == State.CONFIGURING) {
+            mWriter.send(ManagerApdus.RLRQ);
+            setState(State.DISASSOCIATING);
+            return true;
+        }
+        return mState == State.DISASSOCIATING;
+    }
+
+    public synchronized void onApdu(ByteBuffer apdu) throws IOException {
+        mReceivedNs = System.nanoTime();
+        mLastReceivedNs = mReceivedNs;
+        if (ProtocolTrace.ENABLED) {
+            ProtocolTrace.received(mChannelId, apdu);
+        }
+        mListener.onApduReceived(this, apdu);
+        try {
+            switch (mHeader.wrap(apdu).choice()) {
+                case Apdu.AARQ:
+                    mStats.count(ProtocolStats.RX_AARQ);
+                    onAssociationRequest(apdu);
+                    break;
+                case Apdu.PRST:
+                    onPresentation(mPrst.wrap(apdu));
+                    break;
+                case Apdu.RLRQ:
+                    mStats.count(ProtocolStats.RX_RLRQ);
+                    if (mState != State.UNASSOCIATED) {
+                        mWriter.send(ManagerApdus.RLRE);
+                        setState(State.UNASSOCIATED);
+                    }
+                    break;
+                case Apdu.RLRE:
+                    mStats.count(ProtocolStats.RX_RLRE);
+                    if (mState == State.DISASSOCIATING) {
+                        setState(State.UNASSOCIATED);
+                    }
+                    break;
+                case Apdu.ABRT:
+                    mStats.count(ProtocolStats.RX_ABRT);
+                    setState(State.UNASSOCIATED);
+                    break;
+                default:
+                    throw new MalformedApduException("unknown choice "
+                            + Integer.toHexString(mHeader.choice()));
+            }
+        } catch (MalformedApduException e) {
+            mStats.count(ProtocolStats.MALFORMED);
+            if (ProtocolTrace.ENABLED) {
+                ProtocolTrace.event(mChannelId, "malformed", 0, 0, e);
+            }
+            mListener.onMalformedApdu(this, e);
+        }
+        mStats.record(ProtocolStats.STAGE_HANDLING, System.nanoTime() - mReceivedNs);
+    }
+
+    private void onAssociationRequest(ByteBuffer apdu) throws IOException {
+        if (mState != State.UNASSOCIATED) {
+            // A second AARQ on a live association is a protocol violation.
+            abort();
+            return;
+        }
+        if (mConnectedNs != 0) {
+            mStats.record(ProtocolStats.STAGE_CONNECT_TO_ASSOCIATION,
+                    mReceivedNs - mConnectedNs);
+            mConnectedNs = 0;
+        }
+        mAarq.wrap(apdu);
+        if (mAarq.dataProtoId() != DATA_PROTO_ID_20601) {
+            mWriter.send(ManagerApdus.AARE_REJECTED_NO_COMMON_PROTOCOL);
+            return;
+        }
+        mSystemId = mAarq.systemId();
+        mDevConfigId = mAarq.devConfigId();
+        mAssociatedNs = mReceivedNs;
+        AgentCache.Entry known = mAgents.get(mSystemId, mDevConfigId);
+        mPlan = known != null ? known.plan : null;
+        mMds = known != null ? known.mds : null;
+        if (mMds != null) {
+            // Seen before: only its clock, which may have drifted or been reset, is asked for.
+            mWriter.send(mAare.accepted);
+            mWriter.send(ManagerApdus.GET_CLOCK);
+            setState(State.ASSOCIATING);
+        } else if (mPlan != null) {
+            mWriter.send(mAare.accepted);
+            mWriter.send(ManagerApdus.GET_MDS);
+            setState(State.ASSOCIATING);
+        } else {
+            mWriter.send(mAare.acceptedUnknownConfig);
+            setState(State.CONFIGURING);
+        }
+    }
+
+    private void onPresentation(Apdu.Prst prst) throws IOException {
+        if (mState == State.UNASSOCIATED) {
+            abort();
+            return;
+        }
+        switch (prst.dataChoice()) {
+            case Apdu.RORS_GET:
+                mStats.count(ProtocolStats.RX_GET_RESPONSE);
+                if (mState == State.ASSOCIATING
+                        && prst.invokeId() == ManagerApdus.GET_MDS_INVOKE_ID) {
+                    mMds = prst.copy(Apdu.Prst.GET_ATTRIBUTES_OFFSET);
+                    mAgents.putMds(mSystemId, mDevConfigId, mMds);
+                    measureClock(prst);
+                    operate();
+                } else if (mState == State.ASSOCIATING
+                        && prst.invokeId() == ManagerApdus.GET_CLOCK_INVOKE_ID) {
+                    measureClock(prst);
+                    operate();
+                } else if (mPmStore.onResponse(prst)) {
+                    armTransferTimeout();
+                }
+                break;
+            case Apdu.ROIV_CONFIRMED_EVENT_REPORT:
+                mStats.count(ProtocolStats.RX_CONFIRMED_EVENT_REPORT);
+                onEventReport(prst);
+                break;
+            case Apdu.ROIV_EVENT_REPORT:
+                mStats.count(ProtocolStats.RX_EVENT_REPORT);
+                onEventReport(prst);
+                break;
+            default:
+                mStats.count(ProtocolStats.RX_OTHER_PRST);
+                if (mState == State.ASSOCIATING
+                        && (prst.invokeId() == ManagerApdus.GET_MDS_INVOKE_ID
+                        || prst.invokeId() == ManagerApdus.GET_CLOCK_INVOKE_ID)) {
+                    // The MDS or clock GET failed; operate without the attributes, keeping the
+                    // last offset measured, if any, rather than wait for the timeout.
+                    Long clockOffset = mAgents.clockOffset(mSystemId);
+                    mClockOffset = clockOffset != null ? clockOffset : localClockOffset();
+                    operate();
+                    break;
+                }
+                // Responses to the PM-store transfer; those to requests we did not make, and
+                // errors and rejects of those, are ignored.
+                if (mPmStore.onResponse(prst)) {
+                    armTransferTimeout();
+                }
+                break;
+        }
+    }
+
+    private void onEventReport(Apdu.Prst prst) throws IOException {
+        boolean confirmed = prst.dataChoice() == Apdu.ROIV_CONFIRMED_EVENT_REPORT;
+        int eventType = prst.eventType();
+        if (eventType == Apdu.MDC_NOTI_CONFIG) {
+            if (mState == State.CONFIGURING && confirmed) {
+                onConfigReport(prst);
+            }
+            return;
+        }
+        if (eventType == Apdu.MDC_NOTI_SEGMENT_DATA) {
+            if (confirmed) {
+                onSegmentData(prst);
+            }
+            return;
+        }
+        // Like stored entries, a report is delivered before it is confirmed.
+        if (eventType == Apdu.MDC_NOTI_SCAN_REPORT_FIXED && !readFixedReport(mFixed.wrap(prst))) {
+            return;
+        }
+        if (confirmed) {
+            ByteBuffer response = mWriter.obtain();
+            ManagerApdus.putEventReportResponse(response, prst.invokeId(), prst.objHandle(),
+                    eventType);
+            mWriter.send(response, mReceivedNs);
+        }
+    }
+
+    // The agent's extended configuration.  It is accepted if it compiles into a decode plan,
+    // and is then kept in the agent cache for the agent's next association.
+    private void onConfigReport(Apdu.Prst prst) throws IOException {
+        int result;
+        try {
+            mPlan = DecodePlan.compile(mConfig.wrap(prst));
+            mDevConfigId = mConfig.configReportId();
+            mAgents.putConfig(mSystemId, mDevConfigId, mPlan, mConfig.copy(0));
+            result = ManagerApdus.ACCEPTED_CONFIG;
+        } catch (MalformedApduException e) {
+            if (ProtocolTrace.ENABLED) {
+                ProtocolTrace.event(mChannelId, "config rejected", prst.configReportId(), 0, e);
+            }
+            result = ManagerApdus.UNSUPPORTED_CONFIG;
+        }
+        ByteBuffer response = mWriter.obtain();
+        ManagerApdus.putConfigReportResponse(response, prst.invokeId(), prst.configReportId(),
+                result);
+        mWriter.send(response);
+        if (result == ManagerApdus.ACCEPTED_CONFIG) {
+            mWriter.send(ManagerApdus.GET_MDS);
+            setState(State.ASSOCIATING);
+        }
+    }
+
+    // Stored entries are delivered before the event is confirmed, so that what the agent is
+    // told has been received has been stored.
+    private void onSegmentData(Apdu.Prst prst) throws IOException {
+        mBatch.clear();
+        long entries = mPmStore.decode(prst, mDeviceAddress, System.currentTimeMillis(),
+                mClockOffset, mBatch);
+        mStats.count(ProtocolStats.STORED_ENTRIES, entries);
+        if (!deliver("stored observations", (int) entries)) {
+            // Left unconfirmed; the transfer times out and the agent keeps the entries.
+            return;
+        }
+        mPmStore.confirm(prst, mReceivedNs);
+        armTransferTimeout();
+    }
+
+    private void operate() throws IOException {
+        setState(State.OPERATING);
+        if (mPlan != null && mPmStore.start(mPlan)) {
+            armTransferTimeout();
+        }
+    }
+
+    // In OPERATING the protocol timer belongs to the PM-store transfer, if one is running.
+    private void armTransferTimeout() {
+        if (!mPmStore.isActive()) {
+            mTimeout.cancel();
+        } else if (mPmStore.isAwaitingResponse()) {
+            mTimeout.arm(CONFIRM_TIMEOUT_MS);
+        } else {
+            mTimeout.arm(SEGMENT_DATA_TIMEOUT_MS);
+        }
+    }
+
+    // Special values (NaN, NRes, INF) are passed on as NaN or infinity.  Returns false if the
+    // listener did not take the observations.
+    private boolean readFixedReport(Apdu.ScanReportFixed fixed) throws MalformedApduException {
+        if (mPlan == null) {
+            return true;
+        }
+        mBatch.clear();
+        mPlan.decode(fixed, mDeviceAddress, System.currentTimeMillis(), mClockOffset, mBatch);
+        if (mAssociatedNs != 0) {
+            mStats.record(ProtocolStats.STAGE_ASSOCIATION_TO_FIRST_REPORT,
+                    mReceivedNs - mAssociatedNs);
+            mAssociatedNs = 0;
+        }
+        return deliver("observations", 0);
+    }
+
+    // The offset of the agent's clock: its MDS Date-and-Time against the arrival of the GET
+    // response, measured on every association.  An agent without a clock, or with an unset
+    // one, is taken to keep the phone's local time.
+    private void measureClock(Apdu.Prst prst) throws MalformedApduException {
+        long agentTime = AbsoluteTime.UNKNOWN;
+        mAttributes.wrap(prst, Apdu.Prst.GET_ATTRIBUTES_OFFSET);
+        while (mAttributes.next()) {
+            if (mAttributes.id() == Mdc.MDC_ATTR_TIME_ABS) {
+                agentTime = mAttributes.valueAbsoluteTime(0);
+            }
+        }
+        long now = System.currentTimeMillis() - (System.nanoTime() - mReceivedNs) / 1000000;
+        mClockOffset = agentTime != AbsoluteTime.UNKNOWN ? now - agentTime : localClockOffset();
+        mAgents.putClockOffset(mSystemId, mClockOffset);
+        if (ProtocolTrace.ENABLED) {
+            ProtocolTrace.event(mChannelId, "clock offset", (int) (mClockOffset / 1000),
+                    agentTime != AbsoluteTime.UNKNOWN ? 1 : 0, null);
+        }
+    }
+
+    // The offset of a clock that keeps the phone's local time.
+    private static long localClockOffset() {
+        return -TimeZone.getDefault().getOffset(System.currentTimeMillis());
+    }
+
+    // Passes mBatch to the listener, less what the agent sent before, as it does after a lost
+    // confirmation or a reconnect.  Observations are remembered as seen only once the listener
+    // has taken them.  Returns false if it did not.
+    private boolean deliver(String what, int detail) {
+        if (mDuplicates != null && mBatch.size() > 0) {
+            int dropped = mDuplicates.filter(mSystemId, mClockOffset, mBatch);
+            if (dropped > 0) {
+                mStats.count(ProtocolStats.DUPLICATES, dropped);
+            }
+        }
+        if (mBatch.size() == 0) {
+            return true;
+        }
+        if (ProtocolTrace.ENABLED) {
+            ProtocolTrace.event(mChannelId, what, mBatch.size(), detail, null);
+        }
+        if (!mListener.onMeasurements(this, mBatch)) {
+            return false;
+        }
+        if (mDuplicates != null) {
+            mDuplicates.remember(mSystemId, mClockOffset, mBatch);
+        }
+        return true;
+    }
+
+    // The current state's timeout expired.
+    private synchronized void onTimeout() {
+        if (mClosed || mTimeout.isArmed()
+                || (timeoutFor(mState) == 0 && !mPmStore.isActive())) {
+            // Stale: the state changed while the expiry was on its way.
+            return;
+        }
+        mStats.count(ProtocolStats.TIMEOUTS);
+        if (ProtocolTrace.ENABLED) {
+            ProtocolTrace.event(mChannelId, "timeout", mState.ordinal(), 0, mState);
+        }
+        if (mState != State.UNASSOCIATED) {
+            try {
+                abort();
+            } catch (IOException e) {
+                // The channel is closed below anyway.
+            }
+        }
+        closeChannel();
+    }
+
+    private synchronized void onIdle() {
+        if (mClosed) {
+            return;
+        }
+        long idleMs = (System.nanoTime() - mLastReceivedNs) / 1000000;
+        if (idleMs < IDLE_TIMEOUT_MS) {
+            mIdle.arm(IDLE_TIMEOUT_MS - idleMs);
+            return;
+        }
+        mIdle.arm(IDLE_TIMEOUT_MS);
+        if (mState == State.OPERATING) {
+            if (ProtocolTrace.ENABLED) {
+                ProtocolTrace.event(mChannelId, "idle", (int) idleMs, 0, null);
+            }
+            try {
+                release();
+            } catch (IOException e) {
+                closeChannel();
+            }
+        }
+        // Any other state is already bounded by its own timeout.
+    }
+
+    private void closeChannel() {
+        try {
+            mTransport.close();
+        } catch (IOException e) { /* Do nothing. */ }
+    }
+
+    private static long timeoutFor(State state) {
+        switch (state) {
+            case UNASSOCIATED:
+                return ASSOCIATION_TIMEOUT_MS;
+            case CONFIGURING:
+                return CONFIGURATION_TIMEOUT_MS;
+            case ASSOCIATING:
+                return CONFIRM_TIMEOUT_MS;
+            case DISASSOCIATING:
+                return RELEASE_TIMEOUT_MS;
+            default:
+                return 0;
+        }
+    }
+
+    private void abort() throws IOException {
+        mStats.count(ProtocolStats.ABORTS_SENT);
+        mWriter.send(ManagerApdus.ABRT);
+        setState(State.UNASSOCIATED);
+    }
+
+    private void setState(State next) {
+        State prev = mState;
+        if (prev != next) {
+            mState = next;
+            if (next != State.OPERATING) {
+                mPmStore.stop();
+            }
+            long timeoutMs = timeoutFor(next);
+            if (timeoutMs > 0 && !mClosed) {
+                mTimeout.arm(timeoutMs);
+            } else {
+                mTimeout.cancel();
+            }
+            if (ProtocolTrace.ENABLED) {
+                ProtocolTrace.event(mChannelId, "state", prev.ordinal(), next.ordinal(), next);
+            }
+            mListener.onStateChange(this, prev, next);
+        }
+    }
+}
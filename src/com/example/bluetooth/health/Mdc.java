@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * IEEE 11073-10101 nomenclature codes used by the manager (term codes within their partition).
+ */
+final class Mdc {
+    // Blood pressure (partition SCADA).
+    static final int MDC_PRESS_BLD_NONINV = 0x4A04;
+    static final int MDC_PRESS_BLD_NONINV_SYS = 0x4A05;
+    static final int MDC_PRESS_BLD_NONINV_DIA = 0x4A06;
+    static final int MDC_PRESS_BLD_NONINV_MEAN = 0x4A07;
+    static final int MDC_PULS_RATE_NON_INV = 0x482A;
+
+    // Body temperature (partition SCADA).
+    static final int MDC_TEMP_BODY = 0x4B5C;
+
+    // Blood glucose (partition SCADA).
+    static final int MDC_CONC_GLU_CAPILLARY_WHOLEBLOOD = 0x71B8;
+
+    // Body weight (partition SCADA).
+    static final int MDC_MASS_BODY_ACTUAL = 0xE140;
+
+    // Units (partition DIM).
+    static final int MDC_DIM_DIMLESS = 0x0200;
+    static final int MDC_DIM_BEAT_PER_MIN = 0x0AA0;
+    static final int MDC_DIM_MMHG = 0x0F20;
+    static final int MDC_DIM_KILO_PASCAL = 0x0F03;
+    static final int MDC_DIM_DEGC = 0x17A0;
+    static final int MDC_DIM_KILO_G = 0x06C3;
+    static final int MDC_DIM_LB = 0x06E0;
+    static final int MDC_DIM_MILLI_G_PER_DL = 0x0852;
+    static final int MDC_DIM_MILLI_MOLE_PER_L = 0x1272;
+
+    // Object classes (partition OBJ).
+    static final int MDC_MOC_VMO_METRIC = 4;
+    static final int MDC_MOC_VMO_METRIC_ENUM = 5;
+    static final int MDC_MOC_VMO_METRIC_NU = 6;
+    static final int MDC_MOC_VMO_METRIC_SA_RT = 9;
+    static final int MDC_MOC_VMO_PMSTORE = 61;
+    static final int MDC_MOC_PM_SEGMENT = 62;
+
+    // Attributes (partition OBJ).
+    static final int MDC_ATTR_ID_INSTNO = 0x0922;
+    static final int MDC_ATTR_ID_TYPE = 0x092F;
+    static final int MDC_ATTR_NU_CMPD_VAL_OBS = 0x094B;
+    static final int MDC_ATTR_NU_VAL_OBS = 0x0950;
+    static final int MDC_ATTR_NUM_SEG = 0x0951;
+    static final int MDC_ATTR_TIME_ABS = 0x0987;
+    static final int MDC_ATTR_TIME_STAMP_ABS = 0x0990;
+    static final int MDC_ATTR_UNIT_CODE = 0x0996;
+    static final int MDC_ATTR_ENUM_OBS_VAL_SIMP_OID = 0x099E;
+    static final int MDC_ATTR_NU_VAL_OBS_BASIC = 0x0A4C;
+    static final int MDC_ATTR_PM_STORE_CAPAB = 0x0A4D;
+    static final int MDC_ATTR_PM_SEG_MAP = 0x0A4E;
+    static final int MDC_ATTR_ATTRIBUTE_VAL_MAP = 0x0A55;
+    static final int MDC_ATTR_NU_VAL_OBS_SIMP = 0x0A56;
+    static final int MDC_ATTR_ENUM_OBS_VAL_SIMP_BIT_STR = 0x0A65;
+    static final int MDC_ATTR_ENUM_OBS_VAL_BASIC_BIT_STR = 0x0A66;
+    static final int MDC_ATTR_METRIC_STRUCT_SMALL = 0x0A73;
+    static final int MDC_ATTR_NU_CMPD_VAL_OBS_SIMP = 0x0A74;
+    static final int MDC_ATTR_NU_CMPD_VAL_OBS_BASIC = 0x0A75;
+    static final int MDC_ATTR_ID_PHYSIO_LIST = 0x0A76;
+    static final int MDC_ATTR_SEG_USAGE_CNT = 0x0A77;
+
+    // PM-store actions (partition OBJ).
+    static final int MDC_ACT_SEG_CLR = 0x0C0C;
+    static final int MDC_ACT_SEG_GET_INFO = 0x0C0D;
+    static final int MDC_ACT_SEG_TRIG_XFER = 0x0C1C;
+
+    private Mdc() {}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Codec for the IEEE 11073-20601 numeric types, as raw ints.
+ *
+ * <pre>
+ *   SFLOAT-Type  16 bits: 4-bit signed exponent, 12-bit signed mantissa
+ *   FLOAT-Type   32 bits: 8-bit signed exponent, 24-bit signed mantissa
+ *   value = mantissa * 10^exponent
+ * </pre>
+ *
+ * A few mantissas with exponent 0 are reserved for special values (NaN, NRes, +/-INF).  They
+ * decode to {@link Float#NaN} or an infinity; use {@link #isSfloatSpecial(int)} to tell them
+ * apart from real readings.  Scaling uses precomputed powers of ten, so nothing is boxed or
+ * parsed.
+ */
+final class MderFloat {
+    // Special SFLOAT values.
+    static final int SFLOAT_NAN = 0x07FF;
+    static final int SFLOAT_NRES = 0x0800;
+    static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    static final int SFLOAT_RESERVED = 0x0801;
+
+    // Special FLOAT values.
+    static final int FLOAT_NAN = 0x007FFFFF;
+    static final int FLOAT_NRES = 0x00800000;
+    static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    static final int FLOAT_RESERVED = 0x00800001;
+
+    // 10^0 .. 10^128; exact up to 10^22.  Negative exponents divide, which rounds once
+    // instead of multiplying by an inexact 10^-n.
+    private static final double[] POW10 = new double[129];
+    // 10^0 .. 10^18, every power that fits a long.
+    private static final long[] LONG_POW10 = new long[19];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        LONG_POW10[0] = 1;
+        for (int i = 1; i < LONG_POW10.length; i++) {
+            LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+        }
+    }
+
+    private MderFloat() {}
+
+    static int sfloatMantissa(int raw) {
+        return (raw << 20) >> 20;
+    }
+
+    static int sfloatExponent(int raw) {
+        return (raw << 16) >> 28;
+    }
+
+    static boolean isSfloatSpecial(int raw) {
+        raw &= 0xFFFF;
+        return raw >= SFLOAT_POSITIVE_INFINITY && raw <= SFLOAT_NEGATIVE_INFINITY;
+    }
+
+    static double sfloatToDouble(int raw) {
+        if (isSfloatSpecial(raw)) {
+            return special(raw & 0xFFFF, SFLOAT_POSITIVE_INFINITY, SFLOAT_NEGATIVE_INFINITY);
+        }
+        return toDouble(sfloatMantissa(raw), sfloatExponent(raw));
+    }
+
+    static float sfloatToFloat(int raw) {
+        return (float) sfloatToDouble(raw);
+    }
+
+    static int floatMantissa(int raw) {
+        return (raw << 8) >> 8;
+    }
+
+    static int floatExponent(int raw) {
+        return raw >> 24;
+    }
+
+    static boolean isFloatSpecial(int raw) {
+        // Exponent 0 and one of the five reserved mantissas.
+        return raw >= FLOAT_POSITIVE_INFINITY && raw <= FLOAT_NEGATIVE_INFINITY;
+    }
+
+    static double floatToDouble(int raw) {
+        if (isFloatSpecial(raw)) {
+            return special(raw, FLOAT_POSITIVE_INFINITY, FLOAT_NEGATIVE_INFINITY);
+        }
+        return toDouble(floatMantissa(raw), floatExponent(raw));
+    }
+
+    static float floatToFloat(int raw) {
+        return (float) floatToDouble(raw);
+    }
+
+    /** mantissa * 10^exponent. */
+    static double toDouble(int mantissa, int exponent) {
+        return exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+    }
+
+    /**
+     * Rescales mantissa * 10^exponent to a whole number of 10^scale units, rounding half away
+     * from zero; e.g. {@code scale(1234, -1, -2)} is 12340 (hundredths) and
+     * {@code scale(1234, -1, 0)} is 123.
+     *
+     * @throws ArithmeticException if the result does not fit a long.
+     */
+    static long scale(int mantissa, int exponent, int scale) {
+        int shift = exponent - scale;
+        if (shift >= 0) {
+            if (shift >= LONG_POW10.length
+                    || Math.abs((long) mantissa) > Long.MAX_VALUE / LONG_POW10[shift]) {
+                if (mantissa == 0) {
+                    return 0;
+                }
+                throw new ArithmeticException("overflow scaling " + mantissa + "e" + exponent);
+            }
+            return mantissa * LONG_POW10[shift];
+        }
+        if (-shift >= LONG_POW10.length) {
+            return 0;
+        }
+        long divisor = LONG_POW10[-shift];
+        long half = mantissa < 0 ? -divisor / 2 : divisor / 2;
+        return (mantissa + half) / divisor;
+    }
+
+    private static double special(int raw, int positiveInfinity, int negativeInfinity) {
+        if (raw == positiveInfinity) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (raw == negativeInfinity) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * A growable column store of decoded observations: one primitive array per field, so a whole
+ * scan report (or several) is handed around as a handful of arrays instead of one object or
+ * message per value.  Instances are reused; {@link #clear()} keeps the capacity.
+ */
+final class MeasurementBatch {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] mDevices = new String[2];
+    private int mDeviceCount;
+    private int[] mDevice = new int[INITIAL_CAPACITY];
+    private int[] mMetric = new int[INITIAL_CAPACITY];
+    private float[] mValue = new float[INITIAL_CAPACITY];
+    private int[] mUnit = new int[INITIAL_CAPACITY];
+    private long[] mDeviceTime = new long[INITIAL_CAPACITY];
+    private long[] mTime = new long[INITIAL_CAPACITY];
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        for (int i = 0; i < mDeviceCount; i++) {
+            mDevices[i] = null;
+        }
+        mDeviceCount = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Appends one observation.
+     *
+     * @param device address of the reporting device.
+     * @param metric nomenclature code, see {@link Mdc}.
+     * @param unit unit code, see {@link Mdc}.
+     * @param deviceTime measurement time reported by the device, in milliseconds since the
+     *         epoch, or 0 if the device did not report one.
+     * @param time receive time, in milliseconds since the epoch.
+     */
+    void add(String device, int metric, float value, int unit, long deviceTime, long time) {
+        if (mSize == mMetric.length) {
+            grow();
+        }
+        mDevice[mSize] = deviceIndex(device);
+        mMetric[mSize] = metric;
+        mValue[mSize] = value;
+        mUnit[mSize] = unit;
+        mDeviceTime[mSize] = deviceTime;
+        mTime[mSize] = time;
+        mSize++;
+    }
+
+    /** Appends every observation of {@code other}. */
+    void addAll(MeasurementBatch other) {
+        for (int i = 0; i < other.mSize; i++) {
+            add(other.mDevices[other.mDevice[i]], other.mMetric[i], other.mValue[i],
+                    other.mUnit[i], other.mDeviceTime[i], other.mTime[i]);
+        }
+    }
+
+    /** Overwrites observation {@code to} with observation {@code from}, e.g. to compact. */
+    void move(int from, int to) {
+        mDevice[to] = mDevice[from];
+        mMetric[to] = mMetric[from];
+        mValue[to] = mValue[from];
+        mUnit[to] = mUnit[from];
+        mDeviceTime[to] = mDeviceTime[from];
+        mTime[to] = mTime[from];
+    }
+
+    /** Drops the observations from {@code size} on. */
+    void truncate(int size) {
+        mSize = size;
+    }
+
+    String device(int i) {
+        return mDevices[mDevice[i]];
+    }
+
+    int metric(int i) {
+        return mMetric[i];
+    }
+
+    float value(int i) {
+        return mValue[i];
+    }
+
+    int unit(int i) {
+        return mUnit[i];
+    }
+
+    long deviceTime(int i) {
+        return mDeviceTime[i];
+    }
+
+    long time(int i) {
+        return mTime[i];
+    }
+
+    // Exact-size copies for handing the batch to another process.
+
+    String[] copyDevices() {
+        String[] copy = new String[mDeviceCount];
+        System.arraycopy(mDevices, 0, copy, 0, mDeviceCount);
+        return copy;
+    }
+
+    int[] copyDeviceIndexes() {
+        return copyOf(mDevice);
+    }
+
+    int[] copyMetrics() {
+        return copyOf(mMetric);
+    }
+
+    float[] copyValues() {
+        float[] copy = new float[mSize];
+        System.arraycopy(mValue, 0, copy, 0, mSize);
+        return copy;
+    }
+
+    int[] copyUnits() {
+        return copyOf(mUnit);
+    }
+
+    long[] copyDeviceTimes() {
+        return copyOf(mDeviceTime);
+    }
+
+    long[] copyTimes() {
+        return copyOf(mTime);
+    }
+
+    private int[] copyOf(int[] column) {
+        int[] copy = new int[mSize];
+        System.arraycopy(column, 0, copy, 0, mSize);
+        return copy;
+    }
+
+    private long[] copyOf(long[] column) {
+        long[] copy = new long[mSize];
+        System.arraycopy(column, 0, copy, 0, mSize);
+        return copy;
+    }
+
+    // Batches rarely hold more than a couple of devices, so a linear scan beats a map.
+    private int deviceIndex(String device) {
+        for (int i = 0; i < mDeviceCount; i++) {
+            if (mDevices[i].equals(device)) {
+                return i;
+            }
+        }
+        if (mDeviceCount == mDevices.length) {
+            String[] grown = new String[mDeviceCount * 2];
+            System.arraycopy(mDevices, 0, grown, 0, mDeviceCount);
+            mDevices = grown;
+        }
+        mDevices[mDeviceCount] = device;
+        return mDeviceCount++;
+    }
+
+    private void grow() {
+        int capacity = mMetric.length * 2;
+        int[] device = new int[capacity];
+        int[] metric = new int[capacity];
+        float[] value = new float[capacity];
+        int[] unit = new int[capacity];
+        long[] deviceTime = new long[capacity];
+        long[] time = new long[capacity];
+        System.arraycopy(mDevice, 0, device, 0, mSize);
+        System.arraycopy(mMetric, 0, metric, 0, mSize);
+        System.arraycopy(mValue, 0, value, 0, mSize);
+        System.arraycopy(mUnit, 0, unit, 0, mSize);
+        System.arraycopy(mDeviceTime, 0, deviceTime, 0, mSize);
+        System.arraycopy(mTime, 0, time, 0, mSize);
+        mDevice = device;
+        mMetric = metric;
+        mValue = value;
+        mUnit = unit;
+        mDeviceTime = deviceTime;
+        mTime = time;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of every decoded observation.
+ *
+ * The journal is a directory of fixed-size segment files, each memory-mapped and holding a
+ * {@link #HEADER_SIZE}-byte header followed by {@link #SEGMENT_RECORDS} records of
+ * {@link #RECORD_SIZE} bytes:
+ *
+ * <pre>
+ *   0  long  device address (48-bit Bluetooth address)
+ *   8  long  device time, ms since the epoch, 0 if unknown
+ *  16  long  receive time, ms since the epoch
+ *  24  int   metric nomenclature code
+ *  28  int   unit code
+ *  32  float value
+ *  36  int   CRC32 of bytes 0..35
+ * </pre>
+ *
+ * An append writes one record into the mapping and then bumps the record count in the header,
+ * so a crash can lose at most the record being written; the per-record CRC catches a torn one.
+ * When a segment is full it is sealed with a CRC32 over its whole record area and the next
+ * segment is started.  Sealed segments are always full, so opening the journal lists the
+ * directory and reads only the header and last record of the newest segment, however long the
+ * history is.  {@link #verify(int)} checks a sealed segment's CRC on demand.
+ *
+ * Records are addressed by their sequence number, starting at 0.  The journal is thread safe.
+ */
+final class MeasurementJournal implements Closeable {
+    static final int RECORD_SIZE = 40;
+    static final int HEADER_SIZE = 64;
+    static final int SEGMENT_RECORDS = 16384;
+    static final long SEGMENT_SIZE = HEADER_SIZE + (long) SEGMENT_RECORDS * RECORD_SIZE;
+
+    private static final int MAGIC = 0x4844504A;  // "HDPJ"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+
+    // Header fields.
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SEGMENT = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_SEALED = 16;
+    private static final int H_CRC = 20;
+    private static final int H_FIRST_TIME = 24;
+    private static final int H_LAST_TIME = 32;
+
+    private final File mDir;
+    // Mapped segments by segment number; sealed ones are mapped read-only when first read.
+    private final ArrayList<MappedByteBuffer> mSegments = new ArrayList<MappedByteBuffer>();
+    private MappedByteBuffer mActive;
+    private int mActiveNumber;
+    private int mActiveCount;
+    private final byte[] mScratch = new byte[RECORD_SIZE];
+    private final ByteBuffer mRecord = ByteBuffer.wrap(mScratch);
+    private final CRC32 mCrc = new CRC32();
+
+    /** Opens the journal in {@code dir}, creating it if needed. */
+    MeasurementJournal(File dir) throws IOException {
+        mDir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        int last = -1;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                int number = segmentNumber(name);
+                if (number > last) {
+                    last = number;
+                }
+            }
+        }
+        for (int i = 0; i < last; i++) {
+            mSegments.add(null);
+        }
+        openActive(Math.max(0, last));
+    }
+
+    /** Number of records in the journal. */
+    synchronized long size() {
+        return (long) mActiveNumber * SEGMENT_RECORDS + mActiveCount;
+    }
+
+    /** Appends every observation of {@code batch}. */
+    synchronized void append(MeasurementBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            append(parseAddress(batch.device(i)), batch.metric(i), batch.value(i),
+                    batch.unit(i), batch.deviceTime(i), batch.time(i));
+        }
+    }
+
+    /** Appends one observation and returns its sequence number. */
+    synchronized long append(long device, int metric, float value, int unit, long deviceTime,
+            long time) throws IOException {
+        checkOpen();
+        if (mActiveCount == SEGMENT_RECORDS) {
+            roll();
+        }
+        ByteBuffer record = mRecord;
+        record.clear();
+        record.putLong(device);
+        record.putLong(deviceTime);
+        record.putLong(time);
+        record.putInt(metric);
+        record.putInt(unit);
+        record.putFloat(value);
+        mCrc.reset();
+        mCrc.update(mScratch, 0, RECORD_SIZE - 4);
+        record.putInt((int) mCrc.getValue());
+        mActive.position(HEADER_SIZE + mActiveCount * RECORD_SIZE);
+        mActive.put(mScratch);
+        if (mActiveCount == 0) {
+            mActive.putLong(H_FIRST_TIME, time);
+        }
+        mActive.putLong(H_LAST_TIME, time);
+        // Commit point.
+        mActive.putInt(H_COUNT, ++mActiveCount);
+        return size() - 1;
+    }
+
+    /**
+     * Points {@code view} at record {@code seq}.
+     *
+     * @throws IndexOutOfBoundsException if there is no such record.
+     * @throws IOException if the journal is closed or the segment cannot be mapped.
+     */
+    synchronized Record read(long seq, Record view) throws IOException {
+        checkOpen();
+        if (seq < 0 || seq >= size()) {
+            throw new IndexOutOfBoundsException("record " + seq + " of " + size());
+        }
+        view.mBuf = segment((int) (seq / SEGMENT_RECORDS));
+        view.mBase = HEADER_SIZE + (int) (seq % SEGMENT_RECORDS) * RECORD_SIZE;
+        return view;
+    }
+
+    /** Number of segments, including the one being appended to. */
+    synchronized int segmentCount() {
+        return mActiveNumber + 1;
+    }
+
+    /** Receive time of the first record in a segment, from its header. */
+    synchronized long segmentFirstTime(int number) throws IOException {
+        checkOpen();
+        return segment(number).getLong(H_FIRST_TIME);
+    }
+
+    /** Receive time of the last record in a segment, from its header. */
+    synchronized long segmentLastTime(int number) throws IOException {
+        checkOpen();
+        return segment(number).getLong(H_LAST_TIME);
+    }
+
+    /** Checks the CRC of a sealed segment.  The active segment always passes. */
+    synchronized boolean verify(int number) throws IOException {
+        checkOpen();
+        if (number == mActiveNumber) {
+            return true;
+        }
+        MappedByteBuffer segment = segment(number);
+        return segment.getInt(H_SEALED) == 1 && segment.getInt(H_CRC) == recordAreaCrc(segment,
+                SEGMENT_RECORDS);
+    }
+
+    /** Forces appended records to storage. */
+    synchronized void flush() {
+        if (mActive != null) {
+            mActive.force();
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        mActive = null;
+        mSegments.clear();
+    }
+
+    private void roll() throws IOException {
+        mActive.putInt(H_CRC, recordAreaCrc(mActive, SEGMENT_RECORDS));
+        mActive.putInt(H_SEALED, 1);
+        mActive.force();
+        openActive(mActiveNumber + 1);
+    }
+
+    private void openActive(int number) throws IOException {
+        MappedByteBuffer segment = map(number, FileChannel.MapMode.READ_WRITE);
+        if (segment.getInt(H_MAGIC) != MAGIC) {
+            segment.putInt(H_VERSION, VERSION);
+            segment.putInt(H_SEGMENT, number);
+            segment.putInt(H_COUNT, 0);
+            segment.putInt(H_MAGIC, MAGIC);
+        } else if (segment.getInt(H_VERSION) != VERSION || segment.getInt(H_SEGMENT) != number) {
+            throw new IOException("bad journal segment " + number);
+        }
+        int count = Math.min(Math.max(segment.getInt(H_COUNT), 0), SEGMENT_RECORDS);
+        // Drop a torn last record, or keep one that was written but not yet committed.
+        if (count > 0 && !recordValid(segment, count - 1)) {
+            count--;
+        } else if (count < SEGMENT_RECORDS && recordValid(segment, count)) {
+            count++;
+        }
+        segment.putInt(H_COUNT, count);
+        if (mSegments.size() == number) {
+            mSegments.add(segment);
+        } else {
+            mSegments.set(number, segment);
+        }
+        mActive = segment;
+        mActiveNumber = number;
+        mActiveCount = count;
+    }
+
+    // Closing clears the mappings, so nothing may be read once it has happened.
+    private void checkOpen() throws IOException {
+        if (mActive == null) {
+            throw new IOException("journal closed");
+        }
+    }
+
+    private MappedByteBuffer segment(int number) throws IOException {
+        MappedByteBuffer segment = mSegments.get(number);
+        if (segment == null) {
+            segment = map(number, FileChannel.MapMode.READ_ONLY);
+            mSegments.set(number, segment);
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer map(int number, FileChannel.MapMode mode) throws IOException {
+        File file = new File(mDir, String.format("%s%08d%s", PREFIX, number, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file,
+                mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (raf.length() < SEGMENT_SIZE && mode != FileChannel.MapMode.READ_ONLY) {
+                raf.setLength(SEGMENT_SIZE);
+            }
+            // The mapping stays valid after the file is closed.
+            return raf.getChannel().map(mode, 0, SEGMENT_SIZE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private boolean recordValid(MappedByteBuffer segment, int index) {
+        int base = HEADER_SIZE + index * RECORD_SIZE;
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            mScratch[i] = segment.get(base + i);
+        }
+        mCrc.reset();
+        mCrc.update(mScratch, 0, RECORD_SIZE - 4);
+        int stored = segment.getInt(base + RECORD_SIZE - 4);
+        return stored == (int) mCrc.getValue() && segment.getLong(base + 16) != 0;
+    }
+
+    private int recordAreaCrc(MappedByteBuffer segment, int count) {
+        byte[] chunk = new byte[4096];
+        ByteBuffer area = segment.duplicate();
+        area.position(HEADER_SIZE);
+        area.limit(HEADER_SIZE + count * RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        while (area.hasRemaining()) {
+            int n = Math.min(chunk.length, area.remaining());
+            area.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int segmentNumber(String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(),
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Packs a Bluetooth address such as "00:09:1F:8A:12:34" into a long, without allocating. */
+    static long parseAddress(String address) {
+        long v = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                v = v << 4 | digit;
+            }
+        }
+        return v;
+    }
+
+    static String formatAddress(long address) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (address >> shift) & 0xff;
+            sb.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(octet & 0x0f, 16)));
+            if (shift > 0) {
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Flyweight over one journal record; re-pointed by {@link MeasurementJournal#read}. */
+    static final class Record {
+        ByteBuffer mBuf;
+        int mBase;
+
+        long device() {
+            return mBuf.getLong(mBase);
+        }
+
+        long deviceTime() {
+            return mBuf.getLong(mBase + 8);
+        }
+
+        long time() {
+            return mBuf.getLong(mBase + 16);
+        }
+
+        int metric() {
+            return mBuf.getInt(mBase + 24);
+        }
+
+        int unit() {
+            return mBuf.getInt(mBase + 28);
+        }
+
+        float value() {
+            return mBuf.getFloat(mBase + 32);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Retrieval of the measurements an agent has kept in its PM-stores, for one session.
+ *
+ * Once the association is operating, each PM-store of the agent's configuration is read in
+ * turn, one confirmed request at a time:
+ *
+ * <pre>
+ *   GET PM-store attributes       -> number of segments, whether segments can be cleared
+ *   ACTION get segment info       -> instance, entry map and entry count of every segment
+ *   then for each non-empty segment:
+ *     ACTION trigger transfer     -> accepted, or the segment is skipped
+ *     segment data event reports  <- decoded, delivered, then confirmed one at a time
+ *     ACTION clear segment        -> after the last entry, if the store supports it
+ * </pre>
+ *
+ * Entries are decoded straight out of each event's APDU with the segment's {@link DecodePlan},
+ * and the event is only confirmed once the session has delivered its observations, so the
+ * agent paces the transfer and memory use is bounded by one APDU however much is stored.
+ * Errors and rejects skip the segment or store at hand; the rest carries on.
+ *
+ * Not thread safe; the session calls it under its lock.
+ */
+final class PmStoreTransfer {
+    // PM-Store-Capab: segments can be cleared by a list of instances.
+    static final int PMSC_CLEAR_SEGM_BY_LIST_SUP = 0x0100;
+
+    // SegmEvtStatus bits.
+    static final int SEVTSTA_FIRST_ENTRY = 0x8000;
+    static final int SEVTSTA_LAST_ENTRY = 0x4000;
+    static final int SEVTSTA_AGENT_ABORT = 0x0800;
+    static final int SEVTSTA_MANAGER_CONFIRM = 0x0080;
+
+    // TrigSegmXferRsp.
+    static final int TSXR_SUCCESSFUL = 0;
+
+    // Invoke-ids of the transfer's requests count up from here, clear of those of the MDS GETs.
+    private static final int FIRST_INVOKE_ID = 0x0100;
+
+    // What the transfer is waiting for.
+    private static final int IDLE = 0;
+    private static final int AWAIT_ATTRIBUTES = 1;
+    private static final int AWAIT_SEGMENT_INFO = 2;
+    private static final int AWAIT_TRIGGER = 3;
+    private static final int AWAIT_DATA = 4;
+    private static final int AWAIT_CLEAR = 5;
+
+    private final ApduWriter mWriter;
+    private final int mChannelId;
+    private final Apdu.AttributeList mAttributes = new Apdu.AttributeList();
+    private final Apdu.SegmentInfoList mSegmentInfo = new Apdu.SegmentInfoList();
+    private final Apdu.SegmentData mData = new Apdu.SegmentData();
+    private int mState = IDLE;
+    private int mInvokeId;
+    private int mNextInvokeId = FIRST_INVOKE_ID;
+    private DecodePlan mConfig;
+    // The PM-store being read: its index in the configuration, handle and capabilities.
+    private int mStore;
+    private int mHandle;
+    private boolean mClearable;
+    // Non-empty segments of the store and the plans of their entries; mSegment is being read.
+    private int[] mSegments = new int[4];
+    private DecodePlan[] mPlans = new DecodePlan[4];
+    private int mSegmentCount;
+    private int mSegment;
+    // Entries decoded from the current event, or -1 if it was not expected.
+    private long mEntries;
+
+    PmStoreTransfer(ApduWriter writer, int channelId) {
+        mWriter = writer;
+        mChannelId = channelId;
+    }
+
+    boolean isActive() {
+        return mState != IDLE;
+    }
+
+    /** True while one of the transfer's requests is waiting for its response. */
+    boolean isAwaitingResponse() {
+        return mState != IDLE && mState != AWAIT_DATA;
+    }
+
+    /**
+     * Starts reading the PM-stores of {@code config}.  Returns false, doing nothing, if the
+     * configuration has none.
+     */
+    boolean start(DecodePlan config) throws IOException {
+        mConfig = config;
+        mStore = -1;
+        return nextStore();
+    }
+
+    /** Abandons the transfer, e.g. because the association ended. */
+    void stop() {
+        mState = IDLE;
+        mConfig = null;
+        Arrays.fill(mPlans, null);
+        mSegmentCount = 0;
+    }
+
+    /**
+     * Handles a response, error or reject.  Returns false if it does not answer the transfer's
+     * outstanding request.
+     */
+    boolean onResponse(Apdu.Prst prst) throws IOException, MalformedApduException {
+        if (!isAwaitingResponse() || prst.invokeId() != mInvokeId) {
+            return false;
+        }
+        int choice = prst.dataChoice();
+        switch (mState) {
+            case AWAIT_ATTRIBUTES:
+                if (choice == Apdu.RORS_GET) {
+                    onAttributes(prst);
+                } else {
+                    nextStore();
+                }
+                break;
+            case AWAIT_SEGMENT_INFO:
+                if (choice == Apdu.RORS_CONFIRMED_ACTION) {
+                    onSegmentInfo(prst);
+                } else {
+                    nextStore();
+                }
+                break;
+            case AWAIT_TRIGGER:
+                if (choice == Apdu.RORS_CONFIRMED_ACTION
+                        && prst.actionInfoLength() >= 4
+                        && prst.u16(prst.actionInfoOffset() + 2) == TSXR_SUCCESSFUL) {
+                    mState = AWAIT_DATA;
+                } else {
+                    if (ProtocolTrace.ENABLED) {
+                        ProtocolTrace.event(mChannelId, "segment refused",
+                                mSegments[mSegment], choice, null);
+                    }
+                    nextSegment();
+                }
+                break;
+            default:
+                // The clear was done or refused; either way the segment is finished.
+                nextSegment();
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the entries of an MDC_NOTI_SEGMENT_DATA event into {@code out}.  The event must
+     * then be answered with {@link #confirm(Apdu.Prst, long)}, after the observations have been
+     * delivered.
+     *
+     * @param clockOffset added to the agent's time stamps to make them epoch milliseconds.
+     * @return the number of entries decoded, 0 if the event was not expected.
+     */
+    long decode(Apdu.Prst prst, String device, long time, long clockOffset,
+            MeasurementBatch out) throws MalformedApduException {
+        mData.wrap(prst);
+        mEntries = -1;
+        if (mState != AWAIT_DATA || prst.objHandle() != mHandle
+                || mData.instance() != mSegments[mSegment]) {
+            return 0;
+        }
+        mPlans[mSegment].decode(mData, device, time, clockOffset, out);
+        mEntries = mData.entryCount();
+        return mEntries;
+    }
+
+    /** Confirms the event last passed to {@link #decode}, and moves on after its last entry. */
+    void confirm(Apdu.Prst prst, long receivedNs) throws IOException, MalformedApduException {
+        int status = mData.status();
+        ByteBuffer response = mWriter.obtain();
+        ManagerApdus.putSegmentDataResponse(response, prst.invokeId(), prst.objHandle(),
+                mData.instance(), mData.firstEntry(), mData.entryCount(),
+                status | SEVTSTA_MANAGER_CONFIRM);
+        mWriter.send(response, receivedNs);
+        if (mEntries < 0 || (status & (SEVTSTA_LAST_ENTRY | SEVTSTA_AGENT_ABORT)) == 0) {
+            return;
+        }
+        if (mClearable && (status & SEVTSTA_AGENT_ABORT) == 0) {
+            // Everything in the segment has been stored; the agent need not keep it.
+            ByteBuffer clear = mWriter.obtain();
+            ManagerApdus.putClearSegment(clear, nextInvokeId(), mHandle, mSegments[mSegment]);
+            mWriter.send(clear);
+            mState = AWAIT_CLEAR;
+        } else {
+            nextSegment();
+        }
+    }
+
+    private void onAttributes(Apdu.Prst prst) throws IOException, MalformedApduException {
+        int segments = -1;
+        int capabilities = 0;
+        mAttributes.wrap(prst, Apdu.Prst.GET_ATTRIBUTES_OFFSET);
+        while (mAttributes.next()) {
+            switch (mAttributes.id()) {
+                case Mdc.MDC_ATTR_NUM_SEG:
+                    segments = mAttributes.valueU16(0);
+                    break;
+                case Mdc.MDC_ATTR_PM_STORE_CAPAB:
+                    capabilities = mAttributes.valueU16(0);
+                    break;
+            }
+        }
+        if (segments == 0) {
+            nextStore();
+            return;
+        }
+        mClearable = (capabilities & PMSC_CLEAR_SEGM_BY_LIST_SUP) != 0;
+        ByteBuffer request = mWriter.obtain();
+        ManagerApdus.putSegmentInfoRequest(request, nextInvokeId(), mHandle);
+        mWriter.send(request);
+        mState = AWAIT_SEGMENT_INFO;
+    }
+
+    private void onSegmentInfo(Apdu.Prst prst) throws IOException, MalformedApduException {
+        mSegmentCount = 0;
+        mSegmentInfo.wrap(prst);
+        while (mSegmentInfo.next()) {
+            long usage = -1;
+            DecodePlan plan = null;
+            mSegmentInfo.attributes(mAttributes);
+            while (mAttributes.next()) {
+                switch (mAttributes.id()) {
+                    case Mdc.MDC_ATTR_SEG_USAGE_CNT:
+                        usage = mAttributes.valueU32(0);
+                        break;
+                    case Mdc.MDC_ATTR_PM_SEG_MAP:
+                        plan = DecodePlan.compileSegment(mAttributes, mConfig);
+                        break;
+                }
+            }
+            if (usage == 0 || plan == null) {
+                continue;
+            }
+            if (mSegmentCount == mSegments.length) {
+                mSegments = Arrays.copyOf(mSegments, 2 * mSegmentCount);
+                mPlans = Arrays.copyOf(mPlans, 2 * mSegmentCount);
+            }
+            mSegments[mSegmentCount] = mSegmentInfo.instance();
+            mPlans[mSegmentCount] = plan;
+            mSegmentCount++;
+        }
+        if (ProtocolTrace.ENABLED) {
+            ProtocolTrace.event(mChannelId, "segments", mHandle, mSegmentCount, null);
+        }
+        mSegment = -1;
+        nextSegment();
+    }
+
+    private boolean nextStore() throws IOException {
+        mSegmentCount = 0;
+        if (mConfig == null || ++mStore >= mConfig.pmStoreCount()) {
+            stop();
+            return false;
+        }
+        mHandle = mConfig.pmStore(mStore);
+        ByteBuffer request = mWriter.obtain();
+        ManagerApdus.putGet(request, nextInvokeId(), mHandle);
+        mWriter.send(request);
+        mState = AWAIT_ATTRIBUTES;
+        return true;
+    }
+
+    private void nextSegment() throws IOException {
+        if (++mSegment >= mSegmentCount) {
+            nextStore();
+            return;
+        }
+        ByteBuffer request = mWriter.obtain();
+        ManagerApdus.putTriggerSegmentTransfer(request, nextInvokeId(), mHandle,
+                mSegments[mSegment]);
+        mWriter.send(request);
+        mState = AWAIT_TRIGGER;
+    }
+
+    private int nextInvokeId() {
+        mInvokeId = mNextInvokeId;
+        mNextInvokeId = mNextInvokeId == 0xFFFF ? FIRST_INVOKE_ID : mNextInvokeId + 1;
+        return mInvokeId;
+    }
+}
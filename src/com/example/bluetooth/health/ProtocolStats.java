@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the protocol stages and counters of protocol events, for one channel
+ * or for many.
+ *
+ * Latencies are kept in microseconds in log-linear buckets, as in an HDR histogram: 16 linear
+ * sub-buckets per power of two, so any recorded value is reported within 1/16 (about 6%) of
+ * its true value, from 1 us to over 19 hours, in a fixed 608 buckets per stage.  Recording is
+ * an index computation and a few uncontended atomic adds, with no locks or allocation, so it
+ * is cheap enough for every APDU.  {@link #snapshot()} copies everything into plain arrays that
+ * can be merged, queried and printed off the hot path.
+ */
+final class ProtocolStats {
+    // Stages.
+    /** Channel connected to association request received. */
+    static final int STAGE_CONNECT_TO_ASSOCIATION = 0;
+    /** Association accepted to first scan report decoded. */
+    static final int STAGE_ASSOCIATION_TO_FIRST_REPORT = 1;
+    /** Confirmed event report received to its response written to the channel. */
+    static final int STAGE_REPORT_TO_ACK = 2;
+    /**
+     * Handling of one received APDU, from framing to the last response queued: decoding, the
+     * listener and the journal it writes to, and obtaining response buffers.
+     */
+    static final int STAGE_HANDLING = 3;
+    static final int STAGES = 4;
+
+    // Counters.
+    static final int RX_AARQ = 0;
+    static final int RX_RLRQ = 1;
+    static final int RX_RLRE = 2;
+    static final int RX_ABRT = 3;
+    static final int RX_EVENT_REPORT = 4;
+    static final int RX_CONFIRMED_EVENT_REPORT = 5;
+    static final int RX_GET_RESPONSE = 6;
+    static final int RX_OTHER_PRST = 7;
+    static final int MALFORMED = 8;
+    static final int ABORTS_SENT = 9;
+    /** Channels opened by a device that has had a channel before. */
+    static final int RECONNECTS = 10;
+    /** Channels refused because every session slot was taken. */
+    static final int REFUSED = 11;
+    /** Associations aborted or channels closed because the agent did not answer in time. */
+    static final int TIMEOUTS = 12;
+    /** Entries received from PM-store segments. */
+    static final int STORED_ENTRIES = 13;
+    /** Observations dropped because the agent had sent them before. */
+    static final int DUPLICATES = 14;
+    static final int COUNTERS = 15;
+
+    private static final String[] STAGE_NAMES = {
+            "connect->association", "association->first report", "report->ack", "handling" };
+    private static final String[] COUNTER_NAMES = {
+            "rx AARQ", "rx RLRQ", "rx RLRE", "rx ABRT", "rx event report",
+            "rx confirmed event report", "rx GET response", "rx other PRST", "malformed",
+            "aborts sent", "reconnects", "refused", "timeouts",
+            "stored entries", "duplicates" };
+
+    // 16 sub-buckets per power of two, 2^0 .. 2^40 us.
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    // Bucket counts of every stage, stage-major; then count, sum and max per stage.
+    private final AtomicLongArray mBuckets = new AtomicLongArray(STAGES * BUCKETS);
+    private final AtomicLongArray mSums = new AtomicLongArray(STAGES);
+    private final AtomicLongArray mMax = new AtomicLongArray(STAGES);
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTERS);
+
+    /** Records that {@code stage} took {@code nanos}. */
+    void record(int stage, long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mBuckets.incrementAndGet(stage * BUCKETS + bucket(micros));
+        mSums.addAndGet(stage, micros);
+        long max;
+        while (micros > (max = mMax.get(stage)) && !mMax.compareAndSet(stage, max, micros)) {
+            // Lost a race with another recorder; retry against the new maximum.
+        }
+    }
+
+    void count(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    void count(int counter, long n) {
+        if (n != 0) {
+            mCounters.addAndGet(counter, n);
+        }
+    }
+
+    /** Adds everything recorded in {@code other}, e.g. a finished channel's. */
+    void add(ProtocolStats other) {
+        Snapshot s = other.snapshot();
+        for (int i = 0; i < s.mBuckets.length; i++) {
+            if (s.mBuckets[i] != 0) {
+                mBuckets.addAndGet(i, s.mBuckets[i]);
+            }
+        }
+        for (int stage = 0; stage < STAGES; stage++) {
+            mSums.addAndGet(stage, s.mSums[stage]);
+            long max;
+            while (s.mMax[stage] > (max = mMax.get(stage))
+                    && !mMax.compareAndSet(stage, max, s.mMax[stage])) {
+                // Retry.
+            }
+        }
+        for (int i = 0; i < COUNTERS; i++) {
+            mCounters.addAndGet(i, s.mCounters[i]);
+        }
+    }
+
+    /**
+     * Copies the current values.  Values recorded concurrently may or may not be included, but
+     * every included one is complete.
+     */
+    Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        for (int i = 0; i < s.mBuckets.length; i++) {
+            s.mBuckets[i] = mBuckets.get(i);
+        }
+        for (int stage = 0; stage < STAGES; stage++) {
+            s.mSums[stage] = mSums.get(stage);
+            s.mMax[stage] = mMax.get(stage);
+        }
+        for (int i = 0; i < COUNTERS; i++) {
+            s.mCounters[i] = mCounters.get(i);
+        }
+        return s;
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT && micros >>> MAX_EXPONENT > 1) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Lowest value that falls into bucket b.
+    static long bucketFloor(int b) {
+        if (b < SUB_BUCKETS) {
+            return b;
+        }
+        int exponent = b / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + b % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    /** A point-in-time copy of the stats, in plain arrays.  Not thread safe. */
+    static final class Snapshot {
+        private final long[] mBuckets = new long[STAGES * BUCKETS];
+        private final long[] mSums = new long[STAGES];
+        private final long[] mMax = new long[STAGES];
+        private final long[] mCounters = new long[COUNTERS];
+
+        /** Adds {@code other} into this snapshot. */
+        Snapshot add(Snapshot other) {
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] += other.mBuckets[i];
+            }
+            for (int stage = 0; stage < STAGES; stage++) {
+                mSums[stage] += other.mSums[stage];
+                mMax[stage] = Math.max(mMax[stage], other.mMax[stage]);
+            }
+            for (int i = 0; i < COUNTERS; i++) {
+                mCounters[i] += other.mCounters[i];
+            }
+            return this;
+        }
+
+        long counter(int counter) {
+            return mCounters[counter];
+        }
+
+        long count(int stage) {
+            long n = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                n += mBuckets[stage * BUCKETS + b];
+            }
+            return n;
+        }
+
+        long meanMicros(int stage) {
+            long n = count(stage);
+            return n > 0 ? mSums[stage] / n : 0;
+        }
+
+        long maxMicros(int stage) {
+            return mMax[stage];
+        }
+
+        /**
+         * The value at {@code percentile} (0..100) of {@code stage}, as the lower bound of its
+         * bucket, or 0 if nothing was recorded.
+         */
+        long percentileMicros(int stage, double percentile) {
+            long n = count(stage);
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += mBuckets[stage * BUCKETS + b];
+                if (seen >= rank) {
+                    return Math.min(bucketFloor(b), mMax[stage]);
+                }
+            }
+            return mMax[stage];
+        }
+
+        void dump(PrintWriter writer) {
+            for (int stage = 0; stage < STAGES; stage++) {
+                writer.printf("  %-26s n=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus%n",
+                        STAGE_NAMES[stage], count(stage), meanMicros(stage),
+                        percentileMicros(stage, 50), percentileMicros(stage, 90),
+                        percentileMicros(stage, 99), maxMicros(stage));
+            }
+            writer.print(' ');
+            for (int i = 0; i < COUNTERS; i++) {
+                writer.print(' ');
+                writer.print(COUNTER_NAMES[i]);
+                writer.print('=');
+                writer.print(mCounters[i]);
+            }
+            writer.println();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * In-memory protocol trace.
+ *
+ * Records go into a fixed number of preallocated slots that are overwritten oldest first.
+ * Recording only copies raw data: APDU bytes (truncated to {@link #PAYLOAD_SIZE}), or a
+ * constant label with two ints and an optional object.  Nothing is formatted until the trace is
+ * dumped, so a trace point costs an array copy at most and allocates nothing.
+ *
+ * Tracing is gated twice.  {@link #ENABLED} is a compile-time constant; call sites test it
+ * first so that javac drops them entirely when it is false.  {@link #setLevel(int)} picks at run
+ * time how much detail is kept.
+ */
+final class ProtocolTrace {
+    /** Compile-time switch.  When false, guarded trace points are compiled out. */
+    static final boolean ENABLED = true;
+
+    static final int LEVEL_OFF = 0;
+    /** State changes, errors and summaries. */
+    static final int LEVEL_EVENTS = 1;
+    /** Everything above plus the bytes of every APDU sent and received. */
+    static final int LEVEL_APDUS = 2;
+
+    static final int SLOTS = 256;
+    static final int PAYLOAD_SIZE = 96;
+
+    private static final int KIND_EVENT = 0;
+    private static final int KIND_RX = 1;
+    private static final int KIND_TX = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static volatile int sLevel = LEVEL_EVENTS;
+
+    // Slot columns, indexed by sequence number modulo SLOTS.
+    private static final long[] sTime = new long[SLOTS];
+    private static final int[] sKind = new int[SLOTS];
+    private static final int[] sChannel = new int[SLOTS];
+    private static final String[] sLabel = new String[SLOTS];
+    private static final int[] sArg1 = new int[SLOTS];
+    private static final int[] sArg2 = new int[SLOTS];
+    private static final Object[] sDetail = new Object[SLOTS];
+    // For APDUs, sArg1 holds the full length and sArg2 the number of bytes kept.
+    private static final byte[] sPayload = new byte[SLOTS * PAYLOAD_SIZE];
+    private static long sNext;
+
+    private ProtocolTrace() {}
+
+    static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    static int getLevel() {
+        return sLevel;
+    }
+
+    static boolean isTracing(int level) {
+        return ENABLED && sLevel >= level;
+    }
+
+    /** Records an APDU received on {@code channel}; the buffer's position is not changed. */
+    static void received(int channel, ByteBuffer apdu) {
+        if (isTracing(LEVEL_APDUS)) {
+            record(KIND_RX, channel, apdu.array(), apdu.arrayOffset() + apdu.position(),
+                    apdu.remaining());
+        }
+    }
+
+    /** Records bytes written to {@code channel}. */
+    static void sent(int channel, byte[] b, int off, int len) {
+        if (isTracing(LEVEL_APDUS)) {
+            record(KIND_TX, channel, b, off, len);
+        }
+    }
+
+    /**
+     * Records an event.  {@code label} should be a constant; {@code detail} is kept by reference
+     * and only converted to a string when the trace is dumped.
+     */
+    static void event(int channel, String label, int arg1, int arg2, Object detail) {
+        if (isTracing(LEVEL_EVENTS)) {
+            synchronized (ProtocolTrace.class) {
+                int slot = (int) (sNext++ % SLOTS);
+                sTime[slot] = System.currentTimeMillis();
+                sKind[slot] = KIND_EVENT;
+                sChannel[slot] = channel;
+                sLabel[slot] = label;
+                sArg1[slot] = arg1;
+                sArg2[slot] = arg2;
+                sDetail[slot] = detail;
+            }
+        }
+    }
+
+    private static void record(int kind, int channel, byte[] b, int off, int len) {
+        int kept = Math.min(len, PAYLOAD_SIZE);
+        synchronized (ProtocolTrace.class) {
+            int slot = (int) (sNext++ % SLOTS);
+            sTime[slot] = System.currentTimeMillis();
+            sKind[slot] = kind;
+            sChannel[slot] = channel;
+            sLabel[slot] = null;
+            sArg1[slot] = len;
+            sArg2[slot] = kept;
+            sDetail[slot] = null;
+            System.arraycopy(b, off, sPayload, slot * PAYLOAD_SIZE, kept);
+        }
+    }
+
+    /** Forgets every record. */
+    static synchronized void clear() {
+        sNext = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            sLabel[i] = null;
+            sDetail[i] = null;
+        }
+    }
+
+    /** Writes the retained records, oldest first. */
+    static synchronized void dump(PrintWriter writer) {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        char[] hex = new char[PAYLOAD_SIZE * 2];
+        long first = Math.max(0, sNext - SLOTS);
+        writer.println("Protocol trace, level " + sLevel + ", " + (sNext - first) + " of "
+                + sNext + " records:");
+        for (long seq = first; seq < sNext; seq++) {
+            int slot = (int) (seq % SLOTS);
+            writer.print(format.format(new Date(sTime[slot])));
+            writer.print(" ch ");
+            writer.print(sChannel[slot]);
+            switch (sKind[slot]) {
+                case KIND_EVENT:
+                    writer.print(' ');
+                    writer.print(sLabel[slot]);
+                    writer.print(' ');
+                    writer.print(sArg1[slot]);
+                    writer.print(' ');
+                    writer.print(sArg2[slot]);
+                    if (sDetail[slot] != null) {
+                        writer.print(' ');
+                        writer.print(sDetail[slot]);
+                    }
+                    break;
+                default:
+                    writer.print(sKind[slot] == KIND_RX ? " rx " : " tx ");
+                    int kept = sArg2[slot];
+                    writer.write(hex, 0, toHex(sPayload, slot * PAYLOAD_SIZE, kept, hex));
+                    if (kept < sArg1[slot]) {
+                        writer.print("... (" + sArg1[slot] + " bytes)");
+                    }
+                    break;
+            }
+            writer.println();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes {@code len} bytes as lower-case hex into {@code out}, which must hold at least
+     * {@code 2 * len} chars.  Returns the number of chars written.
+     */
+    static int toHex(byte[] b, int off, int len, char[] out) {
+        for (int i = 0; i < len; i++) {
+            int v = b[off + i];
+            out[2 * i] = HEX[(v >> 4) & 0x0f];
+            out[2 * i + 1] = HEX[v & 0x0f];
+        }
+        return 2 * len;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes stored readings out as a file, in one of three formats:
+ *
+ * <ul>
+ * <li>{@link #FORMAT_CSV}: a header line, then one line per reading with the device address,
+ * metric and unit codes, value, device time (empty if unknown) and receive time.
+ * <li>{@link #FORMAT_NDJSON}: one JSON object per line with the same fields.
+ * <li>{@link #FORMAT_BUNDLE}: a FHIR Bundle of type collection holding one Observation per
+ * reading, coded in the ISO/IEEE 11073-10101 system (partition-qualified codes).
+ * </ul>
+ *
+ * Times are ISO 8601 in UTC.  Readings come one at a time, from {@link JournalIndex#scan} or
+ * any other caller of {@link #visit}, and are encoded straight into a fixed chunk, which is
+ * written to the output whenever it is nearly full; numbers, addresses and times are formatted
+ * in place.  So an export holds one block of readings and one chunk whatever the size of the
+ * history, and allocates nothing per reading.
+ * An exporter can be reused for any number of exports but is not thread safe.
+ */
+final class ReadingExporter implements JournalIndex.Visitor {
+    static final int FORMAT_CSV = 0;
+    static final int FORMAT_NDJSON = 1;
+    static final int FORMAT_BUNDLE = 2;
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    // Room for the longest encoded reading; the chunk is written out when less is left.
+    private static final int MAX_RECORD = 512;
+
+    // Nomenclature partitions of metric and unit codes.
+    private static final int PARTITION_SCADA = 2;
+    private static final int PARTITION_DIM = 4;
+
+    private static final byte[] CSV_HEADER = ascii("device,metric,value,unit,device_time,time\n");
+    private static final byte[] BUNDLE_START =
+            ascii("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[\n");
+    private static final byte[] BUNDLE_END = ascii("\n]}\n");
+    private static final byte[] OBSERVATION = ascii("{\"resource\":{\"resourceType\":"
+            + "\"Observation\",\"status\":\"final\",\"code\":{\"coding\":[{\"system\":"
+            + "\"urn:iso:std:iso:11073:10101\",\"code\":\"");
+    private static final byte[] OBSERVATION_DEVICE = ascii("\"}]},\"device\":{\"display\":\"");
+    private static final byte[] OBSERVATION_EFFECTIVE = ascii("\"},\"effectiveDateTime\":\"");
+    private static final byte[] OBSERVATION_ISSUED = ascii("\",\"issued\":\"");
+    private static final byte[] OBSERVATION_VALUE = ascii("\",\"valueQuantity\":{\"value\":");
+    private static final byte[] OBSERVATION_UNIT = ascii(",\"system\":"
+            + "\"urn:iso:std:iso:11073:10101\",\"code\":\"");
+    private static final byte[] OBSERVATION_END = ascii("\"}}}");
+    private static final byte[] OBSERVATION_ABSENT = ascii("\",\"dataAbsentReason\":{\"coding\":"
+            + "[{\"system\":\"http://terminology.hl7.org/CodeSystem/data-absent-reason\","
+            + "\"code\":\"not-a-number\"}]}}}");
+    private static final byte[] JSON_DEVICE = ascii("{\"device\":\"");
+    private static final byte[] JSON_METRIC = ascii("\",\"metric\":");
+    private static final byte[] JSON_VALUE = ascii(",\"value\":");
+    private static final byte[] JSON_UNIT = ascii(",\"unit\":");
+    private static final byte[] JSON_DEVICE_TIME = ascii(",\"deviceTime\":");
+    private static final byte[] JSON_TIME = ascii(",\"time\":\"");
+    private static final byte[] JSON_END = ascii("\"}\n");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] NAN = ascii("NaN");
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    private final byte[] mChunk;
+    private int mLength;
+    private OutputStream mOut;
+    private int mFormat;
+    private long mCount;
+
+    /** @param chunkSize bytes buffered before each write to the output. */
+    ReadingExporter(int chunkSize) {
+        mChunk = new byte[Math.max(chunkSize, 2 * MAX_RECORD)];
+    }
+
+    /** File name extension of {@code format}. */
+    static String extension(int format) {
+        switch (format) {
+            case FORMAT_CSV:
+                return "csv";
+            case FORMAT_NDJSON:
+                return "ndjson";
+            default:
+                return "json";
+        }
+    }
+
+    /**
+     * Writes the readings that match a {@link JournalIndex#scan} query to {@code out}, which is
+     * left open.
+     *
+     * @return the number of readings written.
+     */
+    long export(JournalIndex index, int format, long from, long to, long device, int metric,
+            OutputStream out) throws IOException {
+        begin(format, out);
+        try {
+            index.scan(from, to, device, metric, this);
+        } catch (IOException e) {
+            mOut = null;
+            throw e;
+        }
+        return end();
+    }
+
+    /**
+     * Starts writing the readings then passed to {@link #visit} to {@code out}, for callers
+     * that find their readings some other way than a query.
+     */
+    void begin(int format, OutputStream out) throws IOException {
+        mOut = out;
+        mFormat = format;
+        mCount = 0;
+        mLength = 0;
+        if (format == FORMAT_CSV) {
+            put(CSV_HEADER);
+        } else if (format == FORMAT_BUNDLE) {
+            put(BUNDLE_START);
+        }
+    }
+
+    /** Finishes the output started by {@link #begin}, leaving it open, and returns its count. */
+    long end() throws IOException {
+        try {
+            if (mFormat == FORMAT_BUNDLE) {
+                put(BUNDLE_END);
+            }
+            flush();
+        } finally {
+            mOut = null;
+        }
+        return mCount;
+    }
+
+    public void visit(long device, int metric, float value, int unit, long deviceTime,
+            long time) throws IOException {
+        if (mChunk.length - mLength < MAX_RECORD) {
+            flush();
+        }
+        switch (mFormat) {
+            case FORMAT_CSV:
+                putAddress(device);
+                put((byte) ',');
+                putLong(metric);
+                put((byte) ',');
+                if (Float.isNaN(value) || Float.isInfinite(value)) {
+                    put(NAN);
+                } else {
+                    putValue(value);
+                }
+                put((byte) ',');
+                putLong(unit);
+                put((byte) ',');
+                if (deviceTime != 0) {
+                    putTime(deviceTime);
+                }
+                put((byte) ',');
+                putTime(time);
+                put((byte) '\n');
+                break;
+            case FORMAT_NDJSON:
+                put(JSON_DEVICE);
+                putAddress(device);
+                put(JSON_METRIC);
+                putLong(metric);
+                put(JSON_VALUE);
+                if (Float.isNaN(value) || Float.isInfinite(value)) {
+                    put(NULL);
+                } else {
+                    putValue(value);
+                }
+                put(JSON_UNIT);
+                putLong(unit);
+                put(JSON_DEVICE_TIME);
+                if (deviceTime != 0) {
+                    put((byte) '"');
+                    putTime(deviceTime);
+                    put((byte) '"');
+                } else {
+                    put(NULL);
+                }
+                put(JSON_TIME);
+                putTime(time);
+                put(JSON_END);
+                break;
+            default:
+                if (mCount > 0) {
+                    put((byte) ',');
+                    put((byte) '\n');
+                }
+                put(OBSERVATION);
+                putLong((long) PARTITION_SCADA << 16 | metric);
+                put(OBSERVATION_DEVICE);
+                putAddress(device);
+                put(OBSERVATION_EFFECTIVE);
+                putTime(deviceTime != 0 ? deviceTime : time);
+                put(OBSERVATION_ISSUED);
+                putTime(time);
+                if (Float.isNaN(value) || Float.isInfinite(value)) {
+                    put(OBSERVATION_ABSENT);
+                } else {
+                    put(OBSERVATION_VALUE);
+                    putValue(value);
+                    put(OBSERVATION_UNIT);
+                    putLong((long) PARTITION_DIM << 16 | unit);
+                    put(OBSERVATION_END);
+                }
+                break;
+        }
+        mCount++;
+    }
+
+    private void flush() throws IOException {
+        if (mLength > 0) {
+            mOut.write(mChunk, 0, mLength);
+            mLength = 0;
+        }
+    }
+
+    private void put(byte b) {
+        mChunk[mLength++] = b;
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, mChunk, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    private void putLong(long v) {
+        if (v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+        int start = mLength;
+        do {
+            mChunk[mLength++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        // Digits went in least significant first.
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte t = mChunk[i];
+            mChunk[i] = mChunk[j];
+            mChunk[j] = t;
+        }
+    }
+
+    // The shortest decimal of up to six places that reads back as the same float; measured
+    // values have few significant digits, so this is almost always found in a step or two.
+    private void putValue(float v) {
+        if (v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+        if (v < 1e12f) {
+            long scale = 1;
+            for (int places = 0; places <= 6; places++, scale *= 10) {
+                long m = Math.round((double) v * scale);
+                if ((float) ((double) m / scale) == v) {
+                    putLong(m / scale);
+                    if (places > 0) {
+                        put((byte) '.');
+                        long fraction = m % scale;
+                        for (long digit = scale / 10; digit > 0; digit /= 10) {
+                            put((byte) ('0' + fraction / digit % 10));
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+        // Huge or tiny values; not worth avoiding the garbage for.
+        put(ascii(Float.toString(v)));
+    }
+
+    private void putAddress(long address) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            put(HEX[(int) (address >> (shift + 4)) & 0x0f]);
+            put(HEX[(int) (address >> shift) & 0x0f]);
+            if (shift > 0) {
+                put((byte) ':');
+            }
+        }
+    }
+
+    // yyyy-MM-ddTHH:mm:ss.SSSZ, from the proleptic Gregorian calendar in UTC.
+    private void putTime(long ms) {
+        long days = ms / 86400000L;
+        long msOfDay = ms % 86400000L;
+        if (msOfDay < 0) {
+            days--;
+            msOfDay += 86400000L;
+        }
+        // Civil date from days since 1970-01-01, counting in 400-year eras from 0000-03-01.
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096)
+                / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        putDigits(year, 4);
+        put((byte) '-');
+        putDigits(month, 2);
+        put((byte) '-');
+        putDigits(day, 2);
+        put((byte) 'T');
+        putDigits(msOfDay / 3600000, 2);
+        put((byte) ':');
+        putDigits(msOfDay / 60000 % 60, 2);
+        put((byte) ':');
+        putDigits(msOfDay / 1000 % 60, 2);
+        put((byte) '.');
+        putDigits(msOfDay % 1000, 3);
+        put((byte) 'Z');
+    }
+
+    private void putDigits(long v, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            mChunk[mLength + i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        mLength += width;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads the {@link MeasurementJournal} to a backend, in batches, on a thread of its own.
+ *
+ * The journal's sequence numbers are the upload cursor: everything before it has been
+ * acknowledged.  Readings are sent in batches of up to {@code maxReadings}, as gzip-compressed
+ * NDJSON written by a {@link ReadingExporter}; a smaller batch goes once its oldest reading has
+ * waited {@code maxDelayMs}, so a steady trickle of readings costs one request per batch rather
+ * than one per reading, and nothing waits longer than the delay.
+ *
+ * Every batch carries an idempotency key made of an install id and the batch's sequence range.
+ * Before a batch is first sent, its range is recorded next to the cursor in a small state file,
+ * so a batch interrupted by process death is resent with the same readings and the same key
+ * after a restart, and the backend can drop it if it had arrived.  Failures are retried with
+ * exponential backoff and jitter; a batch the backend refuses outright is skipped, since
+ * sending it again cannot help.
+ *
+ * The Bluetooth side only calls {@link #wake()} after appending; reading, encoding and sending
+ * all happen on the upload thread.
+ */
+final class ReadingUploader implements Runnable {
+    static final int DEFAULT_MAX_READINGS = 500;
+    static final long DEFAULT_MAX_DELAY_MS = 30000;
+    static final long DEFAULT_MIN_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    private static final int MAGIC = 0x48445055;  // "HDPU"
+    // How long stop() waits for the upload thread, which only blocks long in the network.
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    /** Where batches go. */
+    interface Transport {
+        /**
+         * Sends one batch of gzip-compressed NDJSON readings.
+         *
+         * @return the HTTP status of the response.
+         * @throws IOException if the backend could not be reached or did not answer.
+         */
+        int upload(String key, byte[] body, int length) throws IOException;
+    }
+
+    private final MeasurementJournal mJournal;
+    private final File mStateFile;
+    private final int mMaxReadings;
+    private final long mMaxDelayMs;
+    private final long mMinBackoffMs;
+    private final ReadingExporter mEncoder =
+            new ReadingExporter(ReadingExporter.DEFAULT_CHUNK_SIZE);
+    private final Body mBody = new Body();
+    private final MeasurementJournal.Record mRecord = new MeasurementJournal.Record();
+    private final Random mRandom = new Random();
+    private final Thread mThread;
+
+    // Guarded by this.
+    private Transport mTransport;
+    private boolean mStopped;
+    // Upload state, persisted in mStateFile: the install id in keys, the first reading not yet
+    // acknowledged and the size of the batch being sent from there, or 0.
+    private long mInstallId;
+    private long mCursor;
+    private int mInFlight;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    /**
+     * Starts the upload thread.  Nothing is sent until a transport is set.
+     *
+     * @param stateFile where the cursor is kept across restarts.
+     */
+    ReadingUploader(MeasurementJournal journal, File stateFile, int maxReadings,
+            long maxDelayMs, long minBackoffMs) {
+        mJournal = journal;
+        mStateFile = stateFile;
+        mMaxReadings = maxReadings;
+        mMaxDelayMs = maxDelayMs;
+        mMinBackoffMs = minBackoffMs;
+        loadState();
+        mThread = new Thread(this, "HDP upload");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Sets where batches go, or pauses uploading if null. */
+    synchronized void setTransport(Transport transport) {
+        mTransport = transport;
+        notifyAll();
+    }
+
+    /** Tells the uploader that readings were appended to the journal. */
+    synchronized void wake() {
+        notifyAll();
+    }
+
+    /**
+     * Stops the upload thread, abandoning any request in progress; its batch is resent by the
+     * next uploader over the same state file.  Waits for the thread to end, so the journal may
+     * be closed afterwards; a thread still stuck in a request no longer reads it.
+     */
+    void stop() {
+        synchronized (this) {
+            mStopped = true;
+            notifyAll();
+        }
+        mThread.interrupt();
+        try {
+            mThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Readings not acknowledged yet. */
+    synchronized long backlog() {
+        return mJournal.size() - mCursor;
+    }
+
+    long requests() {
+        return mRequests.get();
+    }
+
+    long batches() {
+        return mBatches.get();
+    }
+
+    long retries() {
+        return mRetries.get();
+    }
+
+    long rejected() {
+        return mRejected.get();
+    }
+
+    long bytesSent() {
+        return mBytesSent.get();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                long first;
+                int count;
+                synchronized (this) {
+                    count = awaitBatch();
+                    if (count == 0) {
+                        return;
+                    }
+                    first = mCursor;
+                }
+                encode(first, count);
+                String key = String.format("%016x-%d-%d", mInstallId, first, count);
+                int attempt = 0;
+                int status;
+                while (!isSuccess(status = send(key)) && !isRefusal(status)) {
+                    mRetries.incrementAndGet();
+                    if (!backOff(attempt++)) {
+                        return;
+                    }
+                }
+                synchronized (this) {
+                    if (mStopped) {
+                        // The state file may belong to a new uploader by now.
+                        return;
+                    }
+                    if (isSuccess(status)) {
+                        mBatches.incrementAndGet();
+                    } else {
+                        mRejected.incrementAndGet();
+                    }
+                    mCursor = first + count;
+                    mInFlight = 0;
+                    saveState();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (IOException e) {
+            // The journal failed; nothing more can be read from it.
+            if (ProtocolTrace.ENABLED) {
+                ProtocolTrace.event(0, "upload stopped", 0, 0, e);
+            }
+        }
+    }
+
+    // Waits until there is a transport and a batch is due, and returns its size, or 0 once
+    // stopped.  Called with the lock held.
+    private int awaitBatch() throws InterruptedException, IOException {
+        while (!mStopped) {
+            long pending = mJournal.size() - mCursor;
+            long waitMs = 0;
+            if (mTransport != null && pending > 0) {
+                if (mInFlight > 0) {
+                    // The batch a previous run did not see acknowledged, exactly as it was.
+                    return mInFlight;
+                }
+                long age = System.currentTimeMillis()
+                        - mJournal.read(mCursor, mRecord).time();
+                if (pending >= mMaxReadings || age >= mMaxDelayMs) {
+                    mInFlight = (int) Math.min(pending, mMaxReadings);
+                    saveState();
+                    return mInFlight;
+                }
+                waitMs = mMaxDelayMs - age;
+            }
+            wait(waitMs);
+        }
+        return 0;
+    }
+
+    private void encode(long first, int count) throws IOException {
+        mBody.reset();
+        GZIPOutputStream out = new GZIPOutputStream(mBody);
+        try {
+            mEncoder.begin(ReadingExporter.FORMAT_NDJSON, out);
+            for (long seq = first; seq < first + count; seq++) {
+                MeasurementJournal.Record r = mJournal.read(seq, mRecord);
+                mEncoder.visit(r.device(), r.metric(), r.value(), r.unit(), r.deviceTime(),
+                        r.time());
+            }
+            mEncoder.end();
+        } finally {
+            out.close();
+        }
+    }
+
+    // Returns the status of one attempt, or -1 if it failed without one.
+    private int send(String key) throws InterruptedException {
+        Transport transport;
+        synchronized (this) {
+            while (!mStopped && mTransport == null) {
+                wait();
+            }
+            if (mStopped) {
+                throw new InterruptedException();
+            }
+            transport = mTransport;
+        }
+        mRequests.incrementAndGet();
+        mBytesSent.addAndGet(mBody.size());
+        try {
+            return transport.upload(key, mBody.buffer(), mBody.size());
+        } catch (IOException e) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return -1;
+        }
+    }
+
+    // Sleeps before retry number attempt + 1: a random time between half and all of the
+    // backoff, which doubles with every attempt up to MAX_BACKOFF_MS.  Returns false if
+    // stopped meanwhile.
+    private synchronized boolean backOff(int attempt) throws InterruptedException {
+        long backoffMs = Math.min(MAX_BACKOFF_MS, mMinBackoffMs << Math.min(attempt, 20));
+        long deadline = System.currentTimeMillis() + backoffMs / 2
+                + (long) (mRandom.nextDouble() * (backoffMs / 2));
+        long waitMs;
+        while (!mStopped && (waitMs = deadline - System.currentTimeMillis()) > 0) {
+            wait(waitMs);
+        }
+        return !mStopped;
+    }
+
+    private static boolean isSuccess(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    // The backend will never take the batch: a client error other than authentication,
+    // timeout or rate limiting.
+    private static boolean isRefusal(int status) {
+        return status >= 400 && status < 500 && status != 401 && status != 403
+                && status != 408 && status != 429;
+    }
+
+    // Starts afresh, with a new install id, if there is no usable state or the journal is
+    // shorter than the cursor, i.e. it was wiped; keys of the old readings must not be reused.
+    private void loadState() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mStateFile)));
+            try {
+                if (in.readInt() == MAGIC) {
+                    mInstallId = in.readLong();
+                    mCursor = in.readLong();
+                    mInFlight = in.readInt();
+                    if (mCursor >= 0 && mInFlight >= 0
+                            && mCursor + mInFlight <= mJournal.size()) {
+                        return;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Missing or unreadable.
+        }
+        mInstallId = new Random().nextLong();
+        mCursor = 0;
+        mInFlight = 0;
+        saveState();
+    }
+
+    // Written to a temporary file first, so a crash never leaves a half-written state.
+    private void saveState() {
+        File tmp = new File(mStateFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(mInstallId);
+                out.writeLong(mCursor);
+                out.writeInt(mInFlight);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mStateFile)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            // Kept in memory; after a restart some readings may be sent again under new keys.
+        }
+    }
+
+    /** A reusable body buffer, handed to the transport without copying. */
+    private static final class Body extends ByteArrayOutputStream {
+        Body() {
+            super(16 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
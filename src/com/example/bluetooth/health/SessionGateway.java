@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gateway mode: manager sessions for agents tunnelled over TCP, e.g. into an aggregation
+ * server, with any number of connections multiplexed on a few selector threads.
+ *
+ * Every accepted connection carries one agent's APDU stream and gets a {@link ManagerSession}
+ * attached to a {@link SessionRegistry}, whose writer pool, timer wheel and agent cache it
+ * shares with every other session.  Connections are spread round robin over the selector
+ * threads.  When a connection is readable, its thread reads what has arrived straight into the
+ * session's framer and runs the state machine.  Responses are written by the registry's
+ * writers, which try the socket directly and leave whatever it does not take to the selector
+ * thread, and a session that finds every write buffer queued fails rather than waits.  The
+ * listener gets measurements, and the end of each session, on a separate delivery thread, so
+ * journal writes never hold up a selector.  Thus no thread ever blocks on one agent.
+ *
+ * An agent that stops reading is disconnected once {@link #MAX_PENDING_OUTPUT} bytes are
+ * waiting for it; one that stops talking is dealt with by its session's timeouts.  When
+ * {@link #MAX_PENDING_REPORTS} reports wait for delivery, an agent that sends another is
+ * disconnected before that report is confirmed, so the agent sends it again later.  A report
+ * is confirmed once it is queued for delivery, so the listener's answer on the delivery thread
+ * no longer decides whether it is.
+ */
+final class SessionGateway implements Closeable {
+    /** Unsent bytes a connection may hold before it is dropped. */
+    static final int MAX_PENDING_OUTPUT = 64 * 1024;
+    /** Reports with measurements that may wait for the delivery thread. */
+    static final int MAX_PENDING_REPORTS = 1024;
+    // Channel ids of gateway sessions count up from here, clear of the Bluetooth ones.
+    private static final int FIRST_CHANNEL_ID = 0x10000;
+
+    private final SessionRegistry mRegistry;
+    private final Specialization mSpecialization;
+    private final ManagerSession.Listener mListener;
+    private final Loop[] mLoops;
+    private final ThreadPoolExecutor mDelivery;
+    private final AtomicInteger mChannelIds = new AtomicInteger(FIRST_CHANNEL_ID);
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private ServerSocketChannel mServer;
+    private int mNextLoop;
+    private volatile boolean mClosed;
+
+    /**
+     * Starts {@code threads} selector threads.
+     *
+     * @param specialization reported by the sessions; the agents' own configurations decide
+     *     how their reports are decoded.
+     */
+    SessionGateway(SessionRegistry registry, Specialization specialization,
+            ManagerSession.Listener listener, int threads) throws IOException {
+        mRegistry = registry;
+        mSpecialization = specialization;
+        mListener = listener;
+        mDelivery = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_REPORTS), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "HDP gateway delivery");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mLoops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            mLoops[i] = new Loop("HDP gateway " + (i + 1));
+        }
+    }
+
+    /** Accepts agents on {@code address} and returns the address actually bound. */
+    InetSocketAddress bind(InetSocketAddress address) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(address, 1024);
+        server.configureBlocking(false);
+        mServer = server;
+        mLoops[0].execute(new Runnable() {
+            public void run() {
+                try {
+                    server.register(mLoops[0].mSelector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    // Closed meanwhile.
+                }
+            }
+        });
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    /** Open connections. */
+    int connections() {
+        return mConnections.get();
+    }
+
+    /**
+     * Stops accepting, closes every connection, ending its session, and stops the threads.
+     * Measurements already waiting for the delivery thread are still delivered.
+     */
+    public void close() throws IOException {
+        mClosed = true;
+        if (mServer != null) {
+            mServer.close();
+        }
+        for (Loop loop : mLoops) {
+            loop.mSelector.wakeup();
+        }
+        mDelivery.shutdown();
+    }
+
+    // Called on the first loop's thread.  A failure only costs the connection it happened on;
+    // if accepting itself fails, e.g. for want of file descriptors, it is retried on the next
+    // select.
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = mServer.accept();
+            } catch (IOException e) {
+                if (ProtocolTrace.ENABLED) {
+                    ProtocolTrace.event(0, "accept failed", 0, 0, e);
+                }
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            String address;
+            try {
+                channel.configureBlocking(false);
+                Socket socket = channel.socket();
+                socket.setTcpNoDelay(true);
+                address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            } catch (IOException e) {
+                // Reset by the peer already.
+                closeQuietly(channel);
+                continue;
+            }
+            Loop loop = mLoops[mNextLoop++ % mLoops.length];
+            final Connection connection = new Connection(channel, loop, address);
+            mConnections.incrementAndGet();
+            loop.execute(new Runnable() {
+                public void run() {
+                    connection.register();
+                }
+            });
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) { /* Do nothing. */ }
+    }
+
+    private final class Loop implements Runnable {
+        final Selector mSelector;
+        final Thread mThread;
+        final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+        Loop(String name) throws IOException {
+            mSelector = Selector.open();
+            mThread = new Thread(this, name);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        /** Runs {@code task} on this loop's thread. */
+        void execute(Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!mClosed) {
+                    mSelector.select();
+                    runTasks();
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (connection == null) {
+                            accept();
+                            continue;
+                        }
+                        try {
+                            if (key.isWritable()) {
+                                connection.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (RuntimeException e) {
+                            // A bug triggered by one agent must not stop every other one.
+                            if (ProtocolTrace.ENABLED) {
+                                ProtocolTrace.event(0, "connection failed", 0, 0, e);
+                            }
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (ProtocolTrace.ENABLED) {
+                    ProtocolTrace.event(0, "gateway stopped", 0, 0, e);
+                }
+            } finally {
+                for (SelectionKey key : mSelector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                runTasks();
+                try {
+                    mSelector.close();
+                } catch (IOException e) { /* Do nothing. */ }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    if (ProtocolTrace.ENABLED) {
+                        ProtocolTrace.event(0, "gateway task failed", 0, 0, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /** One agent's connection; the transport of its session. */
+    private final class Connection implements ByteTransport {
+        private final SocketChannel mChannel;
+        private final Loop mLoop;
+        private final String mAddress;
+        private final AtomicBoolean mClosed = new AtomicBoolean();
+        // Set on the loop thread before the first read.
+        private SelectionKey mKey;
+        private ManagerSession mSession;
+        // Output the socket did not take yet, in write mode; guarded by this.
+        private ByteBuffer mPending;
+        // Passes the session's events on, measurements and the end via the delivery thread.
+        private final ManagerSession.Listener mEvents = new ManagerSession.Listener() {
+            public void onStateChange(ManagerSession session, ManagerSession.State prev,
+                    ManagerSession.State next) {
+                mListener.onStateChange(session, prev, next);
+            }
+
+            public void onApduReceived(ManagerSession session, ByteBuffer apdu) {
+                mListener.onApduReceived(session, apdu);
+            }
+
+            public void onMalformedApdu(ManagerSession session, MalformedApduException e) {
+                mListener.onMalformedApdu(session, e);
+            }
+
+            // Taken once queued for the delivery thread.
+            public boolean onMeasurements(final ManagerSession session, MeasurementBatch batch) {
+                final MeasurementBatch copy = new MeasurementBatch();
+                copy.addAll(batch);
+                try {
+                    mDelivery.execute(new Runnable() {
+                        public void run() {
+                            mListener.onMeasurements(session, copy);
+                        }
+                    });
+                    return true;
+                } catch (RejectedExecutionException e) {
+                    // The report stays unconfirmed.
+                    close();
+                    return false;
+                }
+            }
+
+            public void onClosed(final ManagerSession session) {
+                try {
+                    mDelivery.execute(new Runnable() {
+                        public void run() {
+                            mListener.onClosed(session);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    mListener.onClosed(session);
+                }
+            }
+        };
+
+        Connection(SocketChannel channel, Loop loop, String address) {
+            mChannel = channel;
+            mLoop = loop;
+            mAddress = address;
+        }
+
+        void register() {
+            mSession = mRegistry.attach(mAddress, mChannelIds.incrementAndGet(),
+                    mSpecialization, this, mEvents);
+            if (SessionGateway.this.mClosed) {
+                close();
+                return;
+            }
+            try {
+                mKey = mChannel.register(mLoop.mSelector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onReadable() {
+            try {
+                if (mSession.receive(mChannel) < 0) {
+                    close();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        synchronized void onWritable() {
+            try {
+                mPending.flip();
+                mChannel.write(mPending);
+                mPending.compact();
+                if (mPending.position() == 0) {
+                    mKey.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Called by the registry's writers.
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (mClosed.get()) {
+                throw new IOException("connection closed");
+            }
+            if (mPending == null || mPending.position() == 0) {
+                ByteBuffer src = ByteBuffer.wrap(b, off, len);
+                mChannel.write(src);
+                if (!src.hasRemaining()) {
+                    return;
+                }
+                off = src.position();
+                len = src.remaining();
+            }
+            if (mPending == null) {
+                mPending = ByteBuffer.allocate(MAX_PENDING_OUTPUT);
+            }
+            if (len > mPending.remaining()) {
+                close();
+                throw new IOException("agent is not reading");
+            }
+            boolean first = mPending.position() == 0;
+            mPending.put(b, off, len);
+            if (first) {
+                mLoop.execute(new Runnable() {
+                    public void run() {
+                        if (mKey != null && mKey.isValid()) {
+                            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+            }
+        }
+
+        // Any thread; the session is ended on the loop thread, which feeds it.
+        public void close() {
+            if (!mClosed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) { /* Do nothing. */ }
+            mLoop.execute(new Runnable() {
+                public void run() {
+                    if (mSession != null) {
+                        mSession.onTransportClosed();
+                        mRegistry.detach(mSession);
+                    }
+                    mConnections.decrementAndGet();
+                }
+            });
+        }
+    }
+}
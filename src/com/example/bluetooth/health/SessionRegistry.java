@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Live manager sessions, keyed by channel ID and looked up by device address.
+ *
+ * All channel I/O runs on two bounded pools owned by the registry: one reader per open session
+ * (at most {@link #MAX_SESSIONS}) and a small shared pool that drains every session's
+ * {@link ApduWriter}.  Idle reader threads time out, so the thread count follows the number of
+ * connected devices and never exceeds the pool sizes.  A channel that arrives when every reader
+ * is busy is refused rather than queued, since a queued agent would time out anyway.
+ *
+ * Sessions whose input is pushed by their owner rather than read by a pooled reader, such as
+ * those of a {@link SessionGateway}, are registered with {@link #attach} instead; they take no
+ * reader and are not limited to {@link #MAX_SESSIONS}.
+ *
+ * One {@link TimerWheel} thread, also owned by the registry, drives the timeouts of every
+ * session.
+ *
+ * The registry also keeps the {@link ProtocolStats} of every channel that has closed, plus
+ * reconnects and refusals, so {@link #snapshot()} covers the service's whole lifetime.
+ */
+final class SessionRegistry {
+    /** A Bluetooth piconet has at most seven active slaves. */
+    static final int MAX_SESSIONS = 7;
+    /** Threads shared by all sessions for writing responses. */
+    static final int WRITER_THREADS = 2;
+    private static final long READER_KEEP_ALIVE_S = 30;
+
+    private final ConcurrentHashMap<Integer, Entry> mSessions =
+            new ConcurrentHashMap<Integer, Entry>();
+    private final ThreadPoolExecutor mReaders;
+    private final ExecutorService mWriters;
+    private final TimerWheel mTimers = new TimerWheel("HDP timers", TimerWheel.DEFAULT_TICK_MS);
+    private final AgentCache mAgents;
+    private final DuplicateFilter mDuplicates;
+    private volatile ManagerApdus.Aare mAare =
+            new ManagerApdus.Aare(ManagerApdus.DEFAULT_SYSTEM_ID);
+    // Stats of closed sessions and of the registry itself.
+    private final ProtocolStats mClosedStats = new ProtocolStats();
+    // Addresses of every device that has opened a channel.
+    private final ConcurrentHashMap<String, Boolean> mSeen =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private static final class Entry {
+        final ManagerSession session;
+        final Closeable channel;
+
+        Entry(ManagerSession session, Closeable channel) {
+            this.session = session;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param agents what is known about agents, shared by all sessions.
+     * @param duplicates drops observations agents send again, or null to deliver all.
+     */
+    SessionRegistry(AgentCache agents, DuplicateFilter duplicates) {
+        mAgents = agents;
+        mDuplicates = duplicates;
+        mReaders = new ThreadPoolExecutor(MAX_SESSIONS, MAX_SESSIONS, READER_KEEP_ALIVE_S,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory(
+                        "HDP reader"));
+        mReaders.allowCoreThreadTimeOut(true);
+        mWriters = Executors.newFixedThreadPool(WRITER_THREADS,
+                new NamedThreadFactory("HDP writer"));
+    }
+
+    /**
+     * Starts a manager session on a connected channel.  The channel is closed when the session
+     * ends, whether the agent went away or {@link #close(int)} was called.
+     *
+     * @throws RejectedExecutionException if {@link #MAX_SESSIONS} sessions are already open.
+     */
+    ManagerSession open(String address, int channelId, Specialization specialization,
+            final InputStream in, OutputStream out, Closeable channel,
+            ManagerSession.Listener listener) {
+        final Entry entry = register(address, channelId, specialization,
+                new StreamTransport(out, channel), ApduWriter.OBTAIN_TIMEOUT_MS, listener);
+        try {
+            mReaders.execute(new Runnable() {
+                public void run() {
+                    try {
+                        entry.session.run(in);
+                    } finally {
+                        finish(entry);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mClosedStats.count(ProtocolStats.REFUSED);
+            mSessions.remove(channelId, entry);
+            closeQuietly(channel);
+            throw e;
+        }
+        return entry.session;
+    }
+
+    /**
+     * Starts a manager session whose input the caller pushes with
+     * {@link ManagerSession#receive}.  Once the transport has closed the caller must call
+     * {@link ManagerSession#onTransportClosed()} and then {@link #detach}.  The session never
+     * waits for a write buffer: if all of them are queued, {@code receive} fails and the caller
+     * should drop the connection.
+     */
+    ManagerSession attach(String address, int channelId, Specialization specialization,
+            ByteTransport transport, ManagerSession.Listener listener) {
+        return register(address, channelId, specialization, transport, 0, listener).session;
+    }
+
+    /** Forgets a session started with {@link #attach} that has ended.  Call once. */
+    void detach(ManagerSession session) {
+        Entry entry = mSessions.get(session.getChannelId());
+        if (entry != null && entry.session == session) {
+            mSessions.remove(session.getChannelId(), entry);
+        }
+        mClosedStats.add(session.getStats());
+    }
+
+    ManagerSession get(int channelId) {
+        Entry entry = mSessions.get(channelId);
+        return entry != null ? entry.session : null;
+    }
+
+    /** Sessions currently open with the device at {@code address}. */
+    List<ManagerSession> forDevice(String address) {
+        List<ManagerSession> result = new ArrayList<ManagerSession>();
+        for (Entry entry : mSessions.values()) {
+            if (entry.session.getDeviceAddress().equals(address)) {
+                result.add(entry.session);
+            }
+        }
+        return result;
+    }
+
+    /** Closes one channel; its session ends and every other session is left alone. */
+    void close(int channelId) {
+        Entry entry = mSessions.remove(channelId);
+        if (entry != null) {
+            closeQuietly(entry.channel);
+        }
+    }
+
+    int size() {
+        return mSessions.size();
+    }
+
+    /**
+     * Stats of every channel since the registry was created.  A session that closes while the
+     * snapshot is taken may be left out.
+     */
+    ProtocolStats.Snapshot snapshot() {
+        ProtocolStats.Snapshot snapshot = mClosedStats.snapshot();
+        for (Entry entry : mSessions.values()) {
+            snapshot.add(entry.session.getStats().snapshot());
+        }
+        return snapshot;
+    }
+
+    /** Open sessions, in no particular order. */
+    List<ManagerSession> sessions() {
+        List<ManagerSession> result = new ArrayList<ManagerSession>();
+        for (Entry entry : mSessions.values()) {
+            result.add(entry.session);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the system-id the manager gives agents in its association responses, from sessions
+     * opened from now on; {@link ManagerApdus#DEFAULT_SYSTEM_ID} until then.
+     */
+    void setSystemId(long systemId) {
+        mAare = new ManagerApdus.Aare(systemId);
+    }
+
+    /** Closes every channel and stops the pools and the timers. */
+    void shutdown() {
+        for (Integer channelId : mSessions.keySet()) {
+            close(channelId);
+        }
+        mReaders.shutdown();
+        mWriters.shutdown();
+        mTimers.stop();
+    }
+
+    private Entry register(String address, int channelId, Specialization specialization,
+            ByteTransport transport, long obtainTimeoutMs, ManagerSession.Listener listener) {
+        ManagerSession session = new ManagerSession(address, channelId, specialization,
+                transport, mWriters, obtainTimeoutMs, mTimers, mAgents, mDuplicates, mAare,
+                listener);
+        Entry entry = new Entry(session, transport);
+        if (mSeen.putIfAbsent(address, Boolean.TRUE) != null) {
+            mClosedStats.count(ProtocolStats.RECONNECTS);
+        }
+        Entry previous = mSessions.put(channelId, entry);
+        if (previous != null) {
+            closeQuietly(previous.channel);
+        }
+        return entry;
+    }
+
+    private void finish(Entry entry) {
+        mSessions.remove(entry.session.getChannelId(), entry);
+        closeQuietly(entry.channel);
+        mClosedStats.add(entry.session.getStats());
+    }
+
+    private static void closeQuietly(Closeable channel) {
+        try {
+            channel.close();
+        } catch (IOException e) { /* Do nothing. */ }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mPrefix + " " + mCount.incrementAndGet());
+        }
+    }
+}
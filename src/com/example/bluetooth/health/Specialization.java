@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An IEEE 11073-104xx device specialization: the HDP data type a sink registers for, and the
+ * standard configurations its agents may associate with.
+ *
+ * Specializations live in a static registry.  The built-in ones are registered when the class
+ * is loaded; others can be added with {@link #register(Specialization)} before any session
+ * starts.  Lookups by data type index a table and lookups by dev-config-id hit one map, so
+ * dispatch does not depend on the number of specializations.
+ */
+final class Specialization {
+    // HDP data types (MDEP data types of the IEEE 11073 specializations).
+    static final int DATA_TYPE_BLOOD_PRESSURE = 0x1007;
+    static final int DATA_TYPE_THERMOMETER = 0x1008;
+    static final int DATA_TYPE_WEIGHT_SCALE = 0x100F;
+    static final int DATA_TYPE_GLUCOSE = 0x1011;
+
+    // Device configurations 1..0x3FFF are defined by the specializations and mean the same
+    // thing for every agent; anything above is only meaningful to the agent that sent it.
+    static final int MAX_STANDARD_CONFIG_ID = 0x3FFF;
+
+    // Data types are 0x1000 plus the specialization's number.
+    private static final int DATA_TYPE_BASE = 0x1000;
+    private static final int DATA_TYPE_SLOTS = 0x80;
+
+    private static final Specialization[] sByDataType = new Specialization[DATA_TYPE_SLOTS];
+    private static final HashMap<Integer, DecodePlan> sStandardPlans =
+            new HashMap<Integer, DecodePlan>();
+    private static final ArrayList<Specialization> sAll = new ArrayList<Specialization>();
+
+    static {
+        // IEEE 11073-10407: handle 1 holds systolic, diastolic and MAP as a basic compound
+        // value, handle 2 the pulse rate; each is followed by a time stamp.
+        register(new Specialization(DATA_TYPE_BLOOD_PRESSURE, "blood pressure")
+                .standard(0x02BC, bloodPressure(Mdc.MDC_DIM_MMHG))
+                .standard(0x02BD, bloodPressure(Mdc.MDC_DIM_KILO_PASCAL)));
+        // IEEE 11073-10408: handle 1 holds the temperature as an SFLOAT and a time stamp.
+        register(new Specialization(DATA_TYPE_THERMOMETER, "thermometer")
+                .standard(0x0320, single(DecodePlan.KIND_SFLOAT, Mdc.MDC_TEMP_BODY,
+                        Mdc.MDC_DIM_DEGC)));
+        // IEEE 11073-10415: handle 1 holds the weight as a FLOAT and a time stamp.
+        register(new Specialization(DATA_TYPE_WEIGHT_SCALE, "weight scale")
+                .standard(0x05DC, single(DecodePlan.KIND_FLOAT, Mdc.MDC_MASS_BODY_ACTUAL,
+                        Mdc.MDC_DIM_KILO_G))
+                .standard(0x05DD, single(DecodePlan.KIND_FLOAT, Mdc.MDC_MASS_BODY_ACTUAL,
+                        Mdc.MDC_DIM_LB)));
+        // IEEE 11073-10417: handle 1 holds the glucose concentration as an SFLOAT and a time
+        // stamp.
+        register(new Specialization(DATA_TYPE_GLUCOSE, "glucose meter")
+                .standard(0x06A4, single(DecodePlan.KIND_SFLOAT,
+                        Mdc.MDC_CONC_GLU_CAPILLARY_WHOLEBLOOD, Mdc.MDC_DIM_MILLI_G_PER_DL))
+                .standard(0x06A5, single(DecodePlan.KIND_SFLOAT,
+                        Mdc.MDC_CONC_GLU_CAPILLARY_WHOLEBLOOD, Mdc.MDC_DIM_MILLI_MOLE_PER_L)));
+    }
+
+    final int dataType;
+    /** Human-readable name, also used to name the sink app configuration. */
+    final String name;
+    private final HashMap<Integer, DecodePlan> mPlans = new HashMap<Integer, DecodePlan>();
+
+    Specialization(int dataType, String name) {
+        if (dataType < DATA_TYPE_BASE || dataType >= DATA_TYPE_BASE + DATA_TYPE_SLOTS) {
+            throw new IllegalArgumentException("data type " + Integer.toHexString(dataType));
+        }
+        this.dataType = dataType;
+        this.name = name;
+    }
+
+    /** Adds standard configuration {@code devConfigId}, decoded with {@code plan}. */
+    Specialization standard(int devConfigId, DecodePlan plan) {
+        if (devConfigId > MAX_STANDARD_CONFIG_ID) {
+            throw new IllegalArgumentException("config " + Integer.toHexString(devConfigId));
+        }
+        mPlans.put(devConfigId, plan);
+        return this;
+    }
+
+    /** Adds a specialization.  Not thread safe: call before sessions start. */
+    static void register(Specialization specialization) {
+        sByDataType[specialization.dataType - DATA_TYPE_BASE] = specialization;
+        sStandardPlans.putAll(specialization.mPlans);
+        sAll.add(specialization);
+    }
+
+    /** The specialization registered for {@code dataType}, or null. */
+    static Specialization forDataType(int dataType) {
+        int slot = dataType - DATA_TYPE_BASE;
+        return slot >= 0 && slot < DATA_TYPE_SLOTS ? sByDataType[slot] : null;
+    }
+
+    /** The plan of standard configuration {@code devConfigId} of any specialization, or null. */
+    static DecodePlan standardPlan(int devConfigId) {
+        return sStandardPlans.get(devConfigId);
+    }
+
+    static List<Specialization> all() {
+        return Collections.unmodifiableList(sAll);
+    }
+
+    private static DecodePlan bloodPressure(int unit) {
+        return new DecodePlan.Builder()
+                .object(1)
+                .read(DecodePlan.KIND_SFLOAT, 4, Mdc.MDC_PRESS_BLD_NONINV_SYS, unit)
+                .read(DecodePlan.KIND_SFLOAT, 6, Mdc.MDC_PRESS_BLD_NONINV_DIA, unit)
+                .read(DecodePlan.KIND_SFLOAT, 8, Mdc.MDC_PRESS_BLD_NONINV_MEAN, unit)
+                .time(10)
+                .object(2)
+                .read(DecodePlan.KIND_SFLOAT, 0, Mdc.MDC_PULS_RATE_NON_INV,
+                        Mdc.MDC_DIM_BEAT_PER_MIN)
+                .time(2)
+                .build();
+    }
+
+    // One numeric value at the start of object 1, then its time stamp.
+    private static DecodePlan single(int kind, int metric, int unit) {
+        return new DecodePlan.Builder().object(1).read(kind, 0, metric, unit)
+                .time(kind == DecodePlan.KIND_FLOAT ? 4 : 2).build();
+    }
+}
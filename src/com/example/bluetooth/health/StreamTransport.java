@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** A {@link ByteTransport} over a blocking stream, e.g. a health channel's file descriptor. */
+final class StreamTransport implements ByteTransport {
+    private final OutputStream mOut;
+    private final Closeable mChannel;
+
+    /** @param channel closed to end the stream in both directions. */
+    StreamTransport(OutputStream out, Closeable channel) {
+        mOut = out;
+        mChannel = channel;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        mOut.write(b, off, len);
+    }
+
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
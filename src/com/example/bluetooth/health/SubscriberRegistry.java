@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clients of the service and what each of them wants to hear about.
+ *
+ * Every subscriber has a filter (status messages, measurements or both; optionally one device
+ * and one metric) and its own {@link BoundedQueue}.  Publishing only offers to the queues of
+ * matching subscribers and never waits: delivery runs on a shared executor, with at most one
+ * drain per subscriber scheduled at a time, so a slow or hung client only backs up its own
+ * queue.  When a queue is full the subscriber's policy decides what gives:
+ *
+ * <ul>
+ * <li>{@link #POLICY_DROP_NEWEST}: the new event is dropped.
+ * <li>{@link #POLICY_DROP_OLDEST}: the oldest queued event is dropped to make room.
+ * <li>{@link #POLICY_COALESCE}: measurements are merged into one overflow batch and only the
+ * latest status is kept.  Until the queue has drained and the overflow been delivered, later
+ * events go to the overflow too, so the client still sees everything in order.  Nothing is
+ * lost but intermediate statuses, unless the overflow reaches {@link #OVERFLOW_CAPACITY}
+ * observations; then further batches are dropped.
+ * </ul>
+ *
+ * A client whose delivery fails is unsubscribed.
+ */
+final class SubscriberRegistry {
+    // Kinds of events, as a mask.
+    static final int KIND_STATUS = 1;
+    static final int KIND_DATA = 2;
+    static final int KIND_ALL = KIND_STATUS | KIND_DATA;
+
+    static final int POLICY_DROP_NEWEST = 0;
+    static final int POLICY_DROP_OLDEST = 1;
+    static final int POLICY_COALESCE = 2;
+
+    static final int DEFAULT_CAPACITY = 64;
+    /** Observations a coalescing subscriber's overflow batch may hold. */
+    static final int OVERFLOW_CAPACITY = 4096;
+    /** Metric of a filter that matches every metric. */
+    static final int ANY_METRIC = 0;
+
+    // No status is waiting in a coalescing subscriber's overflow.
+    private static final long NO_STATUS = -1;
+
+    /** Where a subscriber's events go.  Called on a delivery thread, one event at a time. */
+    interface Client {
+        /** Returns false if the client is gone and should be unsubscribed. */
+        boolean onStatus(int what, int arg);
+
+        /**
+         * Returns false if the client is gone.  The batch may be shared with other subscribers
+         * and must not be modified.
+         */
+        boolean onMeasurements(MeasurementBatch batch);
+    }
+
+    /** What a subscriber receives.  Instances are immutable. */
+    static final class Filter {
+        static final Filter ALL = new Filter(KIND_ALL, null, ANY_METRIC);
+
+        final int kinds;
+        /** Address of the only device reported, or null for every device. */
+        final String device;
+        final int metric;
+
+        Filter(int kinds, String device, int metric) {
+            this.kinds = kinds;
+            this.device = device;
+            this.metric = metric;
+        }
+
+        boolean matchesEverything() {
+            return device == null && metric == ANY_METRIC;
+        }
+
+        boolean matches(String device, int metric) {
+            return (this.device == null || this.device.equals(device))
+                    && (this.metric == ANY_METRIC || this.metric == metric);
+        }
+    }
+
+    private final ConcurrentHashMap<Object, Subscriber> mSubscribers =
+            new ConcurrentHashMap<Object, Subscriber>();
+    private final Executor mExecutor;
+
+    /** @param executor runs deliveries; a few threads are enough for any number of clients. */
+    SubscriberRegistry(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Adds a subscriber, or replaces the one registered under {@code key}.
+     *
+     * @param key identifies the client, e.g. its Messenger.
+     * @param capacity events that may wait for delivery, rounded up to a power of two.
+     */
+    void subscribe(Object key, Client client, Filter filter, int policy, int capacity) {
+        Subscriber previous = mSubscribers.put(key,
+                new Subscriber(key, client, filter, policy, capacity));
+        if (previous != null) {
+            previous.mClosed = true;
+        }
+    }
+
+    void unsubscribe(Object key) {
+        Subscriber subscriber = mSubscribers.remove(key);
+        if (subscriber != null) {
+            subscriber.mClosed = true;
+        }
+    }
+
+    int size() {
+        return mSubscribers.size();
+    }
+
+    /** Events dropped so far for the subscriber registered under {@code key}. */
+    long dropped(Object key) {
+        Subscriber subscriber = mSubscribers.get(key);
+        return subscriber != null ? subscriber.mDropped.get() : 0;
+    }
+
+    /** Queues a status message for every subscriber of statuses. */
+    void publishStatus(int what, int arg) {
+        Status status = null;
+        for (Subscriber subscriber : mSubscribers.values()) {
+            if ((subscriber.mFilter.kinds & KIND_STATUS) != 0) {
+                if (status == null) {
+                    status = new Status(what, arg);
+                }
+                subscriber.offerStatus(status);
+            }
+        }
+    }
+
+    /**
+     * Queues the observations of {@code batch} that each subscriber of measurements asked for.
+     * Subscribers share copies, so {@code batch} may be reused once this returns.
+     */
+    void publishMeasurements(MeasurementBatch batch) {
+        MeasurementBatch all = null;
+        for (Subscriber subscriber : mSubscribers.values()) {
+            Filter filter = subscriber.mFilter;
+            if ((filter.kinds & KIND_DATA) == 0) {
+                continue;
+            }
+            MeasurementBatch copy;
+            if (filter.matchesEverything()) {
+                if (all == null) {
+                    all = new MeasurementBatch();
+                    all.addAll(batch);
+                }
+                copy = all;
+            } else {
+                copy = new MeasurementBatch();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (filter.matches(batch.device(i), batch.metric(i))) {
+                        copy.add(batch.device(i), batch.metric(i), batch.value(i),
+                                batch.unit(i), batch.deviceTime(i), batch.time(i));
+                    }
+                }
+            }
+            if (copy.size() > 0) {
+                subscriber.offerMeasurements(copy);
+            }
+        }
+    }
+
+    private static final class Status {
+        final int what;
+        final int arg;
+
+        Status(int what, int arg) {
+            this.what = what;
+            this.arg = arg;
+        }
+    }
+
+    // The overflow of a coalescing subscriber, taken for delivery.
+    private static final class Overflow {
+        final MeasurementBatch batch;
+        final long status;
+
+        Overflow(MeasurementBatch batch, long status) {
+            this.batch = batch;
+            this.status = status;
+        }
+    }
+
+    private final class Subscriber implements Runnable {
+        final Object mKey;
+        final Client mClient;
+        final Filter mFilter;
+        final int mPolicy;
+        // Status or MeasurementBatch events.
+        final BoundedQueue<Object> mQueue;
+        final AtomicBoolean mScheduled = new AtomicBoolean();
+        final AtomicLong mDropped = new AtomicLong();
+        // Coalesced overflow, delivered after the queue, all guarded by mOverflow: measurements,
+        // the latest status as (what << 32 | arg) or NO_STATUS, and whether events go to the
+        // overflow rather than the queue.  Coalescing offers take the lock too.
+        final MeasurementBatch mOverflow = new MeasurementBatch();
+        long mOverflowStatus = NO_STATUS;
+        boolean mCoalescing;
+        volatile boolean mClosed;
+
+        Subscriber(Object key, Client client, Filter filter, int policy, int capacity) {
+            mKey = key;
+            mClient = client;
+            mFilter = filter;
+            mPolicy = policy;
+            mQueue = new BoundedQueue<Object>(capacity);
+        }
+
+        void offerStatus(Status status) {
+            if (mPolicy != POLICY_COALESCE) {
+                offer(status);
+            } else {
+                synchronized (mOverflow) {
+                    if (mCoalescing || !mQueue.offer(status)) {
+                        mCoalescing = true;
+                        mOverflowStatus = (long) status.what << 32 | (status.arg & 0xffffffffL);
+                    }
+                }
+            }
+            schedule();
+        }
+
+        void offerMeasurements(MeasurementBatch batch) {
+            if (mPolicy != POLICY_COALESCE) {
+                offer(batch);
+            } else {
+                synchronized (mOverflow) {
+                    if (mCoalescing || !mQueue.offer(batch)) {
+                        mCoalescing = true;
+                        if (mOverflow.size() + batch.size() <= OVERFLOW_CAPACITY) {
+                            mOverflow.addAll(batch);
+                        } else {
+                            mDropped.incrementAndGet();
+                        }
+                    }
+                }
+            }
+            schedule();
+        }
+
+        // Queues event under a dropping policy.
+        private void offer(Object event) {
+            if (mQueue.offer(event)) {
+                return;
+            }
+            if (mPolicy == POLICY_DROP_OLDEST) {
+                // The consumer may free a slot meanwhile; either way the event gets in.
+                do {
+                    if (mQueue.poll() != null) {
+                        mDropped.incrementAndGet();
+                    }
+                } while (!mQueue.offer(event));
+            } else {
+                mDropped.incrementAndGet();
+            }
+        }
+
+        private void schedule() {
+            if (!mClosed && mScheduled.compareAndSet(false, true)) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The service is shutting down.
+                    mScheduled.set(false);
+                }
+            }
+        }
+
+        public void run() {
+            boolean alive = true;
+            try {
+                Object event;
+                while (alive && !mClosed && (event = next()) != null) {
+                    alive = deliver(event);
+                }
+            } finally {
+                mScheduled.set(false);
+            }
+            if (!alive) {
+                mClosed = true;
+                mSubscribers.remove(mKey, this);
+            } else if (!mQueue.isEmpty() || hasOverflow()) {
+                // Offered after the last poll but before the flag was cleared.
+                schedule();
+            }
+        }
+
+        // The next event to deliver: the head of the queue or, once the queue is empty, the
+        // overflow.
+        private Object next() {
+            Object event = mQueue.poll();
+            if (event != null || mPolicy != POLICY_COALESCE) {
+                return event;
+            }
+            synchronized (mOverflow) {
+                // Offers happen under the lock, so an empty queue here stays behind the overflow.
+                event = mQueue.poll();
+                if (event != null || !mCoalescing) {
+                    return event;
+                }
+                MeasurementBatch batch = null;
+                if (mOverflow.size() > 0) {
+                    batch = new MeasurementBatch();
+                    batch.addAll(mOverflow);
+                    mOverflow.clear();
+                }
+                event = new Overflow(batch, mOverflowStatus);
+                mOverflowStatus = NO_STATUS;
+                mCoalescing = false;
+                return event;
+            }
+        }
+
+        private boolean hasOverflow() {
+            if (mPolicy != POLICY_COALESCE) {
+                return false;
+            }
+            synchronized (mOverflow) {
+                return mCoalescing;
+            }
+        }
+
+        private boolean deliver(Object event) {
+            if (event instanceof Status) {
+                Status status = (Status) event;
+                return mClient.onStatus(status.what, status.arg);
+            }
+            if (event instanceof Overflow) {
+                Overflow overflow = (Overflow) event;
+                if (overflow.batch != null && !mClient.onMeasurements(overflow.batch)) {
+                    return false;
+                }
+                return overflow.status == NO_STATUS
+                        || mClient.onStatus((int) (overflow.status >> 32), (int) overflow.status);
+            }
+            return mClient.onMeasurements((MeasurementBatch) event);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel: one thread that drives any number of timeouts.
+ *
+ * Time advances in ticks of a fixed length.  A timer due at tick {@code t} sits in the doubly
+ * linked list of bucket {@code t % WHEEL_SIZE}; each tick the thread walks one bucket and fires
+ * the timers whose tick has come, leaving those a whole revolution or more away.  Arming,
+ * re-arming and cancelling a {@link Timer} are O(1) list operations under the wheel's lock, and
+ * a timer is a reusable object, so protocol timeouts cost no allocation and no thread each.
+ * Timers fire up to one tick late and never early.
+ *
+ * Expired tasks run on the wheel thread, outside the lock, and must be short.  A task may still
+ * run after a cancel that raced with its expiry; {@link Timer#cancel()} returns false then.
+ */
+final class TimerWheel implements Runnable {
+    static final long DEFAULT_TICK_MS = 100;
+    /** Buckets per revolution; a power of two. */
+    static final int WHEEL_SIZE = 512;
+
+    private final long mTickMs;
+    private final Timer[] mBuckets = new Timer[WHEEL_SIZE];
+    private final Thread mThread;
+    private final long mStartNs;
+    // Last tick processed; guarded by this.
+    private long mTick;
+    // Timers collected by the wheel thread for running; only used on that thread.
+    private final ArrayList<Timer> mExpired = new ArrayList<Timer>();
+    private volatile boolean mStopped;
+
+    /** A reusable timeout.  Thread safe. */
+    final class Timer {
+        private final Runnable mTask;
+        // Neighbours in the bucket list and the tick the timer is due, while armed.
+        private Timer mPrev;
+        private Timer mNext;
+        private long mDeadline;
+        private boolean mArmed;
+
+        private Timer(Runnable task) {
+            mTask = task;
+        }
+
+        /** Fires the task after {@code delayMs}, replacing any earlier arming. */
+        void arm(long delayMs) {
+            synchronized (TimerWheel.this) {
+                if (mArmed) {
+                    unlink(this);
+                }
+                // The first tick at or after the due time, counted from the wheel's start.
+                long dueMs = (System.nanoTime() - mStartNs) / 1000000 + Math.max(0, delayMs);
+                mDeadline = Math.max(mTick + 1, (dueMs + mTickMs - 1) / mTickMs);
+                link(this);
+            }
+        }
+
+        /** Disarms the timer.  Returns false if it was not armed, e.g. because it just fired. */
+        boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (!mArmed) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            }
+        }
+
+        boolean isArmed() {
+            synchronized (TimerWheel.this) {
+                return mArmed;
+            }
+        }
+    }
+
+    /** Starts the wheel thread, named {@code name}. */
+    TimerWheel(String name, long tickMs) {
+        mTickMs = tickMs;
+        mStartNs = System.nanoTime();
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    Timer newTimer(Runnable task) {
+        return new Timer(task);
+    }
+
+    /** Stops the thread.  Armed timers never fire. */
+    void stop() {
+        mStopped = true;
+        mThread.interrupt();
+    }
+
+    public void run() {
+        long tick = 0;
+        while (!mStopped) {
+            // Sleep until the next tick is due, then catch up on any that were missed.
+            long waitMs = (tick + 1) * mTickMs - (System.nanoTime() - mStartNs) / 1000000;
+            if (waitMs > 0) {
+                try {
+                    Thread.sleep(waitMs);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            tick++;
+            synchronized (this) {
+                mTick = tick;
+                Timer timer = mBuckets[(int) tick & (WHEEL_SIZE - 1)];
+                while (timer != null) {
+                    Timer next = timer.mNext;
+                    if (timer.mDeadline <= tick) {
+                        unlink(timer);
+                        mExpired.add(timer);
+                    }
+                    timer = next;
+                }
+            }
+            for (int i = 0; i < mExpired.size(); i++) {
+                try {
+                    mExpired.get(i).mTask.run();
+                } catch (RuntimeException e) {
+                    // One broken task must not stop every other timeout.
+                    if (ProtocolTrace.ENABLED) {
+                        ProtocolTrace.event(0, "timer task failed", 0, 0, e);
+                    }
+                }
+            }
+            mExpired.clear();
+        }
+    }
+
+    // Both called with the lock held.
+
+    private void link(Timer timer) {
+        int bucket = (int) timer.mDeadline & (WHEEL_SIZE - 1);
+        timer.mPrev = null;
+        timer.mNext = mBuckets[bucket];
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer;
+        }
+        mBuckets[bucket] = timer;
+        timer.mArmed = true;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else {
+            mBuckets[(int) timer.mDeadline & (WHEEL_SIZE - 1)] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+        timer.mPrev = null;
+        timer.mNext = null;
+        timer.mArmed = false;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Microbenchmarks of the protocol hot paths, run on a desktop JVM:
+ *
+ * <pre>
+ *   java com.example.bluetooth.health.Benchmarks [--warmup MS] [--time MS] [NAME...]
+ * </pre>
+ *
+ * Each benchmark is warmed up, then timed over {@link #ITERATIONS} iterations; the score is
+ * operations per second with a 99.9% confidence interval.  Allocation is read from the
+ * benchmark thread's allocated-bytes counter (HotSpot only) and reported per operation and per
+ * second; it does not include allocation on other threads, so it is left out for sessions.
+ * Names select benchmarks by prefix.
+ *
+ * Fixtures are the two blood pressure scan reports of decode.txt.
+ */
+final class Benchmarks {
+    static final int ITERATIONS = 5;
+    // Student's t for ITERATIONS - 1 degrees of freedom, two-sided 99.9%.
+    private static final double T_999 = 8.610;
+
+    // decode.txt: systolic, diastolic and MAP of two measurements, then their pulse rates.
+    private static final byte[] REPORT_1 = hex("e7000046004410000101003e0000ffffffff0d1d"
+            + " 0034 f000 0000 0002 002c"
+            + " 0001 0012 0003 0006 0067 0042 004c 2012010616521300"
+            + " 0001 0012 0003 0006 006d 003e 0043 2012010616550400");
+    private static final byte[] REPORT_2 = hex("e7000036003410010101002e0000ffffffff0d1d"
+            + " 0024 f000 0001 0002 001c"
+            + " 0002 000a 0046 2012010616521300"
+            + " 0002 000a 0052 2012010616550400");
+
+    private static volatile int sSink;
+
+    /** One operation of a benchmark.  Results should be passed to {@link #consume(int)}. */
+    abstract static class Benchmark {
+        final String name;
+        final boolean measureAllocation;
+
+        Benchmark(String name, boolean measureAllocation) {
+            this.name = name;
+            this.measureAllocation = measureAllocation;
+        }
+
+        void setUp() throws Exception {}
+
+        abstract void run() throws Exception;
+
+        void tearDown() throws Exception {}
+    }
+
+    private static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<Benchmark>();
+
+        // Both reports, fed in 7-byte pieces as they might come off the channel.
+        list.add(new Benchmark("framing", true) {
+            private final byte[] mStream = concat(REPORT_1, REPORT_2);
+            private final ApduFramer mFramer = new ApduFramer(new ApduFramer.Listener() {
+                public void onApdu(ByteBuffer apdu) {
+                    consume(apdu.remaining());
+                }
+            });
+
+            @Override
+            void run() throws IOException {
+                for (int off = 0; off < mStream.length; off += 7) {
+                    mFramer.feed(mStream, off, Math.min(7, mStream.length - off));
+                }
+            }
+        });
+
+        list.add(new Benchmark("decode", true) {
+            private final ByteBuffer mReport1 = ByteBuffer.wrap(REPORT_1);
+            private final ByteBuffer mReport2 = ByteBuffer.wrap(REPORT_2);
+            private final Apdu.Prst mPrst = new Apdu.Prst();
+            private final Apdu.ScanReportFixed mFixed = new Apdu.ScanReportFixed();
+            private final MeasurementBatch mBatch = new MeasurementBatch();
+            private final DecodePlan mPlan =
+                    Specialization.standardPlan(SimulatedAgent.STANDARD_BLOOD_PRESSURE);
+
+            @Override
+            void run() throws IOException {
+                mBatch.clear();
+                mPlan.decode(mFixed.wrap(mPrst.wrap(mReport1)), "AA", 0, 0, mBatch);
+                mPlan.decode(mFixed.wrap(mPrst.wrap(mReport2)), "AA", 0, 0, mBatch);
+                consume(mBatch.size());
+            }
+        });
+
+        list.add(new Benchmark("encode", true) {
+            private final ByteBuffer mBuf = ByteBuffer.allocate(ApduWriter.BUFFER_SIZE);
+            private int mInvokeId;
+
+            @Override
+            void run() {
+                mBuf.clear();
+                ManagerApdus.putEventReportResponse(mBuf, mInvokeId++ & 0xffff, 0,
+                        Apdu.MDC_NOTI_SCAN_REPORT_FIXED);
+                consume(mBuf.position());
+            }
+        });
+
+        list.add(new Benchmark("trace.hex", true) {
+            private final char[] mHex = new char[2 * REPORT_1.length];
+
+            @Override
+            void run() {
+                consume(ProtocolTrace.toHex(REPORT_1, 0, REPORT_1.length, mHex));
+            }
+        });
+
+        list.add(new Benchmark("trace.record", true) {
+            private final ByteBuffer mReport = ByteBuffer.wrap(REPORT_1);
+            private int mLevel;
+
+            @Override
+            void setUp() {
+                mLevel = ProtocolTrace.getLevel();
+                ProtocolTrace.setLevel(ProtocolTrace.LEVEL_APDUS);
+            }
+
+            @Override
+            void run() {
+                ProtocolTrace.received(1, mReport);
+            }
+
+            @Override
+            void tearDown() {
+                ProtocolTrace.setLevel(mLevel);
+                ProtocolTrace.clear();
+            }
+        });
+
+        // A whole association, two reports and a release against a manager on another thread.
+        list.add(new Benchmark("session", false) {
+            private final List<byte[]> mScript = new ArrayList<byte[]>();
+            private ExecutorService mReader;
+            private ExecutorService mWriter;
+            private AgentCache mAgents;
+            private TimerWheel mTimers;
+            private int mChannelId;
+
+            @Override
+            void setUp() {
+                mScript.add(SimulatedAgent.aarq(0x0102030405060708L,
+                        SimulatedAgent.STANDARD_BLOOD_PRESSURE));
+                mScript.add(REPORT_1);
+                mScript.add(REPORT_2);
+                mScript.add(SimulatedAgent.rlrq());
+                mReader = Executors.newSingleThreadExecutor();
+                mWriter = Executors.newSingleThreadExecutor();
+                mAgents = new AgentCache(null, null);
+                mTimers = new TimerWheel("timers", TimerWheel.DEFAULT_TICK_MS);
+            }
+
+            @Override
+            void run() throws Exception {
+                Pipe toManager = Pipe.open();
+                Pipe toAgent = Pipe.open();
+                final InputStream in = Channels.newInputStream(toManager.source());
+                final OutputStream out = Channels.newOutputStream(toAgent.sink());
+                final ManagerSession session = new ManagerSession("AA", ++mChannelId,
+                        Specialization.forDataType(Specialization.DATA_TYPE_BLOOD_PRESSURE),
+                        new StreamTransport(out, toManager.source()), mWriter,
+                        ApduWriter.OBTAIN_TIMEOUT_MS, mTimers, mAgents, null, AARE, NO_LISTENER);
+                Future<?> done = mReader.submit(new Runnable() {
+                    public void run() {
+                        session.run(in);
+                    }
+                });
+                SimulatedAgent agent = new SimulatedAgent(mScript, null);
+                agent.run(Channels.newInputStream(toAgent.source()),
+                        Channels.newOutputStream(toManager.sink()));
+                toManager.sink().close();
+                done.get();
+                toManager.source().close();
+                toAgent.source().close();
+                toAgent.sink().close();
+                consume(agent.getAcknowledgedReports());
+            }
+
+            @Override
+            void tearDown() {
+                mReader.shutdown();
+                mWriter.shutdown();
+                mTimers.stop();
+            }
+        });
+        return list;
+    }
+
+    private static final ManagerApdus.Aare AARE =
+            new ManagerApdus.Aare(ManagerApdus.DEFAULT_SYSTEM_ID);
+    private static final ManagerSession.Listener NO_LISTENER = new ManagerSession.Listener() {
+        public void onStateChange(ManagerSession session, ManagerSession.State prev,
+                ManagerSession.State next) {}
+
+        public void onApduReceived(ManagerSession session, ByteBuffer apdu) {}
+
+        public void onMalformedApdu(ManagerSession session, MalformedApduException e) {}
+
+        public boolean onMeasurements(ManagerSession session, MeasurementBatch batch) {
+            consume(batch.size());
+            return true;
+        }
+
+        public void onClosed(ManagerSession session) {}
+    };
+
+    public static void main(String[] args) throws Exception {
+        long warmupMs = 1000;
+        long timeMs = 1000;
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--warmup")) {
+                warmupMs = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--time")) {
+                timeMs = Long.parseLong(args[++i]);
+            } else {
+                names.add(args[i]);
+            }
+        }
+        AllocationCounter allocation = AllocationCounter.create();
+        System.out.printf("%-14s %5s %14s %12s %8s %12s %12s%n", "Benchmark", "Cnt", "Score",
+                "Error", "Units", "alloc B/op", "alloc MB/s");
+        for (Benchmark benchmark : benchmarks()) {
+            if (selected(benchmark.name, names)) {
+                measure(benchmark, warmupMs, timeMs,
+                        benchmark.measureAllocation ? allocation : null);
+            }
+        }
+    }
+
+    private static boolean selected(String name, List<String> names) {
+        if (names.isEmpty()) {
+            return true;
+        }
+        for (String prefix : names) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void measure(Benchmark benchmark, long warmupMs, long timeMs,
+            AllocationCounter allocation) throws Exception {
+        benchmark.setUp();
+        try {
+            run(benchmark, warmupMs * 1000000L);
+            double[] score = new double[ITERATIONS];
+            long ops = 0;
+            long ns = 0;
+            long bytes = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long allocated = allocation != null ? allocation.get() : 0;
+                long start = System.nanoTime();
+                long n = run(benchmark, timeMs * 1000000L);
+                long elapsed = System.nanoTime() - start;
+                if (allocation != null) {
+                    bytes += allocation.get() - allocated;
+                }
+                score[i] = n * 1e9 / elapsed;
+                ops += n;
+                ns += elapsed;
+            }
+            double mean = 0;
+            for (double s : score) {
+                mean += s / ITERATIONS;
+            }
+            double variance = 0;
+            for (double s : score) {
+                variance += (s - mean) * (s - mean) / (ITERATIONS - 1);
+            }
+            double error = T_999 * Math.sqrt(variance / ITERATIONS);
+            if (allocation != null) {
+                System.out.printf("%-14s %5d %14.1f %12.1f %8s %12.1f %12.1f%n", benchmark.name,
+                        ITERATIONS, mean, error, "ops/s", (double) bytes / ops,
+                        bytes * 1e9 / ns / (1024 * 1024));
+            } else {
+                System.out.printf("%-14s %5d %14.1f %12.1f %8s %12s %12s%n", benchmark.name,
+                        ITERATIONS, mean, error, "ops/s", "-", "-");
+            }
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    // Runs batches of operations until budgetNs has passed; returns the number run.  Batches
+    // grow so the clock is read rarely compared to fast operations.
+    private static long run(Benchmark benchmark, long budgetNs) throws Exception {
+        long deadline = System.nanoTime() + budgetNs;
+        long ops = 0;
+        int batch = 1;
+        do {
+            for (int i = 0; i < batch; i++) {
+                benchmark.run();
+            }
+            ops += batch;
+            if (batch < 1 << 16) {
+                batch <<= 1;
+            }
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    /** Keeps the JIT from dropping a result as dead code. */
+    static void consume(int value) {
+        sSink += value;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static byte[] hex(String s) {
+        s = s.replace(" ", "");
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+
+    /**
+     * Bytes allocated by the current thread, read through HotSpot's
+     * com.sun.management.ThreadMXBean.  Looked up reflectively since neither it nor
+     * java.lang.management exist on Android.
+     */
+    private static final class AllocationCounter {
+        private final Object mBean;
+        private final Method mAllocatedBytes;
+
+        private AllocationCounter(Object bean, Method allocatedBytes) {
+            mBean = bean;
+            mAllocatedBytes = allocatedBytes;
+        }
+
+        /** Returns null if the VM cannot count allocations. */
+        static AllocationCounter create() {
+            try {
+                Object bean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                Method allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+                AllocationCounter counter = new AllocationCounter(bean, allocatedBytes);
+                counter.get();
+                return counter;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        long get() throws Exception {
+            return (Long) mAllocatedBytes.invoke(mBean, Thread.currentThread().getId());
+        }
+    }
+}
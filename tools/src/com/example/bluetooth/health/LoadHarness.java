@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the manager on a plain JVM: {@link SimulatedAgent}s connect to a
+ * {@link SessionRegistry} over pipes or loopback sockets, standing in for the health channel's
+ * file descriptor, and associate, report and release over and over.
+ *
+ * <pre>
+ *   java com.example.bluetooth.health.LoadHarness [--devices N] [--sessions M] [--reports K]
+ *           [--rate SESSIONS_PER_S] [--extended] [--stored S] [--trace FILE]
+ *           [--transport pipe|socket|gateway] [--threads T]
+ * </pre>
+ *
+ * With the gateway transport the agents connect over TCP to a {@link SessionGateway} with T
+ * selector threads (2 by default) instead, as tunnelled agents would, and N is not limited to
+ * {@link SessionRegistry#MAX_SESSIONS}.
+ *
+ * Each of the N devices runs its sessions back to back on its own thread, waiting for the
+ * manager to close one before opening the next.  Sessions either carry K synthetic blood
+ * pressure reports or replay a recorded trace.  With --extended the agents use an extended
+ * configuration, so a device's first session sends its configuration report and later ones
+ * are answered from the agent cache.  --stored gives every agent S readings in a PM-store,
+ * which the manager drains before the session goes on; it implies --extended.  --rate caps how
+ * fast sessions start across all devices.
+ *
+ * Prints sessions per second and percentiles of the time from opening the channel to the
+ * first decoded measurement, followed by the manager's own {@link ProtocolStats}.
+ */
+final class LoadHarness {
+    private static final int EXTENDED_CONFIG_ID = 0x4000;
+    private static final long CLOSE_TIMEOUT_S = 10;
+
+    private int mDevices = 1;
+    private int mSessions = 100;
+    private int mReports = 2;
+    private double mRate;
+    private boolean mExtended;
+    private int mStored;
+    private String mTrace;
+    private boolean mSockets;
+    private boolean mGateway;
+    private int mThreads = 2;
+
+    private final SessionRegistry mRegistry = new SessionRegistry(new AgentCache(null, null), null);
+    private final AtomicInteger mChannelIds = new AtomicInteger();
+    private final AtomicInteger mStarted = new AtomicInteger();
+    private final AtomicInteger mOk = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicInteger mRefused = new AtomicInteger();
+    // Open time of each session until its first measurement; close latch until it ends.
+    // Keyed by channel id, or by address with the gateway, which assigns its own channel ids.
+    private final ConcurrentHashMap<Object, Long> mOpened = new ConcurrentHashMap<Object, Long>();
+    private final ConcurrentHashMap<Object, CountDownLatch> mClosed =
+            new ConcurrentHashMap<Object, CountDownLatch>();
+    private InetSocketAddress mGatewayAddress;
+    private long[] mFirstMeasurementNs;
+    private int mFirstMeasurements;
+    private long mStartNs;
+
+    private final ManagerSession.Listener mListener = new ManagerSession.Listener() {
+        public void onStateChange(ManagerSession session, ManagerSession.State prev,
+                ManagerSession.State next) {}
+
+        public void onApduReceived(ManagerSession session, ByteBuffer apdu) {}
+
+        public void onMalformedApdu(ManagerSession session, MalformedApduException e) {
+            System.err.println(session.getChannelId() + ": " + e.getMessage());
+        }
+
+        public boolean onMeasurements(ManagerSession session, MeasurementBatch batch) {
+            Long opened = mOpened.remove(key(session));
+            if (opened != null) {
+                recordFirstMeasurement(System.nanoTime() - opened);
+            }
+            return true;
+        }
+
+        public void onClosed(ManagerSession session) {
+            mOpened.remove(key(session));
+            CountDownLatch closed = mClosed.remove(key(session));
+            if (closed != null) {
+                closed.countDown();
+            }
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--devices")) {
+                harness.mDevices = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--sessions")) {
+                harness.mSessions = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--reports")) {
+                harness.mReports = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--rate")) {
+                harness.mRate = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--extended")) {
+                harness.mExtended = true;
+            } else if (arg.equals("--stored")) {
+                harness.mStored = Integer.parseInt(args[++i]);
+                harness.mExtended = true;
+            } else if (arg.equals("--trace")) {
+                harness.mTrace = args[++i];
+            } else if (arg.equals("--transport")) {
+                String transport = args[++i];
+                harness.mSockets = transport.equals("socket");
+                harness.mGateway = transport.equals("gateway");
+            } else if (arg.equals("--threads")) {
+                harness.mThreads = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("unknown option " + arg);
+                System.exit(2);
+            }
+        }
+        if (harness.mDevices < 1 || (!harness.mGateway
+                && harness.mDevices > SessionRegistry.MAX_SESSIONS)) {
+            System.err.println("--devices must be 1.." + SessionRegistry.MAX_SESSIONS);
+            System.exit(2);
+        }
+        harness.run();
+        System.exit(harness.mFailed.get() == 0 ? 0 : 1);
+    }
+
+    private void run() throws Exception {
+        mFirstMeasurementNs = new long[mSessions];
+        SessionGateway gateway = null;
+        if (mGateway) {
+            gateway = new SessionGateway(mRegistry, Specialization.forDataType(
+                    Specialization.DATA_TYPE_BLOOD_PRESSURE), mListener, mThreads);
+            mGatewayAddress = gateway.bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+        }
+        Thread[] devices = new Thread[mDevices];
+        mStartNs = System.nanoTime();
+        for (int d = 0; d < mDevices; d++) {
+            final long systemId = 0x0102030405060000L + d;
+            final List<byte[]> script = script(systemId);
+            devices[d] = new Thread("agent " + d) {
+                @Override
+                public void run() {
+                    runDevice(systemId, script);
+                }
+            };
+            devices[d].start();
+        }
+        for (Thread device : devices) {
+            device.join();
+        }
+        long elapsedNs = System.nanoTime() - mStartNs;
+        if (gateway != null) {
+            gateway.close();
+        }
+        ProtocolStats.Snapshot stats = mRegistry.snapshot();
+        mRegistry.shutdown();
+        report(elapsedNs);
+        PrintWriter writer = new PrintWriter(System.out);
+        writer.println("Manager protocol stats:");
+        stats.dump(writer);
+        writer.flush();
+    }
+
+    private List<byte[]> script(long systemId) throws IOException {
+        List<byte[]> script;
+        if (mTrace != null) {
+            FileReader reader = new FileReader(mTrace);
+            try {
+                script = SimulatedAgent.readTrace(reader, systemId);
+            } finally {
+                reader.close();
+            }
+            if (mExtended) {
+                script.set(0, SimulatedAgent.aarq(systemId, EXTENDED_CONFIG_ID));
+            }
+        } else {
+            script = new ArrayList<byte[]>();
+            script.add(SimulatedAgent.aarq(systemId,
+                    mExtended ? EXTENDED_CONFIG_ID : SimulatedAgent.STANDARD_BLOOD_PRESSURE));
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < mReports; i++) {
+                script.add(SimulatedAgent.bloodPressureReport(0x1000 + i, i, 110 + i % 20,
+                        70 + i % 10, 83 + i % 15, 60 + i % 30, now + i * 1000L));
+            }
+            script.add(SimulatedAgent.rlrq());
+        }
+        return script;
+    }
+
+    private void runDevice(long systemId, List<byte[]> script) {
+        byte[] config = mExtended ?
+                SimulatedAgent.bloodPressureConfigReport(0x0FFF, EXTENDED_CONFIG_ID, mStored > 0)
+                : null;
+        String address = String.format("%012X", systemId & 0xFFFFFFFFFFFFL);
+        ServerSocket server = null;
+        try {
+            if (mSockets) {
+                server = new ServerSocket(0, 1, InetAddress.getByName(null));
+            }
+            int n;
+            while ((n = mStarted.getAndIncrement()) < mSessions) {
+                pace(n);
+                if (mGateway) {
+                    runGatewaySession(script, config);
+                    continue;
+                }
+                while (!runSession(address, script, config, server)) {
+                    // The previous session's reader has reported the close but not yet
+                    // returned to the pool; reconnect as a real device would.
+                    Thread.yield();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(address + ": " + e);
+        } finally {
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException e) { /* Do nothing. */ }
+            }
+        }
+    }
+
+    // Returns false if the registry refused the channel.
+    private boolean runSession(String address, List<byte[]> script, byte[] config,
+            ServerSocket server) throws IOException {
+        int channelId = mChannelIds.incrementAndGet();
+        final InputStream managerIn;
+        final OutputStream managerOut;
+        final InputStream agentIn;
+        final OutputStream agentOut;
+        final Closeable managerChannel;
+        final Closeable agentChannel;
+        if (server != null) {
+            final Socket agent = new Socket(server.getInetAddress(), server.getLocalPort());
+            final Socket manager = server.accept();
+            agent.setTcpNoDelay(true);
+            manager.setTcpNoDelay(true);
+            managerIn = manager.getInputStream();
+            managerOut = manager.getOutputStream();
+            agentIn = agent.getInputStream();
+            agentOut = agent.getOutputStream();
+            // Sockets are only Closeable from Java 7 on.
+            managerChannel = new Closeable() {
+                public void close() throws IOException {
+                    manager.close();
+                }
+            };
+            agentChannel = new Closeable() {
+                public void close() throws IOException {
+                    agent.close();
+                }
+            };
+        } else {
+            final Pipe toManager = Pipe.open();
+            final Pipe toAgent = Pipe.open();
+            managerIn = Channels.newInputStream(toManager.source());
+            managerOut = Channels.newOutputStream(toAgent.sink());
+            agentIn = Channels.newInputStream(toAgent.source());
+            agentOut = Channels.newOutputStream(toManager.sink());
+            managerChannel = new Closeable() {
+                public void close() throws IOException {
+                    toManager.source().close();
+                    toAgent.sink().close();
+                }
+            };
+            agentChannel = new Closeable() {
+                public void close() throws IOException {
+                    toAgent.source().close();
+                    toManager.sink().close();
+                }
+            };
+        }
+
+        CountDownLatch closed = new CountDownLatch(1);
+        mClosed.put(channelId, closed);
+        mOpened.put(channelId, System.nanoTime());
+        try {
+            mRegistry.open(address, channelId, Specialization.forDataType(
+                    Specialization.DATA_TYPE_BLOOD_PRESSURE), managerIn, managerOut,
+                    managerChannel, mListener);
+        } catch (RejectedExecutionException e) {
+            mRefused.incrementAndGet();
+            mOpened.remove(channelId);
+            mClosed.remove(channelId);
+            closeQuietly(agentChannel);
+            return false;
+        }
+        try {
+            new SimulatedAgent(script, config, mStored).run(agentIn, agentOut);
+            mOk.incrementAndGet();
+        } catch (IOException e) {
+            mFailed.incrementAndGet();
+            System.err.println(address + " channel " + channelId + ": " + e.getMessage());
+        } finally {
+            closeQuietly(agentChannel);
+        }
+        // The reader thread must be free again before this device reconnects.
+        await(closed);
+        return true;
+    }
+
+    // The gateway accepts the connection and opens the session itself.
+    private void runGatewaySession(List<byte[]> script, byte[] config) throws IOException {
+        final Socket agent = new Socket();
+        agent.setTcpNoDelay(true);
+        agent.bind(new InetSocketAddress(mGatewayAddress.getAddress(), 0));
+        // The gateway names the session after the agent's address, known once bound.
+        String key = agent.getLocalAddress().getHostAddress() + ":" + agent.getLocalPort();
+        CountDownLatch closed = new CountDownLatch(1);
+        mClosed.put(key, closed);
+        mOpened.put(key, System.nanoTime());
+        try {
+            agent.connect(mGatewayAddress);
+            new SimulatedAgent(script, config, mStored).run(agent.getInputStream(),
+                    agent.getOutputStream());
+            mOk.incrementAndGet();
+        } catch (IOException e) {
+            mFailed.incrementAndGet();
+            System.err.println(key + ": " + e.getMessage());
+        } finally {
+            agent.close();
+        }
+        await(closed);
+    }
+
+    private static void await(CountDownLatch closed) {
+        try {
+            closed.await(CLOSE_TIMEOUT_S, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Object key(ManagerSession session) {
+        return mGateway ? session.getDeviceAddress() : (Object) session.getChannelId();
+    }
+
+    // Session n may not start before n / rate seconds into the run.
+    private void pace(int n) {
+        if (mRate <= 0) {
+            return;
+        }
+        long waitNs = mStartNs + (long) (n * 1e9 / mRate) - System.nanoTime();
+        if (waitNs > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void recordFirstMeasurement(long ns) {
+        if (mFirstMeasurements < mFirstMeasurementNs.length) {
+            mFirstMeasurementNs[mFirstMeasurements++] = ns;
+        }
+    }
+
+    private synchronized void report(long elapsedNs) {
+        System.out.printf("%d devices over %s, %d sessions: %d ok, %d failed, %d refused%n",
+                mDevices, mGateway ? "the gateway" : mSockets ? "sockets" : "pipes", mSessions,
+                mOk.get(), mFailed.get(), mRefused.get());
+        System.out.printf("%.1f sessions/s in %.3f s%n", mOk.get() * 1e9 / elapsedNs,
+                elapsedNs / 1e9);
+        long[] ttfm = Arrays.copyOf(mFirstMeasurementNs, mFirstMeasurements);
+        Arrays.sort(ttfm);
+        if (ttfm.length > 0) {
+            System.out.printf("time to first measurement (ms): p50 %.3f  p90 %.3f  p99 %.3f"
+                    + "  max %.3f  (n=%d)%n", percentile(ttfm, 50), percentile(ttfm, 90),
+                    percentile(ttfm, 99), ttfm[ttfm.length - 1] / 1e6, ttfm.length);
+        }
+    }
+
+    // Nearest-rank percentile of sorted values, in milliseconds.
+    private static double percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) { /* Do nothing. */ }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-process stand-in for the upload backend: a minimal HTTP/1.1 server on the loopback
+ * interface that takes {@link ReadingUploader} batches, one connection at a time.
+ *
+ * Like a real backend it recognises a batch it already has by its idempotency key, answering
+ * it as a success without counting its readings again.  Faults can be injected, each with a
+ * given probability per request: answering 503 without taking the batch, or taking the batch
+ * and then closing the connection without an answer, as if the response had been lost.
+ */
+final class LocalUploadServer implements Runnable, Closeable {
+    private static final int MAX_LINE = 8192;
+
+    private final ServerSocket mSocket;
+    private final Thread mThread;
+    private final Random mRandom;
+    private final double mErrorRate;
+    private final double mLostRate;
+    private final HashSet<String> mKeys = new HashSet<String>();
+    private final byte[] mScratch = new byte[8192];
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mLost = new AtomicLong();
+    private final AtomicLong mReadings = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mRawBytes = new AtomicLong();
+
+    /**
+     * Starts serving on an ephemeral port.
+     *
+     * @param errorRate share of requests answered 503.
+     * @param lostRate share of requests taken but not answered.
+     */
+    LocalUploadServer(double errorRate, double lostRate, long seed) throws IOException {
+        mErrorRate = errorRate;
+        mLostRate = lostRate;
+        mRandom = new Random(seed);
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(this, "upload server");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + mSocket.getLocalPort() + "/readings");
+    }
+
+    long requests() {
+        return mRequests.get();
+    }
+
+    /** Distinct batches taken. */
+    long batches() {
+        return mBatches.get();
+    }
+
+    /** Batches received again after they had been taken. */
+    long duplicates() {
+        return mDuplicates.get();
+    }
+
+    long errors() {
+        return mErrors.get();
+    }
+
+    long lost() {
+        return mLost.get();
+    }
+
+    /** Readings of the distinct batches. */
+    long readings() {
+        return mReadings.get();
+    }
+
+    /** Request body bytes, as sent. */
+    long bytes() {
+        return mBytes.get();
+    }
+
+    /** Request body bytes, decompressed. */
+    long rawBytes() {
+        return mRawBytes.get();
+    }
+
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    public void run() {
+        while (!mSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = mSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                serve(socket);
+            } catch (IOException e) {
+                // The client went away.
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+        int length = -1;
+        String key = null;
+        boolean gzip = false;
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                length = Integer.parseInt(value);
+            } else if (name.equalsIgnoreCase("Idempotency-Key")) {
+                key = value;
+            } else if (name.equalsIgnoreCase("Content-Encoding")) {
+                gzip = value.equalsIgnoreCase("gzip");
+            }
+        }
+        mRequests.incrementAndGet();
+        OutputStream out = socket.getOutputStream();
+        if (!requestLine.startsWith("POST ") || length < 0 || key == null) {
+            respond(out, "400 Bad Request");
+            return;
+        }
+        byte[] body = new byte[length];
+        for (int n = 0; n < length; ) {
+            int read = in.read(body, n, length - n);
+            if (read < 0) {
+                return;
+            }
+            n += read;
+        }
+        mBytes.addAndGet(length);
+        double fault = mRandom.nextDouble();
+        if (fault < mErrorRate) {
+            mErrors.incrementAndGet();
+            respond(out, "503 Service Unavailable");
+            return;
+        }
+        if (!mKeys.add(key)) {
+            mDuplicates.incrementAndGet();
+        } else {
+            mBatches.incrementAndGet();
+            count(gzip ? new GZIPInputStream(new ByteArrayInputStream(body))
+                    : new ByteArrayInputStream(body));
+        }
+        if (fault < mErrorRate + mLostRate) {
+            mLost.incrementAndGet();
+            return;
+        }
+        respond(out, "200 OK");
+    }
+
+    // Counts the lines, i.e. readings, and bytes of a decoded body.
+    private void count(InputStream body) throws IOException {
+        long readings = 0;
+        long bytes = 0;
+        int n;
+        while ((n = body.read(mScratch)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (mScratch[i] == '\n') {
+                    readings++;
+                }
+            }
+            bytes += n;
+        }
+        mReadings.addAndGet(readings);
+        mRawBytes.addAndGet(bytes);
+    }
+
+    private static void respond(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    // A header line without its CRLF, or null at the end of the stream.
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r' && sb.length() < MAX_LINE) {
+                sb.append((char) c);
+            }
+        }
+        return c < 0 && sb.length() == 0 ? null : sb.toString();
+    }
+}
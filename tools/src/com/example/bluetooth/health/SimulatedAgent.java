@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * An IEEE 11073-20601 agent in plain Java, for exercising the manager without a real device.
+ *
+ * The agent plays a script of APDUs over any pair of streams (a pipe, a socket, or anything else
+ * that stands in for the health channel's file descriptor).  It sends each scripted APDU in turn
+ * and, for the ones that expect an answer, waits for it before going on:
+ *
+ * <pre>
+ *   AARQ                      -> AARE; if accepted-unknown-config, the config report goes next
+ *   config report (0x0D1C)    -> only sent when asked for; waits for its response
+ *   other confirmed reports   -> waits for the response
+ *   RLRQ                      -> waits for RLRE
+ * </pre>
+ *
+ * GET requests from the manager are answered at any point with an empty MDS attribute list,
+ * and a release requested by the manager is confirmed and ends the run.
+ *
+ * An agent may also hold stored blood pressure readings in a PM-store of one segment.  It then
+ * waits after associating until the manager has drained the store: it answers the PM-store
+ * GET and the segment actions, and sends the entries in segment data events of
+ * {@link #ENTRIES_PER_EVENT}, each one after the manager has confirmed the one before.  The
+ * configuration report must then come from
+ * {@link #bloodPressureConfigReport(int, int, boolean)} with a PM-store.  Scripts are either
+ * recorded (see {@link #readTrace(Reader, long)}) or built with the factory methods below.
+ *
+ * An agent is single-use and runs on the calling thread.
+ */
+final class SimulatedAgent implements ApduFramer.Listener {
+    // Dev-config-id of the standard blood pressure configuration, mmHg.
+    static final int STANDARD_BLOOD_PRESSURE = 0x02BC;
+    /** Handle of the PM-store in a configuration that has one. */
+    static final int PM_STORE_HANDLE = 0x0100;
+    static final int ENTRIES_PER_EVENT = 100;
+
+    // A stored entry: absolute time, then the compound pressure and the pulse rate.
+    private static final int STORED_ENTRY_LENGTH = 8 + 10 + 2;
+    // TrigSegmXferRsp: the segment has no entries.
+    private static final int TSXR_FAIL_SEGM_EMPTY = 3;
+
+    private final List<byte[]> mScript;
+    private final byte[] mConfigReport;
+    private final ApduFramer mFramer = new ApduFramer(this);
+    private final Apdu.Header mHeader = new Apdu.Header();
+    private final Apdu.Prst mPrst = new Apdu.Prst();
+    private OutputStream mOut;
+    // The choice and data choice of the answer being waited for; 0 when not waiting.
+    private int mAwaitChoice;
+    private int mAwaitDataChoice;
+    private int mAssociationResult = -1;
+    private boolean mReleased;
+    private int mAcks;
+    // Stored readings not yet confirmed by the manager, and the next one to send.
+    private int mStored;
+    private int mNextStored;
+    private boolean mTransferring;
+    private int mNextInvokeId = 0x2000;
+
+    /**
+     * @param script APDUs to send, normally starting with an AARQ and ending with an RLRQ.
+     * @param configReport the configuration event report to send when the manager answers
+     *         accepted-unknown-config, or null.
+     */
+    SimulatedAgent(List<byte[]> script, byte[] configReport) {
+        this(script, configReport, 0);
+    }
+
+    /** @param stored readings in the agent's PM-store, drained before the script goes on. */
+    SimulatedAgent(List<byte[]> script, byte[] configReport, int stored) {
+        mScript = script;
+        mConfigReport = configReport;
+        mStored = stored;
+    }
+
+    /**
+     * Runs the script to completion.
+     *
+     * @throws IOException if the channel fails, the manager rejects the association or
+     *         aborts, or the manager closes the channel before the script is done.
+     */
+    void run(InputStream in, OutputStream out) throws IOException {
+        mOut = out;
+        for (byte[] apdu : mScript) {
+            if (mReleased) {
+                return;
+            }
+            int choice = (apdu[0] & 0xff) << 8 | apdu[1] & 0xff;
+            out.write(apdu);
+            out.flush();
+            switch (choice) {
+                case Apdu.AARQ:
+                    await(in, Apdu.AARE, 0);
+                    if (mAssociationResult == ManagerApdus.ACCEPTED_UNKNOWN_CONFIG
+                            && mConfigReport != null) {
+                        out.write(mConfigReport);
+                        out.flush();
+                        await(in, Apdu.PRST, Apdu.RORS_CONFIRMED_EVENT_REPORT);
+                    } else if (mAssociationResult != ManagerApdus.ACCEPTED) {
+                        throw new IOException("association result " + mAssociationResult);
+                    }
+                    while (mStored > 0 && !mReleased) {
+                        if (mFramer.readFrom(in) < 0) {
+                            throw new EOFException("manager closed the channel");
+                        }
+                    }
+                    break;
+                case Apdu.RLRQ:
+                    await(in, Apdu.RLRE, 0);
+                    return;
+                case Apdu.PRST:
+                    if (isConfirmedEventReport(apdu)) {
+                        await(in, Apdu.PRST, Apdu.RORS_CONFIRMED_EVENT_REPORT);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /** Number of confirmed event reports the manager has acknowledged. */
+    int getAcknowledgedReports() {
+        return mAcks;
+    }
+
+    /** Number of stored readings the manager has not yet confirmed. */
+    int getStoredReadings() {
+        return mStored;
+    }
+
+    private void await(InputStream in, int choice, int dataChoice) throws IOException {
+        mAwaitChoice = choice;
+        mAwaitDataChoice = dataChoice;
+        while (mAwaitChoice != 0) {
+            if (mReleased) {
+                return;
+            }
+            if (mFramer.readFrom(in) < 0) {
+                throw new EOFException("manager closed the channel");
+            }
+        }
+    }
+
+    public void onApdu(ByteBuffer apdu) throws IOException {
+        int choice = mHeader.wrap(apdu).choice();
+        int dataChoice = 0;
+        switch (choice) {
+            case Apdu.AARE:
+                mAssociationResult = mHeader.u16(4);
+                break;
+            case Apdu.PRST:
+                mPrst.wrap(apdu);
+                dataChoice = mPrst.dataChoice();
+                if (dataChoice == Apdu.ROIV_GET) {
+                    mOut.write(mPrst.objHandle() == PM_STORE_HANDLE
+                            ? pmStoreGetResponse(mPrst.invokeId())
+                            : getResponse(mPrst.invokeId()));
+                    mOut.flush();
+                } else if (dataChoice == Apdu.ROIV_CONFIRMED_ACTION) {
+                    onAction(mPrst);
+                } else if (dataChoice == Apdu.RORS_CONFIRMED_EVENT_REPORT) {
+                    if (mPrst.eventType() == Apdu.MDC_NOTI_SEGMENT_DATA) {
+                        onSegmentDataConfirmed(mPrst);
+                    } else {
+                        mAcks++;
+                    }
+                }
+                break;
+            case Apdu.RLRQ:
+                mOut.write(ManagerApdus.RLRE);
+                mOut.flush();
+                mReleased = true;
+                break;
+            case Apdu.ABRT:
+                throw new IOException("manager aborted");
+        }
+        if (choice == mAwaitChoice && (mAwaitDataChoice == 0 || dataChoice == mAwaitDataChoice)) {
+            mAwaitChoice = 0;
+        }
+    }
+
+    private void onAction(Apdu.Prst action) throws IOException {
+        int invokeId = action.invokeId();
+        switch (action.actionType()) {
+            case Mdc.MDC_ACT_SEG_GET_INFO:
+                mOut.write(segmentInfoResponse(invokeId, mStored));
+                break;
+            case Mdc.MDC_ACT_SEG_TRIG_XFER:
+                boolean empty = mStored == 0;
+                mOut.write(actionResponse(invokeId, Mdc.MDC_ACT_SEG_TRIG_XFER, 0,
+                        empty ? TSXR_FAIL_SEGM_EMPTY : PmStoreTransfer.TSXR_SUCCESSFUL));
+                if (!empty) {
+                    mTransferring = true;
+                    mNextStored = 0;
+                    mOut.write(nextSegmentData());
+                }
+                break;
+            case Mdc.MDC_ACT_SEG_CLR:
+                mStored = 0;
+                mOut.write(actionResponse(invokeId, Mdc.MDC_ACT_SEG_CLR));
+                break;
+        }
+        mOut.flush();
+    }
+
+    private void onSegmentDataConfirmed(Apdu.Prst response) throws IOException {
+        if (!mTransferring) {
+            return;
+        }
+        if (mNextStored < mStored) {
+            mOut.write(nextSegmentData());
+            mOut.flush();
+        } else {
+            mTransferring = false;
+        }
+    }
+
+    // The next event of the transfer, entries of made-up readings a minute apart.
+    private byte[] nextSegmentData() {
+        int first = mNextStored;
+        int count = Math.min(ENTRIES_PER_EVENT, mStored - first);
+        mNextStored += count;
+        int status = (first == 0 ? PmStoreTransfer.SEVTSTA_FIRST_ENTRY : 0)
+                | (mNextStored == mStored ? PmStoreTransfer.SEVTSTA_LAST_ENTRY : 0);
+        int info = 14 + count * STORED_ENTRY_LENGTH;
+        ByteBuffer b = eventReport(mNextInvokeId++, PM_STORE_HANDLE,
+                Apdu.MDC_NOTI_SEGMENT_DATA, info);
+        b.putShort((short) 0).putInt(first).putInt(count).putShort((short) status);
+        b.putShort((short) (count * STORED_ENTRY_LENGTH));
+        long time = System.currentTimeMillis() - (mStored - first) * 60000L;
+        for (int i = first; i < first + count; i++, time += 60000) {
+            putTime(b, time);
+            b.putShort((short) 3).putShort((short) 6);
+            b.putShort(sfloat(110 + i % 20)).putShort(sfloat(70 + i % 10))
+                    .putShort(sfloat(83 + i % 15));
+            b.putShort(sfloat(60 + i % 30));
+        }
+        return b.array();
+    }
+
+    private static boolean isConfirmedEventReport(byte[] apdu) {
+        return apdu.length > 9
+                && ((apdu[8] & 0xff) << 8 | apdu[9] & 0xff) == Apdu.ROIV_CONFIRMED_EVENT_REPORT;
+    }
+
+    // Script building.
+
+    /** An association request for 20601 with the given system-id and dev-config-id. */
+    static byte[] aarq(long systemId, int devConfigId) {
+        ByteBuffer b = ByteBuffer.allocate(54);
+        b.putShort((short) Apdu.AARQ).putShort((short) 50);
+        b.putInt(0x80000000);  // assoc-version
+        b.putShort((short) 1).putShort((short) 42);  // one data-proto
+        b.putShort((short) 0x5079).putShort((short) 38);  // data-proto-id 20601
+        b.putInt(0x80000000);  // protocol-version
+        b.putShort((short) 0x8000);  // encoding rules MDER
+        b.putInt(0x80000000);  // nomenclature-version
+        b.putInt(0);  // functional-units
+        b.putInt(0x00800000);  // system-type agent
+        b.putShort((short) 8).putLong(systemId);
+        b.putShort((short) devConfigId);
+        b.putShort((short) 1);  // data-req-mode-flags
+        b.putShort((short) 0x0100);  // data-req-init-agent-count, -manager-count
+        b.putInt(0);  // optionList
+        return b.array();
+    }
+
+    /** Release request, reason normal. */
+    static byte[] rlrq() {
+        return ManagerApdus.RLRQ.clone();
+    }
+
+    /**
+     * A confirmed fixed scan report in the layout of the standard blood pressure configuration:
+     * handle 1 with systolic, diastolic and MAP, handle 2 with the pulse rate, each followed by
+     * a time stamp.  Values are whole SFLOATs.
+     */
+    static byte[] bloodPressureReport(int invokeId, int reportNo, int systolic, int diastolic,
+            int mean, int pulse, long time) {
+        ByteBuffer b = ByteBuffer.allocate(66);
+        b.putShort((short) Apdu.PRST).putShort((short) 62).putShort((short) 60);
+        b.putShort((short) invokeId);
+        b.putShort((short) Apdu.ROIV_CONFIRMED_EVENT_REPORT).putShort((short) 54);
+        b.putShort((short) 0);  // MDS handle
+        b.putInt(0xFFFFFFFF);  // event-time
+        b.putShort((short) Apdu.MDC_NOTI_SCAN_REPORT_FIXED).putShort((short) 44);
+        b.putShort((short) 0xF000).putShort((short) reportNo);
+        b.putShort((short) 2).putShort((short) 36);
+        b.putShort((short) 1).putShort((short) 18);
+        b.putShort((short) 3).putShort((short) 6);
+        b.putShort(sfloat(systolic)).putShort(sfloat(diastolic)).putShort(sfloat(mean));
+        putTime(b, time);
+        b.putShort((short) 2).putShort((short) 10);
+        b.putShort(sfloat(pulse));
+        putTime(b, time);
+        return b.array();
+    }
+
+    /**
+     * An extended configuration with the same layout as the standard blood pressure one, as a
+     * confirmed MDC_NOTI_CONFIG event report.
+     */
+    static byte[] bloodPressureConfigReport(int invokeId, int devConfigId) {
+        return bloodPressureConfigReport(invokeId, devConfigId, false);
+    }
+
+    /**
+     * The same configuration, with a PM-store at {@link #PM_STORE_HANDLE} if {@code pmStore}.
+     */
+    static byte[] bloodPressureConfigReport(int invokeId, int devConfigId, boolean pmStore) {
+        ByteBuffer objects = ByteBuffer.allocate(256);
+        int start = beginObject(objects, Mdc.MDC_MOC_VMO_METRIC_NU, 1, 4);
+        putAttribute(objects, Mdc.MDC_ATTR_ID_TYPE, 2, Mdc.MDC_PRESS_BLD_NONINV);
+        putAttribute(objects, Mdc.MDC_ATTR_UNIT_CODE, Mdc.MDC_DIM_MMHG);
+        putAttribute(objects, Mdc.MDC_ATTR_ID_PHYSIO_LIST, 3, 6, Mdc.MDC_PRESS_BLD_NONINV_SYS,
+                Mdc.MDC_PRESS_BLD_NONINV_DIA, Mdc.MDC_PRESS_BLD_NONINV_MEAN);
+        putAttribute(objects, Mdc.MDC_ATTR_ATTRIBUTE_VAL_MAP, 2, 8,
+                Mdc.MDC_ATTR_NU_CMPD_VAL_OBS_BASIC, 10, Mdc.MDC_ATTR_TIME_STAMP_ABS, 8);
+        endObject(objects, start);
+        start = beginObject(objects, Mdc.MDC_MOC_VMO_METRIC_NU, 2, 3);
+        putAttribute(objects, Mdc.MDC_ATTR_ID_TYPE, 2, Mdc.MDC_PULS_RATE_NON_INV);
+        putAttribute(objects, Mdc.MDC_ATTR_UNIT_CODE, Mdc.MDC_DIM_BEAT_PER_MIN);
+        putAttribute(objects, Mdc.MDC_ATTR_ATTRIBUTE_VAL_MAP, 2, 8,
+                Mdc.MDC_ATTR_NU_VAL_OBS_BASIC, 2, Mdc.MDC_ATTR_TIME_STAMP_ABS, 8);
+        endObject(objects, start);
+        if (pmStore) {
+            // Store-Sample-Algorithm nos, one segment at most.
+            start = beginObject(objects, Mdc.MDC_MOC_VMO_PMSTORE, PM_STORE_HANDLE, 1);
+            putAttribute(objects, Mdc.MDC_ATTR_PM_STORE_CAPAB,
+                    PmStoreTransfer.PMSC_CLEAR_SEGM_BY_LIST_SUP);
+            endObject(objects, start);
+        }
+        objects.flip();
+
+        int info = 6 + objects.remaining();
+        ByteBuffer b = eventReport(invokeId, 0, Apdu.MDC_NOTI_CONFIG, info);
+        b.putShort((short) devConfigId);
+        b.putShort((short) (pmStore ? 3 : 2)).putShort((short) objects.remaining());
+        b.put(objects);
+        return b.array();
+    }
+
+    // A confirmed event report with room for info bytes of event-info after the header.
+    private static ByteBuffer eventReport(int invokeId, int handle, int eventType, int info) {
+        ByteBuffer b = ByteBuffer.allocate(22 + info);
+        b.putShort((short) Apdu.PRST).putShort((short) (18 + info))
+                .putShort((short) (16 + info));
+        b.putShort((short) invokeId);
+        b.putShort((short) Apdu.ROIV_CONFIRMED_EVENT_REPORT).putShort((short) (10 + info));
+        b.putShort((short) handle);
+        b.putInt(0xFFFFFFFF);
+        b.putShort((short) eventType).putShort((short) info);
+        return b;
+    }
+
+    /**
+     * Reads the agent side of a recorded session.  The last hex token of each line, ignoring
+     * {@code //} comments, is taken as APDU bytes; an APDU may be split over several lines, as
+     * in the manager's received-APDU log lines followed by a hand-annotated dump of the rest.
+     * Lines without a hex token are ignored, as are PRST APDUs other than agent requests.  If
+     * the recording does not start with an AARQ or end with an RLRQ, ones for the standard
+     * blood pressure configuration are added.
+     */
+    static List<byte[]> readTrace(Reader reader, long systemId) throws IOException {
+        List<byte[]> script = new ArrayList<byte[]>();
+        BufferedReader lines = new BufferedReader(reader);
+        ByteBuffer pending = ByteBuffer.allocate(ApduFramer.MAX_APDU_LENGTH);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            int comment = line.indexOf("//");
+            String[] tokens = (comment < 0 ? line : line.substring(0, comment)).trim()
+                    .split("\\s+");
+            byte[] bytes = parseHex(tokens[tokens.length - 1]);
+            if (bytes == null || bytes.length > pending.remaining()) {
+                continue;
+            }
+            if (pending.position() == 0 && (bytes[0] & 0xf0) != 0xe0) {
+                // Not the start of an APDU.
+                continue;
+            }
+            pending.put(bytes);
+            if (pending.position() < ApduFramer.HEADER_LENGTH) {
+                continue;
+            }
+            int length = ApduFramer.HEADER_LENGTH + (pending.getShort(2) & 0xffff);
+            if (pending.position() >= length) {
+                byte[] apdu = new byte[length];
+                pending.flip();
+                pending.get(apdu);
+                pending.clear();
+                if (isAgentApdu(apdu)) {
+                    script.add(apdu);
+                }
+            }
+        }
+        if (script.isEmpty() || (script.get(0)[0] & 0xff) != Apdu.AARQ >> 8) {
+            script.add(0, aarq(systemId, STANDARD_BLOOD_PRESSURE));
+        }
+        if ((script.get(script.size() - 1)[0] & 0xff) != Apdu.RLRQ >> 8) {
+            script.add(rlrq());
+        }
+        return script;
+    }
+
+    // The manager's side of a recorded exchange is left for the manager to produce.
+    private static boolean isAgentApdu(byte[] apdu) {
+        int choice = (apdu[0] & 0xff) << 8 | apdu[1] & 0xff;
+        switch (choice) {
+            case Apdu.AARQ:
+            case Apdu.RLRQ:
+            case Apdu.ABRT:
+                return true;
+            case Apdu.PRST:
+                return apdu.length > 9 && (apdu[8] & 0xff) == 0x01;
+            default:
+                return false;
+        }
+    }
+
+    private static byte[] parseHex(String s) {
+        if (s.length() == 0 || s.length() % 2 != 0) {
+            return null;
+        }
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16);
+            int lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            b[i] = (byte) (hi << 4 | lo);
+        }
+        return b;
+    }
+
+    private static byte[] getResponse(int invokeId) {
+        ByteBuffer b = ByteBuffer.allocate(18);
+        b.putShort((short) Apdu.PRST).putShort((short) 14).putShort((short) 12);
+        b.putShort((short) invokeId);
+        b.putShort((short) Apdu.RORS_GET).putShort((short) 6);
+        b.putShort((short) 0);  // MDS handle
+        b.putShort((short) 0).putShort((short) 0);  // empty attribute list
+        return b.array();
+    }
+
+    // The PM-store's attributes: one segment, which can be cleared.
+    private static byte[] pmStoreGetResponse(int invokeId) {
+        ByteBuffer b = ByteBuffer.allocate(30);
+        b.putShort((short) Apdu.PRST).putShort((short) 26).putShort((short) 24);
+        b.putShort((short) invokeId);
+        b.putShort((short) Apdu.RORS_GET).putShort((short) 18);
+        b.putShort((short) PM_STORE_HANDLE);
+        b.putShort((short) 2).putShort((short) 12);
+        b.putShort((short) Mdc.MDC_ATTR_NUM_SEG).putShort((short) 2).putShort((short) 1);
+        b.putShort((short) Mdc.MDC_ATTR_PM_STORE_CAPAB).putShort((short) 2)
+                .putShort((short) PmStoreTransfer.PMSC_CLEAR_SEGM_BY_LIST_SUP);
+        return b.array();
+    }
+
+    // Segment 0 holding the stored readings, with the entry map of nextSegmentData().
+    private static byte[] segmentInfoResponse(int invokeId, int stored) {
+        ByteBuffer b = actionResponseHeader(invokeId, Mdc.MDC_ACT_SEG_GET_INFO, 66);
+        b.putShort((short) 1).putShort((short) 62);
+        b.putShort((short) 0);  // seg-inst-no
+        b.putShort((short) 3).putShort((short) 56);
+        b.putShort((short) Mdc.MDC_ATTR_ID_INSTNO).putShort((short) 2).putShort((short) 0);
+        b.putShort((short) Mdc.MDC_ATTR_SEG_USAGE_CNT).putShort((short) 4).putInt(stored);
+        b.putShort((short) Mdc.MDC_ATTR_PM_SEG_MAP).putShort((short) 38);
+        b.putShort((short) 0x8000);  // absolute time
+        b.putShort((short) 2).putShort((short) 32);
+        b.putShort((short) Mdc.MDC_MOC_VMO_METRIC_NU).putShort((short) 2)
+                .putShort((short) Mdc.MDC_PRESS_BLD_NONINV).putShort((short) 1);
+        b.putShort((short) 1).putShort((short) 4);
+        b.putShort((short) Mdc.MDC_ATTR_NU_CMPD_VAL_OBS_BASIC).putShort((short) 10);
+        b.putShort((short) Mdc.MDC_MOC_VMO_METRIC_NU).putShort((short) 2)
+                .putShort((short) Mdc.MDC_PULS_RATE_NON_INV).putShort((short) 2);
+        b.putShort((short) 1).putShort((short) 4);
+        b.putShort((short) Mdc.MDC_ATTR_NU_VAL_OBS_BASIC).putShort((short) 2);
+        return b.array();
+    }
+
+    private static byte[] actionResponse(int invokeId, int actionType, int... args) {
+        ByteBuffer b = actionResponseHeader(invokeId, actionType, 2 * args.length);
+        for (int arg : args) {
+            b.putShort((short) arg);
+        }
+        return b.array();
+    }
+
+    private static ByteBuffer actionResponseHeader(int invokeId, int actionType, int args) {
+        ByteBuffer b = ByteBuffer.allocate(18 + args);
+        b.putShort((short) Apdu.PRST).putShort((short) (14 + args))
+                .putShort((short) (12 + args));
+        b.putShort((short) invokeId);
+        b.putShort((short) Apdu.RORS_CONFIRMED_ACTION).putShort((short) (6 + args));
+        b.putShort((short) PM_STORE_HANDLE);
+        b.putShort((short) actionType).putShort((short) args);
+        return b;
+    }
+
+    // Whole numbers up to 2047 fit the mantissa with exponent 0.
+    private static short sfloat(int value) {
+        return (short) (value & 0x0FFF);
+    }
+
+    // AbsoluteTime: century, year, month, day, hour, minute, second, hundredths, all BCD.
+    private static void putTime(ByteBuffer b, long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        b.put(bcd(year / 100)).put(bcd(year % 100)).put(bcd(c.get(Calendar.MONTH) + 1))
+                .put(bcd(c.get(Calendar.DAY_OF_MONTH))).put(bcd(c.get(Calendar.HOUR_OF_DAY)))
+                .put(bcd(c.get(Calendar.MINUTE))).put(bcd(c.get(Calendar.SECOND)))
+                .put(bcd(c.get(Calendar.MILLISECOND) / 10));
+    }
+
+    private static byte bcd(int v) {
+        return (byte) ((v / 10) << 4 | v % 10);
+    }
+
+    private static int beginObject(ByteBuffer b, int objClass, int handle, int attributes) {
+        b.putShort((short) objClass).putShort((short) handle);
+        b.putShort((short) attributes).putShort((short) 0);
+        return b.position();
+    }
+
+    private static void endObject(ByteBuffer b, int start) {
+        b.putShort(start - 2, (short) (b.position() - start));
+    }
+
+    private static void putAttribute(ByteBuffer b, int id, int... values) {
+        b.putShort((short) id).putShort((short) (2 * values.length));
+        for (int v : values) {
+            b.putShort((short) v);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test of the upload path on a plain JVM: readings are appended to a scratch
+ * {@link MeasurementJournal} and a {@link ReadingUploader} sends them over
+ * {@link HttpTransport} to a {@link LocalUploadServer}.
+ *
+ * <pre>
+ *   java com.example.bluetooth.health.UploadHarness [--readings N] [--rate READINGS_PER_S]
+ *           [--batch B] [--delay MS] [--backoff MS] [--errors P] [--lost P] [--restarts K]
+ * </pre>
+ *
+ * --batch and --delay bound batches as in the service; --backoff is the first retry delay.
+ * --errors and --lost inject server faults with those probabilities.  --restarts stops the
+ * uploader K times along the way and starts a new one on the same state file, as if the
+ * process had died.  --rate spreads the appends out; by default they are all made up front.
+ *
+ * Prints requests per reading, compression and retry counts, and checks that the server got
+ * every reading exactly once.
+ */
+final class UploadHarness {
+    private static final long DRAIN_TIMEOUT_MS = 120000;
+
+    private int mReadings = 100000;
+    private double mRate;
+    private int mBatch = ReadingUploader.DEFAULT_MAX_READINGS;
+    private long mDelayMs = 1000;
+    private long mBackoffMs = 50;
+    private double mErrors;
+    private double mLost;
+    private int mRestarts;
+
+    public static void main(String[] args) throws Exception {
+        UploadHarness harness = new UploadHarness();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--readings")) {
+                harness.mReadings = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--rate")) {
+                harness.mRate = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--batch")) {
+                harness.mBatch = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--delay")) {
+                harness.mDelayMs = Long.parseLong(args[++i]);
+            } else if (arg.equals("--backoff")) {
+                harness.mBackoffMs = Long.parseLong(args[++i]);
+            } else if (arg.equals("--errors")) {
+                harness.mErrors = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--lost")) {
+                harness.mLost = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--restarts")) {
+                harness.mRestarts = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("unknown option " + arg);
+                System.exit(2);
+            }
+        }
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        File dir = scratchDir();
+        MeasurementJournal journal = new MeasurementJournal(dir);
+        File state = new File(dir, "upload.state");
+        LocalUploadServer server = new LocalUploadServer(mErrors, mLost, 1);
+        HttpTransport transport = new HttpTransport(server.url());
+        long startNs = System.nanoTime();
+        ReadingUploader uploader = newUploader(journal, state, transport);
+        long retries = 0;
+        long device = MeasurementJournal.parseAddress("00:09:1F:80:00:01");
+        int restartEvery = mReadings / (mRestarts + 1);
+        for (int i = 0; i < mReadings; i++) {
+            long now = System.currentTimeMillis();
+            journal.append(device, i % 2 == 0 ? Mdc.MDC_PRESS_BLD_NONINV_SYS
+                    : Mdc.MDC_PULS_RATE_NON_INV, 70 + i % 60, Mdc.MDC_DIM_MMHG, now - 500, now);
+            uploader.wake();
+            if (mRestarts > 0 && i > 0 && i % restartEvery == 0 && i / restartEvery <= mRestarts) {
+                // Let a batch or two get under way before pulling the plug.
+                Thread.sleep(mBackoffMs);
+                uploader.stop();
+                retries += uploader.retries();
+                uploader = newUploader(journal, state, transport);
+            }
+            if (mRate > 0) {
+                long dueNs = startNs + (long) ((i + 1) * 1e9 / mRate);
+                long sleepMs = (dueNs - System.nanoTime()) / 1000000;
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            }
+        }
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (uploader.backlog() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        uploader.stop();
+        retries += uploader.retries();
+        server.close();
+        journal.close();
+        deleteDir(dir);
+
+        System.out.printf("%d readings in %.1f s, %d requests (%.1f readings per request)%n",
+                mReadings, elapsedNs / 1e9, server.requests(),
+                (double) mReadings / Math.max(1, server.requests()));
+        System.out.printf("batches %d, duplicates %d, errors %d, lost responses %d, retries %d%n",
+                server.batches(), server.duplicates(), server.errors(), server.lost(), retries);
+        System.out.printf("body %d bytes, %d decompressed (%.1fx), %.1f bytes per reading%n",
+                server.bytes(), server.rawBytes(),
+                (double) server.rawBytes() / Math.max(1, server.bytes()),
+                (double) server.bytes() / Math.max(1, mReadings));
+        boolean ok = server.readings() == mReadings;
+        System.out.println(ok ? "every reading arrived once"
+                : "server has " + server.readings() + " readings, expected " + mReadings);
+        return ok;
+    }
+
+    private ReadingUploader newUploader(MeasurementJournal journal, File state,
+            HttpTransport transport) {
+        ReadingUploader uploader = new ReadingUploader(journal, state, mBatch, mDelayMs,
+                mBackoffMs);
+        uploader.setTransport(transport);
+        return uploader;
+    }
+
+    private static File scratchDir() throws IOException {
+        File dir = File.createTempFile("upload", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}